@@ -7,6 +7,7 @@ plugins {
     id("maven-publish")
     signing
     id("cn.lalaki.central") version("1.2.5")
+    id("me.champeau.jmh") version("0.7.2")
 }
 
 group = "dk.stuart"
@@ -52,6 +53,11 @@ tasks.test {
     jvmArgs("-agentpath:${agent.singleFile}")
 }
 
+jmh {
+    jmhVersion.set("1.37")
+    jvmArgsAppend.add(provider { "-agentpath:${agent.singleFile}" })
+}
+
 publishing {
     publications {
         create<MavenPublication>("jtestmemprofiler") {
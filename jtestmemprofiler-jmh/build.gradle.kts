@@ -0,0 +1,29 @@
+plugins {
+    id("java-library")
+}
+
+group = rootProject.group
+version = rootProject.version
+
+repositories {
+    mavenCentral()
+}
+
+java {
+    withJavadocJar()
+    withSourcesJar()
+}
+
+dependencies {
+    api(rootProject)
+    implementation("org.openjdk.jmh:jmh-core:1.37")
+
+    testImplementation(platform("org.junit:junit-bom:5.9.1"))
+    testImplementation("org.junit.jupiter:junit-jupiter")
+
+    testImplementation("org.assertj:assertj-core:3.11.1")
+}
+
+tasks.test {
+    useJUnitPlatform()
+}
@@ -0,0 +1,176 @@
+package dk.stuart.jtestmemprofiler.jmh;
+
+import dk.stuart.jtestmemprofiler.CallTreeExporter;
+import dk.stuart.jtestmemprofiler.ProfilerBuilder;
+import dk.stuart.jtestmemprofiler.TrieNode;
+import dk.stuart.jtestmemprofiler.TypeAllocationMap;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.profile.ProfilerException;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ScalarResult;
+import org.openjdk.jmh.runner.IterationType;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A JMH profiler reporting the allocation per operation of every benchmark iteration, in total and per allocated type,
+ * through the native JTestMemProfiler agent.
+ * <p>
+ * Enable it with {@code -prof dk.stuart.jtestmemprofiler.jmh.AllocationProfiler} and load the agent into the forked
+ * benchmark JVMs with {@code -jvmArgsAppend -agentpath:<agent>}. Options are given as
+ * {@code -prof dk.stuart.jtestmemprofiler.jmh.AllocationProfiler:types=10;callTree=true}:
+ * <ul>
+ *     <li>{@code types} - the number of types with the highest allocation reported per iteration (default 20)</li>
+ *     <li>{@code sampleRate} - the sample rate of the profiler, see {@link ProfilerBuilder#withSampleRate(int)}
+ *     (default 0)</li>
+ *     <li>{@code callTree} - collects the call tree of the last measurement iteration instead of the allocation per
+ *     type, and writes it as folded stacks and an HTML flame graph (default false)</li>
+ *     <li>{@code callTreeMinBytes} - only writes call trees of iterations allocating at least this many bytes per
+ *     operation, to restrict the output to the heaviest benchmarks (default 0)</li>
+ *     <li>{@code dir} - the directory call trees are written to (default the working directory)</li>
+ * </ul>
+ * As the agent records all threads, allocation by the JMH infrastructure during an iteration is included.
+ */
+@SuppressWarnings("unused")
+public class AllocationProfiler implements InternalProfiler {
+    static final String PREFIX = "jtmp.alloc.norm";
+
+    private final int maxTypes;
+    private final int sampleRate;
+    private final boolean callTree;
+    private final double callTreeMinBytes;
+    private final Path directory;
+
+    private dk.stuart.jtestmemprofiler.Profiler profiler = null;
+    private final TypeAllocationMap perType = new TypeAllocationMap();
+    private long total = 0;
+    private TrieNode callTreeRoot = null;
+    private int measurementIteration = 0;
+
+    /**
+     * Constructs a profiler with default options.
+     */
+    public AllocationProfiler() throws ProfilerException {
+        this("");
+    }
+
+    /**
+     * Constructs a profiler with the options given as {@code key=value} pairs separated by semicolons.
+     * @throws ProfilerException if an option is unknown or its value is invalid
+     */
+    public AllocationProfiler(String initLine) throws ProfilerException {
+        var options = parseOptions(initLine);
+        try {
+            maxTypes = Integer.parseInt(options.getOrDefault("types", "20"));
+            sampleRate = Integer.parseInt(options.getOrDefault("sampleRate", "0"));
+            callTree = Boolean.parseBoolean(options.getOrDefault("callTree", "false"));
+            callTreeMinBytes = Double.parseDouble(options.getOrDefault("callTreeMinBytes", "0"));
+            directory = Path.of(options.getOrDefault("dir", "."));
+        } catch (NumberFormatException e) {
+            throw new ProfilerException("Invalid option value: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public String getDescription() {
+        return "Allocation per type and call path through the JTestMemProfiler JVMTI agent";
+    }
+
+    @Override
+    public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams) {
+        if (iterationParams.getType() == IterationType.MEASUREMENT) measurementIteration++;
+
+        var collectCallTree = callTree && iterationParams.getType() == IterationType.MEASUREMENT
+                && measurementIteration == iterationParams.getCount();
+
+        var builder = new ProfilerBuilder()
+                .withLongTotalsCollector(allocation -> total = allocation)
+                .withSampleRate(sampleRate);
+        if (collectCallTree) builder.withCallTreeCollector(root -> callTreeRoot = root);
+        else builder.withPerTypeCollector(perType);
+
+        try {
+            profiler = builder.build();
+        } catch (UnsatisfiedLinkError e) {
+            throw new IllegalStateException("The JTestMemProfiler agent is not loaded, add -agentpath:<agent> to the benchmark JVM arguments", e);
+        }
+    }
+
+    @Override
+    public Collection<? extends Result> afterIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams, IterationResult result) {
+        profiler.close();
+        profiler = null;
+        if (iterationParams.getType() == IterationType.MEASUREMENT && measurementIteration == iterationParams.getCount())
+            measurementIteration = 0;
+
+        var operations = result.getMetadata() == null ? 0L : result.getMetadata().getAllOps();
+        var root = callTreeRoot;
+        callTreeRoot = null;
+        if (operations == 0) return List.of();
+
+        var results = new ArrayList<Result>();
+        results.add(new ScalarResult(PREFIX, (double) total / operations, "B/op", AggregationPolicy.AVG));
+
+        if (root != null) {
+            if ((double) total / operations >= callTreeMinBytes) writeCallTree(benchmarkParams, root);
+        } else {
+            for (var entry : topTypes(perType, maxTypes)) {
+                results.add(new ScalarResult(PREFIX + "." + TypeAllocationMap.typeName(entry.getKey()), (double) entry.getValue() / operations, "B/op", AggregationPolicy.AVG));
+            }
+        }
+
+        return results;
+    }
+
+    private void writeCallTree(BenchmarkParams benchmarkParams, TrieNode root) {
+        var name = benchmarkParams.id().replaceAll("[^A-Za-z0-9._=-]", "_");
+        var tree = root.toCallTree();
+        try {
+            Files.createDirectories(directory);
+            CallTreeExporter.writeFolded(tree, directory.resolve(name + ".folded"));
+            CallTreeExporter.writeFlameGraph(tree, directory.resolve(name + ".html"));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns up to n types with the highest allocation, highest first.
+     */
+    static List<Map.Entry<String, Long>> topTypes(TypeAllocationMap allocations, int n) {
+        var entries = new ArrayList<Map.Entry<String, Long>>(allocations.size());
+        allocations.forEach((type, allocation) -> entries.add(Map.entry(type, allocation)));
+        entries.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        return entries.subList(0, Math.min(Math.max(n, 0), entries.size()));
+    }
+
+    static Map<String, String> parseOptions(String initLine) throws ProfilerException {
+        var options = new HashMap<String, String>();
+        if (initLine == null || initLine.isBlank()) return options;
+
+        for (var option : initLine.split(";")) {
+            if (option.isBlank()) continue;
+
+            var separator = option.indexOf('=');
+            if (separator < 0) throw new ProfilerException("Option must be of the form key=value: " + option);
+
+            var key = option.substring(0, separator).trim();
+            if (!List.of("types", "sampleRate", "callTree", "callTreeMinBytes", "dir").contains(key))
+                throw new ProfilerException("Unknown option: " + key);
+            options.put(key, option.substring(separator + 1).trim());
+        }
+        return options;
+    }
+}
@@ -0,0 +1,31 @@
+package dk.stuart.jtestmemprofiler.jmh;
+
+import dk.stuart.jtestmemprofiler.TypeAllocationMap;
+import org.junit.jupiter.api.Test;
+import org.openjdk.jmh.profile.ProfilerException;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class AllocationProfilerTest {
+    @Test
+    void topTypes_allocations_returnsHeaviestFirst() {
+        var allocations = new TypeAllocationMap();
+        allocations.put("[B", 10);
+        allocations.put("[C", 30);
+        allocations.put("[I", 20);
+
+        assertThat(AllocationProfiler.topTypes(allocations, 2)).isEqualTo(List.of(Map.entry("[C", 30L), Map.entry("[I", 20L)));
+    }
+
+    @Test
+    void parseOptions_initLine_returnsOptions() throws ProfilerException {
+        assertThat(AllocationProfiler.parseOptions("types=5; callTree=true")).isEqualTo(Map.of("types", "5", "callTree", "true"));
+        assertThat(AllocationProfiler.parseOptions("")).isEmpty();
+        assertThatThrownBy(() -> AllocationProfiler.parseOptions("unknown=1")).isInstanceOf(ProfilerException.class);
+        assertThatThrownBy(() -> new AllocationProfiler("types=many")).isInstanceOf(ProfilerException.class);
+    }
+}
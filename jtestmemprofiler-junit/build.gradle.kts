@@ -0,0 +1,31 @@
+plugins {
+    id("java-library")
+}
+
+group = rootProject.group
+version = rootProject.version
+
+repositories {
+    mavenCentral()
+}
+
+java {
+    withJavadocJar()
+    withSourcesJar()
+}
+
+dependencies {
+    api(rootProject)
+    api(platform("org.junit:junit-bom:5.9.1"))
+    api("org.junit.jupiter:junit-jupiter-api")
+
+    testImplementation("org.junit.jupiter:junit-jupiter")
+    testImplementation("org.junit.platform:junit-platform-testkit")
+
+    testImplementation("org.assertj:assertj-core:3.11.1")
+}
+
+tasks.test {
+    useJUnitPlatform()
+    jvmArgs("-agentpath:${rootProject.configurations.getByName("agent").singleFile}")
+}
@@ -0,0 +1,52 @@
+package dk.stuart.jtestmemprofiler.junit;
+
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.lang.annotation.*;
+
+/**
+ * Fails a test if its body allocates more than the budget on the test thread.
+ * <p>
+ * The test body is invoked {@link #warmup()} times without profiling before the measured invocation. When the budget
+ * is exceeded the failure reports the allocation, and the allocation per type if the budget is for specific types.
+ * With {@link #rerunOnFailure()} the failure also reports the allocation per type and the call paths allocating the
+ * most, by invoking the body again while collecting them. Applied to a class, the budget applies to every test without
+ * a budget of its own.
+ * <p>
+ * Warmup invocations and reruns call the test method directly: they run inside the interceptors of extensions
+ * registered before this one, but not through the interceptors of extensions registered after it, nor around
+ * {@code @BeforeEach} and {@code @AfterEach} methods. Only the measured invocation goes through the full chain.
+ */
+@Target({ ElementType.METHOD, ElementType.TYPE, ElementType.ANNOTATION_TYPE })
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+@Inherited
+@ExtendWith(AllocationExtension.class)
+public @interface AllocationBudget {
+    /**
+     * The maximum number of bytes the measured invocation may allocate.
+     */
+    long maxBytes();
+
+    /**
+     * The types the budget applies to, or all types if empty.
+     */
+    Class<?>[] types() default {};
+
+    /**
+     * The number of unprofiled invocations of the test body before the measured invocation.
+     */
+    int warmup() default 1;
+
+    /**
+     * True to invoke the test body again when the budget is exceeded, up to twice, to report the allocation per type
+     * and the call paths allocating the most, false to only report what the measured invocation collected.
+     */
+    boolean rerunOnFailure() default false;
+
+    /**
+     * The number of call paths allocating the most reported when the budget is exceeded with
+     * {@link #rerunOnFailure()}, or 0 to not collect them.
+     */
+    int topPaths() default 5;
+}
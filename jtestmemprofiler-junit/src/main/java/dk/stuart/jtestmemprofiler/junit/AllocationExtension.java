@@ -0,0 +1,217 @@
+package dk.stuart.jtestmemprofiler.junit;
+
+import dk.stuart.jtestmemprofiler.CallTree;
+import dk.stuart.jtestmemprofiler.CallTreeExporter;
+import dk.stuart.jtestmemprofiler.ProfileSnapshot;
+import dk.stuart.jtestmemprofiler.ProfileWriter;
+import dk.stuart.jtestmemprofiler.Profiler;
+import dk.stuart.jtestmemprofiler.ProfilerBuilder;
+import dk.stuart.jtestmemprofiler.ProfilerSessions;
+import dk.stuart.jtestmemprofiler.TypeAllocationMap;
+import org.junit.jupiter.api.extension.ExtensionConfigurationException;
+import org.junit.jupiter.api.extension.ExtensionContext;
+import org.junit.jupiter.api.extension.InvocationInterceptor;
+import org.junit.jupiter.api.extension.ReflectiveInvocationContext;
+import org.junit.jupiter.api.function.Executable;
+import org.junit.platform.commons.support.AnnotationSupport;
+import org.junit.platform.commons.support.ReflectionSupport;
+
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+
+/**
+ * The JUnit Jupiter extension behind {@link AllocationBudget} and {@link CaptureAllocations}.
+ * <p>
+ * A budget of the total allocation is measured through a {@link ProfilerSessions} session counting the allocation of
+ * the thread running the test, so such tests are measured concurrently when executing in parallel. Budgets for specific
+ * types and captures need the native agent, which measures one test at a time: the profilers measuring the tests of a
+ * class are built once, filtered to the thread running the tests, and kept disabled between tests, so the per-test
+ * cost is enabling the profiler and reading the change in its results. A test running on another thread is measured by
+ * a profiler of its own.
+ */
+public class AllocationExtension implements InvocationInterceptor {
+    private static final ExtensionContext.Namespace NAMESPACE = ExtensionContext.Namespace.create(AllocationExtension.class);
+
+    @Override
+    public void interceptTestMethod(Invocation<Void> invocation, ReflectiveInvocationContext<Method> invocationContext, ExtensionContext extensionContext) throws Throwable {
+        var budget = findAnnotation(extensionContext, AllocationBudget.class);
+        var capture = findAnnotation(extensionContext, CaptureAllocations.class);
+        if (budget == null && capture == null) {
+            invocation.proceed();
+            return;
+        }
+
+        var collectCallTree = capture != null && capture.callTree();
+        if (collectCallTree && budget != null && budget.types().length > 0)
+            throw new ExtensionConfigurationException("An allocation budget for specific types cannot be combined with capturing a call tree");
+
+        var warmup = Math.max(budget == null ? 0 : budget.warmup(), capture == null ? 0 : capture.warmup());
+        for (var i = 0; i < warmup; i++) {
+            invokeDirectly(invocationContext);
+        }
+
+        var session = getSession(extensionContext);
+        if (capture == null && budget.types().length == 0) {
+            var allocated = Session.measureTotal(invocation::proceed);
+            if (allocated > budget.maxBytes()) failBudget(budget, allocated, null, null, session, invocationContext);
+            return;
+        }
+
+        var snapshot = session.measure(collectCallTree, invocation::proceed);
+        if (capture != null) writeCapture(capture, snapshot, extensionContext);
+        if (budget != null) checkBudget(budget, snapshot, session, invocationContext);
+    }
+
+    private static <A extends Annotation> A findAnnotation(ExtensionContext extensionContext, Class<A> annotationType) {
+        return AnnotationSupport.findAnnotation(extensionContext.getRequiredTestMethod(), annotationType)
+                .or(() -> AnnotationSupport.findAnnotation(extensionContext.getRequiredTestClass(), annotationType))
+                .orElse(null);
+    }
+
+    private static void invokeDirectly(ReflectiveInvocationContext<Method> invocationContext) {
+        ReflectionSupport.invokeMethod(invocationContext.getExecutable(), invocationContext.getTarget().orElse(null), invocationContext.getArguments().toArray());
+    }
+
+    private static Session getSession(ExtensionContext extensionContext) {
+        var classContext = extensionContext.getParent().orElse(extensionContext);
+        return classContext.getStore(NAMESPACE).getOrComputeIfAbsent(Session.class, key -> new Session(), Session.class);
+    }
+
+    private static void checkBudget(AllocationBudget budget, ProfileSnapshot snapshot, Session session, ReflectiveInvocationContext<Method> invocationContext) {
+        var allocated = snapshot.getTotal();
+        if (budget.types().length > 0) {
+            allocated = 0;
+            for (var type : budget.types()) {
+                allocated += snapshot.getPerType().get(type.descriptorString());
+            }
+        }
+        if (allocated <= budget.maxBytes()) return;
+
+        failBudget(budget, allocated, snapshot.getPerType(), snapshot.getCallTree(), session, invocationContext);
+    }
+
+    /**
+     * Fails the test with a report of the allocation, rerunning the test for the allocation per type or the call tree
+     * if not measured and the budget asks for reruns.
+     */
+    private static void failBudget(AllocationBudget budget, long allocated, TypeAllocationMap perType, CallTree callTree, Session session, ReflectiveInvocationContext<Method> invocationContext) {
+        if (!budget.rerunOnFailure()) throw new AssertionError(AllocationReport.budgetExceeded(allocated, budget, perType, callTree, false));
+
+        if (perType == null) {
+            try {
+                perType = session.measure(false, () -> invokeDirectly(invocationContext)).getPerType();
+            } catch (Throwable e) {
+                perType = null;
+            }
+        }
+
+        var pathsUnavailable = false;
+        if (callTree == null && budget.topPaths() > 0) {
+            try {
+                callTree = session.measure(true, () -> invokeDirectly(invocationContext)).getCallTree();
+            } catch (Throwable e) {
+                pathsUnavailable = true;
+            }
+        }
+
+        throw new AssertionError(AllocationReport.budgetExceeded(allocated, budget, perType, callTree, pathsUnavailable));
+    }
+
+    private static void writeCapture(CaptureAllocations capture, ProfileSnapshot snapshot, ExtensionContext extensionContext) throws IOException {
+        var directory = Path.of(capture.directory());
+        Files.createDirectories(directory);
+
+        var name = extensionContext.getRequiredTestClass().getName() + "." + extensionContext.getRequiredTestMethod().getName();
+        if (extensionContext.getRequiredTestMethod().getParameterCount() > 0)
+            name += "-" + Integer.toHexString(extensionContext.getUniqueId().hashCode());
+        name = name.replaceAll("[^A-Za-z0-9._$-]", "_");
+
+        var profile = directory.resolve(name + ".jtmp");
+        if (snapshot.getCallTree() != null) {
+            ProfileWriter.writeCallTree(snapshot.getCallTree(), profile);
+            CallTreeExporter.writeFlameGraph(snapshot.getCallTree(), directory.resolve(name + ".html"));
+        } else {
+            ProfileWriter.writePerType(snapshot.getPerType().toHashMap(), profile);
+        }
+
+        extensionContext.publishReportEntry("allocations.total", Long.toString(snapshot.getTotal()));
+        extensionContext.publishReportEntry("allocations.profile", profile.toString());
+    }
+
+    /**
+     * The profilers shared by the tests of a class, closed with the class context.
+     */
+    private static final class Session implements ExtensionContext.Store.CloseableResource {
+        private final Thread thread = Thread.currentThread();
+        private Profiler perTypeProfiler = null;
+        private Profiler callTreeProfiler = null;
+
+        /**
+         * Runs the body in a session profiling the current thread and returns the total allocation of the body.
+         */
+        static long measureTotal(Executable body) throws Throwable {
+            var total = new long[1];
+            var builder = new ProfilerBuilder().withLongTotalsCollector(allocated -> total[0] = allocated);
+            try (var ignored = ProfilerSessions.open(builder, Set.of(Thread.currentThread()))) {
+                body.execute();
+            }
+            return total[0];
+        }
+
+        /**
+         * Runs the body with a profiler enabled, holding the native agent, and returns the allocation of the body.
+         */
+        ProfileSnapshot measure(boolean collectCallTree, Executable body) throws Throwable {
+            try (var ignored = ProfilerSessions.lockAgent()) {
+                var shared = Thread.currentThread() == thread;
+                var profiler = shared ? getProfiler(collectCallTree) : build(collectCallTree, Thread.currentThread());
+                try {
+                    profiler.enable();
+                    try {
+                        body.execute();
+                    } finally {
+                        profiler.disable();
+                    }
+                    return profiler.snapshotDelta();
+                } finally {
+                    if (!shared) profiler.close();
+                }
+            }
+        }
+
+        /**
+         * Returns the shared profiler, which is disabled between measurements so its delta since the previous
+         * measurement is the allocation of the body.
+         */
+        private Profiler getProfiler(boolean collectCallTree) {
+            if (collectCallTree) {
+                if (callTreeProfiler == null) callTreeProfiler = build(true, thread);
+                return callTreeProfiler;
+            }
+
+            if (perTypeProfiler == null) perTypeProfiler = build(false, thread);
+            return perTypeProfiler;
+        }
+
+        private static Profiler build(boolean collectCallTree, Thread thread) {
+            var builder = new ProfilerBuilder()
+                    .withEnableImmediately(false)
+                    .withThreadIdFilter(Set.of(thread));
+            if (collectCallTree) builder.withCallTreeCollector(root -> {});
+            else builder.withPerTypeCollector(allocations -> {});
+            return builder.build();
+        }
+
+        @Override
+        public void close() {
+            try (var ignored = ProfilerSessions.lockAgent()) {
+                if (perTypeProfiler != null) perTypeProfiler.close();
+                if (callTreeProfiler != null) callTreeProfiler.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package dk.stuart.jtestmemprofiler.junit;
+
+import dk.stuart.jtestmemprofiler.CallTree;
+import dk.stuart.jtestmemprofiler.TypeAllocationMap;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.StringJoiner;
+
+/**
+ * Formats the failure message of an exceeded {@link AllocationBudget}.
+ */
+final class AllocationReport {
+    private static final int MAX_TYPES = 10;
+    private static final int MAX_PATH_FRAMES = 8;
+
+    private AllocationReport() {
+    }
+
+    static String budgetExceeded(long allocated, AllocationBudget budget, TypeAllocationMap perType, CallTree callTree, boolean pathsUnavailable) {
+        var report = new StringBuilder();
+        report.append(String.format("Allocation budget exceeded: allocated %,d bytes, budget %,d bytes", allocated, budget.maxBytes()));
+        if (budget.types().length > 0) {
+            var types = new StringJoiner(", ", " for ", "");
+            for (var type : budget.types()) {
+                types.add(type.getTypeName());
+            }
+            report.append(types);
+        }
+        report.append('\n');
+
+        if (perType != null && !perType.isEmpty()) {
+            var entries = new ArrayList<Map.Entry<String, Long>>(perType.size());
+            perType.forEach((type, allocation) -> entries.add(Map.entry(type, allocation)));
+            entries.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+
+            report.append("Allocation per type:\n");
+            for (var entry : entries.subList(0, Math.min(MAX_TYPES, entries.size()))) {
+                report.append(String.format("  %,14d  %s%n", entry.getValue(), TypeAllocationMap.typeName(entry.getKey())));
+            }
+            if (entries.size() > MAX_TYPES) report.append(String.format("  ... %d more types%n", entries.size() - MAX_TYPES));
+        }
+
+        if (callTree != null && budget.topPaths() > 0) {
+            report.append("Top allocation paths:\n");
+            for (var node : topNodes(callTree, budget.topPaths())) {
+                report.append(String.format("  %,14d  %s%n", callTree.getAllocationSize(node), path(callTree, node)));
+            }
+        } else if (pathsUnavailable) {
+            report.append("Top allocation paths are unavailable as invoking the test again failed\n");
+        } else if (!budget.rerunOnFailure()) {
+            report.append("Set rerunOnFailure = true to invoke the test again for the allocation per type and call paths\n");
+        }
+
+        return report.toString();
+    }
+
+    /**
+     * Returns the nodes with the highest direct allocation, highest first.
+     */
+    private static ArrayList<Integer> topNodes(CallTree callTree, int n) {
+        var nodes = new ArrayList<Integer>();
+        for (var node = 1; node < callTree.getNodeCount(); node++) {
+            if (callTree.getAllocationSize(node) > 0) nodes.add(node);
+        }
+        nodes.sort(Comparator.comparingLong(callTree::getAllocationSize).reversed());
+        return new ArrayList<>(nodes.subList(0, Math.min(n, nodes.size())));
+    }
+
+    /**
+     * Formats the call path of the node from the allocating frame towards the thread entry point.
+     */
+    private static String path(CallTree callTree, int node) {
+        var frames = new StringJoiner(" <- ");
+        var depth = 0;
+        for (var frame = node; frame != CallTree.ROOT; frame = callTree.getParent(frame)) {
+            if (depth++ == MAX_PATH_FRAMES) {
+                frames.add("...");
+                break;
+            }
+            frames.add(callTree.getFrameName(frame));
+        }
+        return frames.toString();
+    }
+}
@@ -0,0 +1,38 @@
+package dk.stuart.jtestmemprofiler.junit;
+
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.lang.annotation.*;
+
+/**
+ * Captures the allocation of a test body on the test thread into a binary profile, see
+ * {@link dk.stuart.jtestmemprofiler.ProfileWriter}, and publishes the total as the report entry
+ * {@code allocations.total}.
+ * <p>
+ * Profiles are written to {@link #directory()} named after the test class and method. Call trees are also written as
+ * an HTML flame graph. Applied to a class, every test of the class is captured.
+ * <p>
+ * Warmup invocations call the test method directly, bypassing the interceptors of extensions registered after this
+ * one and the {@code @BeforeEach} and {@code @AfterEach} methods, see {@link AllocationBudget}.
+ */
+@Target({ ElementType.METHOD, ElementType.TYPE, ElementType.ANNOTATION_TYPE })
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+@Inherited
+@ExtendWith(AllocationExtension.class)
+public @interface CaptureAllocations {
+    /**
+     * True to capture the call tree of the allocation, false to capture the allocation per type.
+     */
+    boolean callTree() default false;
+
+    /**
+     * The directory profiles are written to.
+     */
+    String directory() default "build/allocation-profiles";
+
+    /**
+     * The number of unprofiled invocations of the test body before the captured invocation.
+     */
+    int warmup() default 1;
+}
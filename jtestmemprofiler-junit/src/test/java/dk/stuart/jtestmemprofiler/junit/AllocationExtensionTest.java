@@ -0,0 +1,106 @@
+package dk.stuart.jtestmemprofiler.junit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ConditionEvaluationResult;
+import org.junit.jupiter.api.extension.ExecutionCondition;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.extension.ExtensionContext;
+import org.junit.platform.testkit.engine.EngineTestKit;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.platform.engine.discovery.DiscoverySelectors.selectClass;
+import static org.junit.platform.engine.discovery.DiscoverySelectors.selectMethod;
+import static org.junit.platform.testkit.engine.EventConditions.finishedWithFailure;
+import static org.junit.platform.testkit.engine.TestExecutionResultConditions.message;
+
+public class AllocationExtensionTest {
+    private static final String FIXTURES = "jtestmemprofiler.fixtures";
+
+    @Test
+    void allocationBudget_tests_failsTestsExceedingTheBudget() {
+        var results = EngineTestKit.engine("junit-jupiter")
+                .selectors(selectMethod(Fixtures.class, "withinBudget"), selectMethod(Fixtures.class, "overBudget"))
+                .configurationParameter(FIXTURES, "true")
+                .execute();
+
+        results.testEvents().assertStatistics(stats -> stats.started(2).succeeded(1).failed(1));
+        results.testEvents().failed().assertThatEvents().haveExactly(1, finishedWithFailure(
+                message(text -> text.contains("Allocation budget exceeded") && text.contains("byte[]"))));
+    }
+
+    @Test
+    void allocationBudget_withoutRerun_reportsOnlyMeasuredAllocation() {
+        var results = EngineTestKit.engine("junit-jupiter")
+                .selectors(selectMethod(Fixtures.class, "overBudgetWithoutRerun"))
+                .configurationParameter(FIXTURES, "true")
+                .execute();
+
+        results.testEvents().assertStatistics(stats -> stats.started(1).failed(1));
+        results.testEvents().failed().assertThatEvents().haveExactly(1, finishedWithFailure(
+                message(text -> text.contains("Allocation budget exceeded") && text.contains("rerunOnFailure") && !text.contains("Allocation per type"))));
+    }
+
+    @Test
+    void captureAllocations_test_writesProfile() {
+        var results = EngineTestKit.engine("junit-jupiter")
+                .selectors(selectClass(CaptureFixtures.class))
+                .configurationParameter(FIXTURES, "true")
+                .execute();
+
+        results.testEvents().assertStatistics(stats -> stats.started(1).succeeded(1));
+        assertThat(Files.exists(Path.of(CaptureFixtures.DIRECTORY, CaptureFixtures.class.getName() + ".captured.jtmp"))).isTrue();
+    }
+
+    /**
+     * Only runs the fixtures when launched through the engine test kit.
+     */
+    static class FixturesCondition implements ExecutionCondition {
+        @Override
+        public ConditionEvaluationResult evaluateExecutionCondition(ExtensionContext context) {
+            return context.getConfigurationParameter(FIXTURES).isPresent()
+                    ? ConditionEvaluationResult.enabled("Run through the engine test kit")
+                    : ConditionEvaluationResult.disabled("Fixture");
+        }
+    }
+
+    @ExtendWith(FixturesCondition.class)
+    static class Fixtures {
+        @Test
+        @AllocationBudget(maxBytes = 1024 * 1024)
+        void withinBudget() {
+            blackhole(new byte[1024]);
+        }
+
+        @Test
+        @AllocationBudget(maxBytes = 1024, rerunOnFailure = true)
+        void overBudget() {
+            blackhole(new byte[64 * 1024]);
+        }
+
+        @Test
+        @AllocationBudget(maxBytes = 1024)
+        void overBudgetWithoutRerun() {
+            blackhole(new byte[64 * 1024]);
+        }
+    }
+
+    @ExtendWith(FixturesCondition.class)
+    static class CaptureFixtures {
+        static final String DIRECTORY = "build/allocation-profiles-test";
+
+        @Test
+        @CaptureAllocations(directory = DIRECTORY)
+        void captured() {
+            blackhole(new byte[1024]);
+        }
+    }
+
+    private static Object sink;
+
+    private static void blackhole(Object value) {
+        sink = value;
+    }
+}
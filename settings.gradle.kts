@@ -1,2 +1,4 @@
-rootProject.name = "jtestmemprofiler"
-
+rootProject.name = "jtestmemprofiler"
+
+include("jtestmemprofiler-jmh")
+include("jtestmemprofiler-junit")
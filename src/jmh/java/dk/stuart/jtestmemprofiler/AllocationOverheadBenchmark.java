@@ -0,0 +1,70 @@
+package dk.stuart.jtestmemprofiler;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per-allocation overhead of each collector, filter and sample rate on an allocation-heavy workload,
+ * against the same workload without a profiler.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AllocationOverheadBenchmark {
+    private static final int ALLOCATIONS = 64;
+
+    /**
+     * The profiler of {@link #profiled(Blackhole, Session)}. The parameters only apply to it, so the unprofiled
+     * {@link #baseline(Blackhole)} runs once rather than once per combination.
+     */
+    @State(Scope.Thread)
+    public static class Session {
+        @Param({ "totals", "perType", "callTree" })
+        public String collector;
+
+        @Param({ "none", "type", "thread" })
+        public String filter;
+
+        @Param({ "0", "1024", "65536" })
+        public int sampleRate;
+
+        private Profiler profiler;
+
+        /**
+         * Starts a session per iteration, so call trees and per-type results do not grow over the whole trial.
+         */
+        @Setup(Level.Iteration)
+        public void setUp() {
+            profiler = BenchmarkProfilers.builder(collector, filter, sampleRate).build();
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            profiler.close();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ALLOCATIONS)
+    public void baseline(Blackhole blackhole) {
+        allocate(blackhole);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ALLOCATIONS)
+    public void profiled(Blackhole blackhole, Session session) {
+        allocate(blackhole);
+    }
+
+    private static void allocate(Blackhole blackhole) {
+        for (var i = 0; i < ALLOCATIONS; i++) {
+            blackhole.consume(new byte[64]);
+            blackhole.consume(new Object());
+            blackhole.consume(new char[16]);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package dk.stuart.jtestmemprofiler;
+
+/**
+ * Builders of the collector and filter combinations measured by the benchmarks.
+ */
+final class BenchmarkProfilers {
+    private BenchmarkProfilers() {
+    }
+
+    /**
+     * Returns a builder for the named collector (totals, perType or callTree) and filter (none, type or thread),
+     * filtering threads to the calling thread.
+     */
+    static ProfilerBuilder builder(String collector, String filter, int sampleRate) {
+        var builder = new ProfilerBuilder().withSampleRate(sampleRate);
+        switch (collector) {
+            case "totals" -> builder.withLongTotalsCollector(total -> {});
+            case "perType" -> builder.withPerTypeCollector(new TypeAllocationMap());
+            case "callTree" -> builder.withCallTreeCollector(root -> {});
+            default -> throw new IllegalArgumentException("Unknown collector: " + collector);
+        }
+        switch (filter) {
+            case "none" -> {}
+            case "type" -> builder.withFilter(AllocationFilter.types(byte[].class));
+            case "thread" -> builder.withFilter(AllocationFilter.threads(Thread.currentThread()));
+            default -> throw new IllegalArgumentException("Unknown filter: " + filter);
+        }
+        return builder;
+    }
+}
@@ -0,0 +1,157 @@
+package dk.stuart.jtestmemprofiler;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures traversal of call trees delivered as {@link TrieNode} views over a {@link CallTree}, and conversion of
+ * object-per-node tries as returned by the native agent, on synthetic trees.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class CallTreeTraversalBenchmark {
+    private static final int FANOUT = 8;
+    private static final int DISTINCT_FRAMES = 1000;
+
+    @State(Scope.Benchmark)
+    public static class Traversal {
+        @Param({ "1000", "10000", "100000", "1000000", "10000000" })
+        public int nodes;
+
+        TrieNode root;
+        PrintStream output;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            root = syntheticTree(nodes).getRoot();
+            output = new PrintStream(OutputStream.nullOutputStream());
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Conversion {
+        @Param({ "1000", "10000", "100000", "1000000" })
+        public int nodes;
+
+        TrieNode root;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            root = syntheticTrie(nodes);
+        }
+    }
+
+    @Benchmark
+    public void visitLeaf(Traversal state, Blackhole blackhole) {
+        state.root.visitLeaf(stack -> blackhole.consume(stack.peekLast()));
+    }
+
+    @Benchmark
+    public void visitSelfAllocators(Traversal state, Blackhole blackhole) {
+        state.root.visitSelfAllocators(stack -> blackhole.consume(stack.peekLast()));
+    }
+
+    @Benchmark
+    public void visitLeafPaths(Traversal state, Blackhole blackhole) {
+        state.root.visitLeafPaths(path -> blackhole.consume(path.getLastNode()));
+    }
+
+    @Benchmark
+    public void write(Traversal state) {
+        state.root.write(state.output);
+    }
+
+    @Benchmark
+    public CallTree convert(Conversion state) {
+        return CallTree.of(state.root);
+    }
+
+    @Benchmark
+    public void visitLeafUnconverted(Conversion state, Blackhole blackhole) {
+        state.root.visitLeaf(stack -> blackhole.consume(stack.peekLast()));
+    }
+
+    /**
+     * Builds a pre-order tree of the specified number of nodes where every inner node has {@link #FANOUT} children,
+     * leaves allocate 16 bytes and every other inner node allocates 8 bytes itself.
+     */
+    static CallTree syntheticTree(int nodes) {
+        var builder = new CallTree.Builder(false);
+        var parents = new int[nodes];
+        var sizes = new long[nodes];
+        var stack = new int[64];
+        var stackDepths = new int[64];
+        var stackParents = new int[64];
+        var size = 0;
+        var depth = (int) Math.ceil(Math.log(nodes) / Math.log(FANOUT));
+
+        builder.add(CallTree.NO_NODE, CallTree.NO_NODE, 0, 0);
+        parents[CallTree.ROOT] = CallTree.NO_NODE;
+        for (var i = FANOUT - 1; i >= 0; i--) {
+            stack[size] = i;
+            stackDepths[size] = 1;
+            stackParents[size++] = CallTree.ROOT;
+        }
+
+        var count = 1;
+        while (size > 0 && count < nodes) {
+            size--;
+            var nodeDepth = stackDepths[size];
+            var parent = stackParents[size];
+            var frame = FrameTable.global().intern("Lcom/example/Frame" + (stack[size] * 31 + nodeDepth) % DISTINCT_FRAMES + ";method");
+            var leaf = nodeDepth == depth;
+            var allocationSize = leaf ? 16L : (count % 2) * 8L;
+            var index = builder.add(parent, frame, allocationSize, 0);
+            parents[index] = parent;
+            sizes[index] = allocationSize;
+            count++;
+
+            if (!leaf) {
+                if (size + FANOUT > stack.length) {
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                    stackDepths = Arrays.copyOf(stackDepths, stack.length);
+                    stackParents = Arrays.copyOf(stackParents, stack.length);
+                }
+                for (var i = FANOUT - 1; i >= 0; i--) {
+                    stack[size] = i;
+                    stackDepths[size] = nodeDepth + 1;
+                    stackParents[size++] = index;
+                }
+            }
+        }
+
+        for (var node = count - 1; node >= 0; node--) {
+            var accumulated = builder.getChildAccumulatedAllocationSize(node) + sizes[node];
+            builder.setChildAccumulatedAllocationSize(node, accumulated);
+            if (parents[node] != CallTree.NO_NODE) {
+                builder.setChildAccumulatedAllocationSize(parents[node], builder.getChildAccumulatedAllocationSize(parents[node]) + accumulated);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Builds the object-per-node trie equivalent of {@link #syntheticTree(int)}.
+     */
+    static TrieNode syntheticTrie(int nodes) {
+        var tree = syntheticTree(nodes);
+        var tries = new TrieNode[tree.getNodeCount()];
+        for (var node = tree.getNodeCount() - 1; node >= 0; node--) {
+            var children = new HashMap<String, TrieNode>();
+            for (var child = tree.getFirstChild(node); child != CallTree.NO_NODE; child = tree.getNextSibling(child)) {
+                children.put(tree.getFrameName(child), tries[child]);
+            }
+            tries[node] = new TrieNode(children, tree.getAllocationSize(node), tree.getChildAccumulatedAllocationSize(node));
+        }
+        return tries[CallTree.ROOT];
+    }
+}
@@ -0,0 +1,52 @@
+package dk.stuart.jtestmemprofiler;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of setting up and tearing down a profiling session, and of toggling an existing session.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProfilerSessionBenchmark {
+    @Param({ "totals", "perType", "callTree" })
+    public String collector;
+
+    @Param({ "none", "type", "thread" })
+    public String filter;
+
+    /**
+     * A profiler toggled by {@link #disableAndEnable(Session)}. It is only set up for that benchmark, as building a
+     * profiler in {@link #buildAndClose()} replaces the collector and filter installed in the agent.
+     */
+    @State(Scope.Thread)
+    public static class Session {
+        private Profiler profiler;
+
+        @Setup(Level.Iteration)
+        public void setUp(ProfilerSessionBenchmark benchmark) {
+            profiler = BenchmarkProfilers.builder(benchmark.collector, benchmark.filter, 0).build();
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            profiler.close();
+        }
+    }
+
+    @Benchmark
+    public void buildAndClose() {
+        BenchmarkProfilers.builder(collector, filter, 0).build().close();
+    }
+
+    @Benchmark
+    public void disableAndEnable(Session session) {
+        session.profiler.disable();
+        session.profiler.enable();
+    }
+}
@@ -0,0 +1,143 @@
+package dk.stuart.jtestmemprofiler;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The backend recording allocation through the native JVMTI agent, which must be loaded through {@code -agentpath}.
+ */
+final class AgentBackend implements ProfilerBackend {
+	private static final boolean AVAILABLE = NativeProfiler.isAvailable();
+	private static final long RETIRED_FILTER_GRACE_NANOS = TimeUnit.SECONDS.toNanos(1);
+	private static final int MAX_RETIRED_FILTERS = 16;
+
+	private final NativeCollector collector;
+	private NativeFilter filter;
+	private final ArrayDeque<RetiredFilter> retiredFilters = new ArrayDeque<>();
+	private final int sampleRate;
+	private final NativeProfiler profiler = new NativeProfiler();
+	private boolean enabled = false;
+
+	AgentBackend(NativeCollector collector, NativeFilter filter, int sampleRate) {
+		this.collector = collector;
+		this.filter = filter;
+		this.sampleRate = sampleRate;
+		profiler.doSetCollector(collector);
+		profiler.doSetFilter(filter);
+	}
+
+	/**
+	 * Gets a value indicating whether the native agent has been loaded into the JVM.
+	 */
+	static boolean isAvailable() {
+		return AVAILABLE;
+	}
+
+	/**
+	 * Enables the agent. The native agent records into a single collector, so enabling also reinstalls the collector
+	 * and filter of this backend in case another profiler has been built or closed since.
+	 */
+	@Override
+	public void enable() {
+		profiler.doSetCollector(collector);
+		profiler.doSetFilter(filter);
+		profiler.doEnable();
+		enabled = true;
+		profiler.doSetSampleRate(sampleRate);
+	}
+
+	@Override
+	public void disable() {
+		profiler.doDisable();
+		enabled = false;
+		closeRetiredFilters();
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return profiler.doIsEnabled();
+	}
+
+	/**
+	 * Installs a native filter of the threads, replacing the previous filter in the agent if enabled. While enabled,
+	 * allocating threads may still be evaluating the previous filter, so it is retired rather than freed. A thread
+	 * evaluates a filter for the duration of a single allocation event, so retired filters are freed once they have been
+	 * replaced for a second or more than 16 filters have been retired since, and all of them once the backend is
+	 * disabled or closed.
+	 */
+	@Override
+	public void threadsChanged(Set<Thread> threads) {
+		var previous = filter;
+		filter = new NativeThreadIdFilter(threads);
+		if (enabled) profiler.doSetFilter(filter);
+		if (previous == null) return;
+
+		if (enabled) {
+			var now = System.nanoTime();
+			retiredFilters.add(new RetiredFilter(previous, now));
+			closeExpiredFilters(now);
+		} else {
+			previous.close();
+		}
+	}
+
+	private void closeExpiredFilters(long now) {
+		while (!retiredFilters.isEmpty() && (retiredFilters.size() > MAX_RETIRED_FILTERS
+				|| now - retiredFilters.peek().retiredAt() >= RETIRED_FILTER_GRACE_NANOS)) {
+			retiredFilters.poll().filter().close();
+		}
+	}
+
+	private void closeRetiredFilters() {
+		for (var retired : retiredFilters) {
+			retired.filter().close();
+		}
+		retiredFilters.clear();
+	}
+
+	@Override
+	public long readTotal() {
+		if (collector instanceof NativePerTypeCollector perTypeCollector)
+			return perTypeCollector.getTotal();
+
+		if (collector instanceof NativeCallTreeCollector callTreeCollector)
+			return callTreeCollector.getTotal();
+
+		return ((NativeTotalsCollector)collector).getAllocationTotal();
+	}
+
+	@Override
+	public HashMap<String, Long> readPerType() {
+		return collector instanceof NativePerTypeCollector perTypeCollector ? perTypeCollector.getAllocations() : null;
+	}
+
+	@Override
+	public CallTree readCallTree() {
+		return collector instanceof NativeCallTreeCollector callTreeCollector ? callTreeCollector.getCallTree() : null;
+	}
+
+	@Override
+	public boolean collectsPerType() {
+		return collector instanceof NativePerTypeCollector;
+	}
+
+	@Override
+	public boolean collectsCallTree() {
+		return collector instanceof NativeCallTreeCollector;
+	}
+
+	@Override
+	public void close() {
+		collector.close();
+		profiler.doSetCollector(null);
+
+		if (filter != null) {
+			filter.close();
+			profiler.doSetFilter(null);
+		}
+		closeRetiredFilters();
+	}
+
+	private record RetiredFilter(NativeFilter filter, long retiredAt) {
+	}
+}
@@ -0,0 +1,83 @@
+package dk.stuart.jtestmemprofiler;
+
+/**
+ * An estimate of the true allocation behind sampled allocation, see {@link AllocationEstimator}.
+ */
+@SuppressWarnings("unused")
+public final class AllocationEstimate {
+    private final long sampledBytes;
+    private final double sampleCount;
+    private final double estimatedBytes;
+    private final double lowerBound;
+    private final double upperBound;
+    private final double confidence;
+    private final boolean scaled;
+
+    AllocationEstimate(long sampledBytes, double sampleCount, double estimatedBytes, double lowerBound, double upperBound, double confidence, boolean scaled) {
+        this.sampledBytes = sampledBytes;
+        this.sampleCount = sampleCount;
+        this.estimatedBytes = estimatedBytes;
+        this.lowerBound = lowerBound;
+        this.upperBound = upperBound;
+        this.confidence = confidence;
+        this.scaled = scaled;
+    }
+
+    /**
+     * Gets the allocation recorded by the profiler.
+     */
+    public long getSampledBytes() {
+        return sampledBytes;
+    }
+
+    /**
+     * Gets the number of recorded objects, derived from the recorded allocation and the object size, or NaN if the
+     * object size is unknown.
+     */
+    public double getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * Gets the estimated true allocation.
+     */
+    public double getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    /**
+     * Gets the lower bound of the confidence interval of the true allocation, or NaN if not {@link #isScaled()}.
+     */
+    public double getLowerBound() {
+        return lowerBound;
+    }
+
+    /**
+     * Gets the upper bound of the confidence interval of the true allocation, or NaN if not {@link #isScaled()}.
+     */
+    public double getUpperBound() {
+        return upperBound;
+    }
+
+    /**
+     * Gets the confidence level of the interval, e.g. 0.95.
+     */
+    public double getConfidence() {
+        return confidence;
+    }
+
+    /**
+     * Gets a value indicating whether the recorded allocation was scaled to an estimate of the true allocation with a
+     * confidence interval. Otherwise the size of the objects is unknown, e.g. for an array type without a size given
+     * to the estimator, and the estimate is the recorded allocation, a lower bound of the true allocation.
+     */
+    public boolean isScaled() {
+        return scaled;
+    }
+
+    @Override
+    public String toString() {
+        if (!scaled) return String.format("at least %d sampled bytes, not scaled as the object size is unknown", sampledBytes);
+        return String.format("%.0f bytes [%.0f, %.0f] at %.0f%% from %d sampled bytes", estimatedBytes, lowerBound, upperBound, confidence * 100, sampledBytes);
+    }
+}
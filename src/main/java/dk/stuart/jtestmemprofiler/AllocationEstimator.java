@@ -0,0 +1,239 @@
+package dk.stuart.jtestmemprofiler;
+
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Estimates the true allocation behind the results of a profiler with a sample rate, see
+ * {@link ProfilerBuilder#withSampleRate(int)}, so that results taken at different sample rates can be compared with
+ * each other and with unsampled results.
+ * <p>
+ * With a mean sampling interval of {@code R} bytes, an object of {@code s} bytes is recorded with probability
+ * {@code 1 - exp(-s/R)}, so every recorded object stands for {@code s / (1 - exp(-s/R))} bytes of allocation. The
+ * agent reports the recorded bytes per type rather than per object, so the estimator divides them by the size of an
+ * object of the type to get the number of recorded objects. The shallow size of a class is derived from its fields
+ * assuming compressed references, so its estimate is only as accurate as that size; the size of an array type must be
+ * given through {@link #withObjectSize(Class, long)}. The confidence interval treats the number of recorded objects as
+ * Poisson distributed.
+ * <p>
+ * Arrays without a given size, and allocation of unknown types such as call-tree nodes, are not scaled, as no single
+ * object size describes them: their estimate is the recorded allocation, which is a lower bound of the true allocation,
+ * without a confidence interval, see {@link AllocationEstimate#isScaled()}.
+ * <p>
+ * The overhead of a sampled profiler is proportional to the number of recorded objects, about one per {@code R} bytes
+ * allocated in small objects. {@link #sampleRateForOverhead(double, double)} and
+ * {@link #sampleRateForError(long, double, double)} choose a sample rate for a target number of samples per second or
+ * a target relative error.
+ */
+@SuppressWarnings("unused")
+public final class AllocationEstimator {
+    private static final long OBJECT_HEADER_SIZE = 12;
+    private static final long MIN_OBJECT_SIZE = 16;
+    private static final long UNKNOWN_SIZE = 0;
+
+    private final int sampleRate;
+    private double confidence = 0.95;
+    private double z = normalQuantile(0.975);
+    private final Map<String, Long> objectSizes = new HashMap<>();
+
+    /**
+     * Constructs an estimator for results recorded with the specified sample rate, where 0 records every allocation.
+     */
+    public AllocationEstimator(int sampleRate) {
+        if (sampleRate < 0) throw new IllegalArgumentException("Sample rate must not be negative");
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Sets the confidence level of the intervals, default 0.95.
+     * @return this estimator
+     */
+    public AllocationEstimator withConfidence(double confidence) {
+        if (!(confidence > 0 && confidence < 1)) throw new IllegalArgumentException("Confidence must be between 0 and 1");
+        this.confidence = confidence;
+        z = normalQuantile((1 + confidence) / 2);
+        return this;
+    }
+
+    /**
+     * Sets the mean size in bytes of the objects of a type, e.g. the typical size of a {@code byte[]} buffer.
+     * @return this estimator
+     */
+    public synchronized AllocationEstimator withObjectSize(Class<?> type, long meanBytes) {
+        if (meanBytes <= 0) throw new IllegalArgumentException("Object size must be positive");
+        objectSizes.put(type.descriptorString(), meanBytes);
+        return this;
+    }
+
+    /**
+     * Gets the sample rate the estimator scales for.
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Estimates the true allocation of a type from its recorded allocation.
+     * @param type Class descriptor of the type, e.g. {@code [B}, or null for allocation of unknown types such as the
+     *             allocation of a call-tree node
+     * @param sampledBytes Recorded allocation
+     */
+    public AllocationEstimate estimate(String type, long sampledBytes) {
+        var objectSize = getObjectSize(type);
+        var samples = objectSize == UNKNOWN_SIZE ? Double.NaN : (double) sampledBytes / objectSize;
+        if (sampleRate == 0)
+            return new AllocationEstimate(sampledBytes, samples, sampledBytes, sampledBytes, sampledBytes, confidence, true);
+        if (objectSize == UNKNOWN_SIZE)
+            return new AllocationEstimate(sampledBytes, samples, sampledBytes, Double.NaN, Double.NaN, confidence, false);
+
+        var weight = objectSize / -Math.expm1(-(double) objectSize / sampleRate);
+        var lower = Math.pow(Math.max(0.0, Math.sqrt(samples) - z / 2), 2);
+        var upper = Math.pow(Math.sqrt(samples) + z / 2, 2);
+        return new AllocationEstimate(sampledBytes, samples, samples * weight, Math.max(sampledBytes, lower * weight), upper * weight, confidence, true);
+    }
+
+    /**
+     * Estimates the true allocation of every type from the recorded allocation per type.
+     * @return the estimates by class descriptor
+     */
+    public Map<String, AllocationEstimate> estimate(TypeAllocationMap perType) {
+        var result = new HashMap<String, AllocationEstimate>(perType.size() * 2);
+        perType.forEach((type, sampledBytes) -> result.put(type, estimate(type, sampledBytes)));
+        return result;
+    }
+
+    /**
+     * Estimates the true total allocation from the recorded allocation per type, with a confidence interval
+     * combining the variance of the estimate of each type. If the recorded allocation of any type is not scaled, the
+     * total is not scaled either: its estimate adds the recorded allocation of those types to the estimates of the
+     * others, without a confidence interval.
+     */
+    public AllocationEstimate estimateTotal(TypeAllocationMap perType) {
+        long sampledBytes = 0;
+        double samples = 0;
+        double estimatedBytes = 0;
+        double variance = 0;
+        var scaled = true;
+        for (var estimate : estimate(perType).values()) {
+            sampledBytes += estimate.getSampledBytes();
+            estimatedBytes += estimate.getEstimatedBytes();
+            if (!estimate.isScaled() || Double.isNaN(estimate.getSampleCount())) {
+                scaled &= estimate.isScaled() || estimate.getSampledBytes() == 0;
+                continue;
+            }
+
+            samples += estimate.getSampleCount();
+            if (estimate.getSampleCount() > 0) {
+                var weight = estimate.getEstimatedBytes() / estimate.getSampleCount();
+                variance += estimate.getSampleCount() * weight * weight;
+            }
+        }
+
+        if (sampleRate == 0)
+            return new AllocationEstimate(sampledBytes, samples, sampledBytes, sampledBytes, sampledBytes, confidence, true);
+        if (!scaled)
+            return new AllocationEstimate(sampledBytes, samples, estimatedBytes, Double.NaN, Double.NaN, confidence, false);
+
+        var margin = z * Math.sqrt(variance);
+        return new AllocationEstimate(sampledBytes, samples, estimatedBytes, Math.max(sampledBytes, estimatedBytes - margin), estimatedBytes + margin, confidence, true);
+    }
+
+    /**
+     * Chooses the sample rate recording about the specified number of objects per second at the specified allocation
+     * rate, which bounds the overhead of sampling independently of the workload.
+     * @param allocationBytesPerSecond Allocation rate of the workload, e.g. measured by a totals collector without
+     *                                 sampling or an {@link AllocationSampler}
+     * @param samplesPerSecond Target number of recorded objects per second
+     * @return the sample rate, at least 1
+     */
+    public static int sampleRateForOverhead(double allocationBytesPerSecond, double samplesPerSecond) {
+        if (!(samplesPerSecond > 0)) throw new IllegalArgumentException("Samples per second must be positive");
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, Math.ceil(allocationBytesPerSecond / samplesPerSecond)));
+    }
+
+    /**
+     * Chooses the largest sample rate that estimates an allocation of the specified size in small objects within the
+     * relative error at the confidence level.
+     * @param bytes Smallest allocation to estimate, e.g. of the least allocating type of interest
+     * @param relativeError Target half-width of the confidence interval relative to the allocation, e.g. 0.05
+     * @param confidence Confidence level, e.g. 0.95
+     * @return the sample rate, or 0 if every allocation must be recorded
+     */
+    public static int sampleRateForError(long bytes, double relativeError, double confidence) {
+        if (!(relativeError > 0)) throw new IllegalArgumentException("Relative error must be positive");
+        if (!(confidence > 0 && confidence < 1)) throw new IllegalArgumentException("Confidence must be between 0 and 1");
+
+        var z = normalQuantile((1 + confidence) / 2);
+        var samples = z * z / (relativeError * relativeError);
+        var sampleRate = Math.floor(bytes / samples);
+        return sampleRate < 1 ? 0 : (int) Math.min(Integer.MAX_VALUE, sampleRate);
+    }
+
+    /**
+     * Gets the size of an object of the type, or {@link #UNKNOWN_SIZE} for arrays without a given size and unknown
+     * types.
+     */
+    private synchronized long getObjectSize(String type) {
+        if (type == null) return UNKNOWN_SIZE;
+        return objectSizes.computeIfAbsent(type, this::deriveObjectSize);
+    }
+
+    private long deriveObjectSize(String descriptor) {
+        if (descriptor.charAt(0) == '[') return UNKNOWN_SIZE;
+
+        var name = descriptor.charAt(0) == 'L' && descriptor.endsWith(";")
+                ? descriptor.substring(1, descriptor.length() - 1).replace('/', '.')
+                : descriptor.replace('/', '.');
+        try {
+            return shallowSize(Class.forName(name, false, Thread.currentThread().getContextClassLoader()));
+        } catch (ClassNotFoundException | LinkageError e) {
+            return MIN_OBJECT_SIZE;
+        }
+    }
+
+    /**
+     * Estimates the size of an instance of the class from its fields, assuming compressed class pointers and
+     * references and ignoring field packing.
+     */
+    static long shallowSize(Class<?> type) {
+        var size = OBJECT_HEADER_SIZE;
+        for (var current = type; current != null; current = current.getSuperclass()) {
+            for (var field : current.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers())) continue;
+
+                var fieldType = field.getType();
+                if (fieldType == long.class || fieldType == double.class) size += 8;
+                else if (fieldType == int.class || fieldType == float.class) size += 4;
+                else if (fieldType == short.class || fieldType == char.class) size += 2;
+                else if (fieldType == byte.class || fieldType == boolean.class) size += 1;
+                else size += 4;
+            }
+        }
+        return Math.max(MIN_OBJECT_SIZE, (size + 7) & ~7L);
+    }
+
+    /**
+     * Computes the quantile of the standard normal distribution through Acklam's rational approximation, with a
+     * relative error below 1.2e-9.
+     */
+    static double normalQuantile(double p) {
+        final double[] a = { -3.969683028665376e+01, 2.209460984245205e+02, -2.759285104469687e+02, 1.383577518672690e+02, -3.066479806614716e+01, 2.506628277459239e+00 };
+        final double[] b = { -5.447609879822406e+01, 1.615858368580409e+02, -1.556989798598866e+02, 6.680131188771972e+01, -1.328068155288572e+01 };
+        final double[] c = { -7.784894002430293e-03, -3.223964580411365e-01, -2.400758277161838e+00, -2.549732539343734e+00, 4.374664141464968e+00, 2.938163982698783e+00 };
+        final double[] d = { 7.784695709041462e-03, 3.224671290700398e-01, 2.445134137142996e+00, 3.754408661907416e+00 };
+
+        if (p < 0.02425) {
+            var q = Math.sqrt(-2 * Math.log(p));
+            return (((((c[0] * q + c[1]) * q + c[2]) * q + c[3]) * q + c[4]) * q + c[5]) / ((((d[0] * q + d[1]) * q + d[2]) * q + d[3]) * q + 1);
+        }
+        if (p > 1 - 0.02425) {
+            var q = Math.sqrt(-2 * Math.log(1 - p));
+            return -(((((c[0] * q + c[1]) * q + c[2]) * q + c[3]) * q + c[4]) * q + c[5]) / ((((d[0] * q + d[1]) * q + d[2]) * q + d[3]) * q + 1);
+        }
+
+        var q = p - 0.5;
+        var r = q * q;
+        return (((((a[0] * r + a[1]) * r + a[2]) * r + a[3]) * r + a[4]) * r + a[5]) * q / (((((b[0] * r + b[1]) * r + b[2]) * r + b[3]) * r + b[4]) * r + 1);
+    }
+}
@@ -0,0 +1,327 @@
+package dk.stuart.jtestmemprofiler;
+
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+import jdk.jfr.consumer.RecordedClass;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Records the allocation size histograms of a {@link Profiler} by sampling the allocation events of JDK Flight
+ * Recorder, as the native agent aggregates bytes per type without the size of each object.
+ * <p>
+ * JFR emits an event for the object allocated when a thread-local allocation buffer is refilled, weighted by the size
+ * of the new buffer, and an event for every object allocated outside a buffer. Objects allocated outside a buffer are
+ * therefore recorded exactly, while the object sampled at a refill stands for the whole buffer: it is counted as the
+ * buffer size divided by its own size, the inverse of the chance of sampling an object of its size, so the counts of
+ * small objects are estimates. Sites are the top frame of the stack trace of each event, the method that allocated
+ * the object even if it is a library method such as {@code Arrays.copyOf}.
+ * <p>
+ * To keep JFR off the path of enabling and disabling profiling, a single recording runs from the construction of the
+ * recorder until it is closed, and enabling and disabling profiling only commits a marker event. The recording is
+ * read when the histograms are read or cleared, counting the events between the markers of the recorder, and replaced
+ * by a new recording. The recording costs some throughput for the allocating threads of the JVM and some disk space
+ * until read, also while profiling is disabled.
+ */
+final class AllocationEventRecorder {
+    private static final String IN_NEW_TLAB = "jdk.ObjectAllocationInNewTLAB";
+    private static final String OUTSIDE_TLAB = "jdk.ObjectAllocationOutsideTLAB";
+    private static final String WINDOW = "dk.stuart.jtestmemprofiler.ProfilingWindow";
+    private static final AtomicLong RECORDER_IDS = new AtomicLong();
+
+    private final long id = RECORDER_IDS.incrementAndGet();
+    private final Set<Long> threadIds;
+    private final ThreadRegistry registry;
+    private final ThreadRegistry.MembershipListener listener;
+    private final Predicate<String> types;
+    private final boolean perSite;
+    private final HashMap<String, AllocationHistogram> perType = new HashMap<>();
+    private final HashMap<String, AllocationHistogram> perSiteHistograms;
+    private Recording recording;
+    private boolean enabled = false;
+    private long sequence = 0;
+    /** The marker the current recording is read from, or 0 for its start, and whether profiling was enabled then. */
+    private long fromMarker = 0;
+    private boolean enabledAtFromMarker = false;
+
+    /**
+     * Constructs a recorder and starts recording allocation events.
+     * @param threads Threads to record, or null for every thread unless a registry is given
+     * @param registry Live threads to record, where a thread is recorded if it was registered while recording, or null
+     * @param types Class descriptors to record, or null for every type
+     * @param perSite Whether to also record a histogram per allocating method
+     */
+    @SuppressWarnings("deprecation")
+    AllocationEventRecorder(Set<Thread> threads, ThreadRegistry registry, Predicate<String> types, boolean perSite) {
+        this.registry = registry;
+        this.types = types;
+        this.perSite = perSite;
+        this.perSiteHistograms = perSite ? new HashMap<>() : null;
+
+        if (threads != null) {
+            threadIds = new HashSet<>();
+            for (var thread : threads) {
+                threadIds.add(thread.getId());
+            }
+        } else {
+            threadIds = registry == null ? null : ConcurrentHashMap.newKeySet();
+        }
+
+        if (registry == null) {
+            listener = null;
+        } else {
+            listener = new ThreadRegistry.MembershipListener() {
+                @Override
+                public void registered(Thread thread) {
+                    threadIds.add(thread.getId());
+                }
+
+                @Override
+                public void unregistered(Thread thread) {
+                }
+            };
+            registry.addMembershipListener(listener);
+        }
+        recording = startRecording();
+    }
+
+    /**
+     * Marks the start of profiling, from which allocation events are added to the histograms.
+     */
+    synchronized void start() {
+        if (enabled || recording == null) return;
+        enabled = true;
+        mark(WindowEvent.ENABLED);
+    }
+
+    /**
+     * Marks the end of profiling, after which allocation events are no longer added to the histograms.
+     */
+    synchronized void stop() {
+        if (!enabled || recording == null) return;
+        enabled = false;
+        mark(WindowEvent.DISABLED);
+    }
+
+    /**
+     * Clears the histograms, discarding the events recorded so far.
+     */
+    synchronized void clear() {
+        if (recording != null) rotate(false);
+        perType.clear();
+        if (perSite) perSiteHistograms.clear();
+    }
+
+    /**
+     * Adds the events recorded while profiling to the histograms and gets a copy of the histograms.
+     * @throws UncheckedIOException if the recording cannot be read
+     */
+    synchronized AllocationHistograms read() {
+        if (recording != null) rotate(true);
+        return new AllocationHistograms(copy(perType), perSite ? copy(perSiteHistograms) : null);
+    }
+
+    /**
+     * Stops recording without reading the recorded events and stops tracking the threads of the registry.
+     */
+    synchronized void close() {
+        if (recording != null) {
+            recording.close();
+            recording = null;
+        }
+        if (registry != null) registry.removeMembershipListener(listener);
+    }
+
+    private Recording startRecording() {
+        var started = new Recording();
+        started.setName("jtestmemprofiler-histograms");
+        started.setToDisk(true);
+        started.enable(WindowEvent.class);
+        var inNewTlab = started.enable(IN_NEW_TLAB);
+        var outsideTlab = started.enable(OUTSIDE_TLAB);
+        if (perSite) {
+            inNewTlab.withStackTrace();
+            outsideTlab.withStackTrace();
+        } else {
+            inNewTlab.withoutStackTrace();
+            outsideTlab.withoutStackTrace();
+        }
+        started.start();
+        return started;
+    }
+
+    private long mark(int kind) {
+        var event = new WindowEvent();
+        event.recorder = id;
+        event.sequence = ++sequence;
+        event.kind = kind;
+        event.commit();
+        return event.sequence;
+    }
+
+    /**
+     * Replaces the recording by a new recording, both recording a boundary marker, and reads the events of the previous
+     * recording up to the marker unless discarded.
+     */
+    private void rotate(boolean read) {
+        var previous = recording;
+        recording = startRecording();
+        var boundary = mark(WindowEvent.BOUNDARY);
+        try {
+            previous.stop();
+            if (read) read(previous, boundary);
+        } finally {
+            previous.close();
+        }
+        fromMarker = boundary;
+        enabledAtFromMarker = enabled;
+    }
+
+    private void read(Recording stopped, long toMarker) {
+        try {
+            var file = Files.createTempFile("jtestmemprofiler", ".jfr");
+            try {
+                stopped.dump(file);
+                var windows = readWindows(file, toMarker);
+                if (windows.length == 0) return;
+                try (var events = new RecordingFile(file)) {
+                    while (events.hasMoreEvents()) {
+                        var event = events.readEvent();
+                        if (isInWindow(windows, epochNanos(event.getStartTime()))) record(event);
+                    }
+                }
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read the allocation events", e);
+        }
+    }
+
+    /**
+     * Reads the markers of the recorder into the windows while profiling was enabled, as pairs of start and end times.
+     */
+    private long[] readWindows(Path file, long toMarker) throws IOException {
+        var markers = new TreeMap<Long, RecordedEvent>();
+        try (var events = new RecordingFile(file)) {
+            while (events.hasMoreEvents()) {
+                var event = events.readEvent();
+                if (event.getEventType().getName().equals(WINDOW) && event.getLong("recorder") == id) {
+                    var marker = event.getLong("sequence");
+                    if (marker >= fromMarker && marker <= toMarker) markers.put(marker, event);
+                }
+            }
+        }
+
+        var windows = new long[16];
+        var count = 0;
+        var open = enabledAtFromMarker;
+        var start = fromMarker == 0 || !markers.containsKey(fromMarker) ? Long.MIN_VALUE : epochNanos(markers.get(fromMarker).getStartTime());
+        for (var marker : markers.values()) {
+            var time = epochNanos(marker.getStartTime());
+            var kind = marker.getInt("kind");
+            if (kind == WindowEvent.ENABLED && !open) {
+                open = true;
+                start = time;
+            } else if ((kind == WindowEvent.DISABLED || marker.getLong("sequence") == toMarker) && open) {
+                if (count == windows.length) windows = Arrays.copyOf(windows, count * 2);
+                windows[count++] = start;
+                windows[count++] = time;
+                open = false;
+            }
+        }
+        return Arrays.copyOf(windows, count);
+    }
+
+    private static boolean isInWindow(long[] windows, long time) {
+        for (var i = 0; i < windows.length; i += 2) {
+            if (time >= windows[i] && time < windows[i + 1]) return true;
+        }
+        return false;
+    }
+
+    private static long epochNanos(Instant time) {
+        return time.getEpochSecond() * 1_000_000_000L + time.getNano();
+    }
+
+    private void record(RecordedEvent event) {
+        var name = event.getEventType().getName();
+        if (!name.equals(IN_NEW_TLAB) && !name.equals(OUTSIDE_TLAB)) return;
+
+        var thread = event.getThread();
+        if (threadIds != null && (thread == null || !threadIds.contains(thread.getJavaThreadId()))) return;
+
+        var type = descriptor(event.getClass("objectClass"));
+        if (type == null || (types != null && !types.test(type))) return;
+
+        var size = event.getLong("allocationSize");
+        if (size <= 0) return;
+        var count = name.equals(IN_NEW_TLAB) ? Math.max(1, event.getLong("tlabSize") / size) : 1;
+
+        perType.computeIfAbsent(TypeAllocationMap.intern(type), key -> new AllocationHistogram()).record(size, count);
+
+        if (!perSite) return;
+        var stackTrace = event.getStackTrace();
+        if (stackTrace == null || stackTrace.getFrames().isEmpty()) return;
+        var method = stackTrace.getFrames().get(0).getMethod();
+        var site = "L" + method.getType().getName().replace('.', '/') + ";" + method.getName();
+        perSiteHistograms.computeIfAbsent(site, key -> new AllocationHistogram()).record(size, count);
+    }
+
+    /**
+     * Converts the name of a recorded class, e.g. {@code java.lang.String} or {@code [Ljava.lang.String;}, to its
+     * class descriptor.
+     */
+    static String descriptor(RecordedClass type) {
+        return type == null ? null : descriptor(type.getName());
+    }
+
+    static String descriptor(String name) {
+        if (name.startsWith("[")) return name.replace('.', '/');
+        return "L" + name.replace('.', '/') + ";";
+    }
+
+    private static Map<String, AllocationHistogram> copy(Map<String, AllocationHistogram> histograms) {
+        var result = new HashMap<String, AllocationHistogram>(histograms.size() * 2);
+        histograms.forEach((key, histogram) -> {
+            var copy = new AllocationHistogram();
+            copy.add(histogram);
+            result.put(key, copy);
+        });
+        return result;
+    }
+
+    /**
+     * The marker committed by a recorder when profiling is enabled or disabled and when its recording is replaced.
+     */
+    @Name(WINDOW)
+    @Label("Allocation Profiling Window")
+    @StackTrace(false)
+    static final class WindowEvent extends Event {
+        static final int ENABLED = 0;
+        static final int DISABLED = 1;
+        static final int BOUNDARY = 2;
+
+        @Label("Recorder")
+        long recorder;
+
+        @Label("Sequence")
+        long sequence;
+
+        @Label("Kind")
+        int kind;
+    }
+}
@@ -0,0 +1,442 @@
+package dk.stuart.jtestmemprofiler;
+
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * A composable description of which allocations a {@link Profiler} records, set through
+ * {@link ProfilerBuilder#withFilter(AllocationFilter)}.
+ * <p>
+ * Filters are built from thread sets and type matchers (exact types, package prefix, subclass-of and array-of) combined
+ * with {@link #and(AllocationFilter)}, {@link #or(AllocationFilter)} and {@link #negate()}. Types are matched on their
+ * class descriptor, e.g. {@code [B} or {@code Ljava/lang/String;}, as reported by the per-type collector.
+ * <p>
+ * When the profiler is built the filter is compiled once. Thread constraints, or exact type sets when there are no
+ * thread constraints, are evaluated by the native agent before an allocation is recorded. The agent evaluates a single
+ * thread or type set, so any other type matching (package prefix, subclass-of, array-of, or exact types combined with
+ * threads) is not filtered before recording. It is evaluated once per recorded type on the per-type results when they
+ * are read, and {@link #subclassOf(Class)} resolves each recorded type then. Such a filter is therefore only accepted
+ * with the per-type collector, whose results, and the total derived from them, are the matching types; the profiler
+ * rejects it with any other collector rather than switching collectors.
+ * <p>
+ * Thread constraints must be sets of threads combined with the rest of the filter through
+ * {@link #and(AllocationFilter)}. A {@link ThreadRegistry} can change while profiling, so it cannot be combined with
+ * other thread constraints.
+ */
+@SuppressWarnings("unused")
+public abstract class AllocationFilter {
+    AllocationFilter() {
+    }
+
+    /**
+     * Matches allocations of exactly the specified types.
+     */
+    public static AllocationFilter types(Class<?>... types) {
+        return types(Set.of(types));
+    }
+
+    /**
+     * Matches allocations of exactly the specified types.
+     */
+    public static AllocationFilter types(Set<Class<?>> types) {
+        return new TypeSet(Set.copyOf(types));
+    }
+
+    /**
+     * Matches allocations of classes in the specified package or its subpackages, e.g. {@code com.example}.
+     */
+    public static AllocationFilter packagePrefix(String packageName) {
+        var prefix = packageName.replace('.', '/');
+        if (!prefix.endsWith("/")) prefix += "/";
+        return new TypeMatcher("packagePrefix(" + packageName + ")", DescriptorMatcher.prefix("L" + prefix));
+    }
+
+    /**
+     * Matches allocations of the specified type and every type assignable to it, including arrays when the type is
+     * {@link Object}.
+     */
+    public static AllocationFilter subclassOf(Class<?> type) {
+        return new TypeMatcher("subclassOf(" + type.getName() + ")", DescriptorMatcher.assignableTo(type));
+    }
+
+    /**
+     * Matches allocations of arrays whose component type is exactly the specified type.
+     */
+    public static AllocationFilter arrayOf(Class<?> componentType) {
+        return arrayOf(types(componentType));
+    }
+
+    /**
+     * Matches allocations of arrays whose component type is matched by the specified type filter.
+     *
+     * @throws IllegalArgumentException if the component filter has thread constraints
+     */
+    public static AllocationFilter arrayOf(AllocationFilter componentFilter) {
+        var component = componentFilter.compileTypes();
+        return new TypeMatcher("arrayOf(" + componentFilter + ")",
+                descriptor -> descriptor.length() > 1 && descriptor.charAt(0) == '[' && component.test(descriptor.substring(1)));
+    }
+
+    /**
+     * Matches allocations performed by any of the specified threads.
+     */
+    public static AllocationFilter threads(Thread... threads) {
+        return threads(Set.of(threads));
+    }
+
+    /**
+     * Matches allocations performed by any of the specified threads.
+     */
+    public static AllocationFilter threads(Set<Thread> threads) {
+        return new ThreadSet(Set.copyOf(threads));
+    }
+
+    /**
+     * Matches allocations performed by the threads registered with the registry at the time of allocation.
+     */
+    public static AllocationFilter threads(ThreadRegistry registry) {
+        return new RegisteredThreads(Objects.requireNonNull(registry));
+    }
+
+    /**
+     * Matches allocations not matched by the specified filter.
+     */
+    public static AllocationFilter not(AllocationFilter filter) {
+        return filter.negate();
+    }
+
+    /**
+     * Matches allocations matched by both this and the other filter.
+     */
+    public AllocationFilter and(AllocationFilter other) {
+        return new And(this, Objects.requireNonNull(other));
+    }
+
+    /**
+     * Matches allocations matched by this or the other filter.
+     */
+    public AllocationFilter or(AllocationFilter other) {
+        return new Or(this, Objects.requireNonNull(other));
+    }
+
+    /**
+     * Matches allocations not matched by this filter.
+     */
+    public AllocationFilter negate() {
+        return new Not(this);
+    }
+
+    /**
+     * Compiles the filter into the parts evaluated by the native agent and on the per-type aggregation.
+     *
+     * @throws IllegalArgumentException if the filter cannot be evaluated by the native agent
+     */
+    Compiled compile() {
+        var conjuncts = new ArrayList<AllocationFilter>();
+        flattenAnd(this, conjuncts);
+
+        Set<Thread> threads = null;
+        ThreadRegistry registry = null;
+        AllocationFilter types = null;
+        for (var conjunct : conjuncts) {
+            var conjunctThreads = conjunct.threadSet();
+            if (conjunct instanceof RegisteredThreads registered) {
+                if (registry != null && registry != registered.registry) throw threadConstraintError(this);
+                registry = registered.registry;
+            } else if (conjunctThreads != null) {
+                if (threads == null) {
+                    threads = new HashSet<>(conjunctThreads);
+                } else {
+                    threads.retainAll(conjunctThreads);
+                }
+            } else {
+                conjunct.compileTypes();
+                types = types == null ? conjunct : new And(types, conjunct);
+            }
+        }
+
+        if (registry != null && threads != null) throw threadConstraintError(this);
+        if (registry != null) return new Compiled(null, registry, null, types == null ? null : types.compileTypes());
+        if (threads != null) return new Compiled(threads, null, null, types == null ? null : types.compileTypes());
+
+        var exactTypes = types.exactTypes();
+        if (exactTypes != null) return new Compiled(null, null, exactTypes, null);
+
+        return new Compiled(null, null, null, types.compileTypes());
+    }
+
+    /**
+     * Returns the union of threads if this filter only constrains threads, otherwise null.
+     */
+    Set<Thread> threadSet() {
+        return null;
+    }
+
+    /**
+     * Returns the union of types if this filter is a set of exact types, otherwise null.
+     */
+    Set<Class<?>> exactTypes() {
+        return null;
+    }
+
+    /**
+     * Compiles the filter into a matcher of class descriptors.
+     *
+     * @throws IllegalArgumentException if the filter has thread constraints
+     */
+    abstract Predicate<String> compileTypes();
+
+    private static void flattenAnd(AllocationFilter filter, List<AllocationFilter> conjuncts) {
+        if (filter instanceof And and) {
+            flattenAnd(and.left, conjuncts);
+            flattenAnd(and.right, conjuncts);
+        } else {
+            conjuncts.add(filter);
+        }
+    }
+
+    private static IllegalArgumentException threadConstraintError(AllocationFilter filter) {
+        return new IllegalArgumentException("Thread constraints can only be combined with other filters through and(): " + filter);
+    }
+
+    /**
+     * A compiled filter: a native thread or type filter, and a residual matcher applied to the recorded types.
+     * @param threads Threads evaluated by the native agent, or null if unconstrained
+     * @param registry Live threads evaluated by the native agent, with the native filter created and kept up to date
+     *                 by the profiler, or null if unconstrained
+     * @param types Exact types evaluated by the native agent, or null if unconstrained
+     * @param residualTypes Matcher of class descriptors applied to the per-type aggregation, or null if none
+     */
+    record Compiled(Set<Thread> threads, ThreadRegistry registry, Set<Class<?>> types, Predicate<String> residualTypes) {
+        NativeFilter createNativeFilter() {
+            if (threads != null) return new NativeThreadIdFilter(threads);
+            if (types != null) return new NativeAllocationTypeFilter(types);
+            return null;
+        }
+    }
+
+    private static final class TypeSet extends AllocationFilter {
+        private final Set<Class<?>> types;
+
+        TypeSet(Set<Class<?>> types) {
+            this.types = types;
+        }
+
+        @Override
+        Set<Class<?>> exactTypes() {
+            return types;
+        }
+
+        @Override
+        Predicate<String> compileTypes() {
+            var descriptors = new HashSet<String>();
+            for (var type : types) {
+                descriptors.add(type.descriptorString());
+            }
+            return descriptors::contains;
+        }
+
+        @Override
+        public String toString() {
+            var result = new StringJoiner(", ", "types(", ")");
+            for (var type : types) {
+                result.add(type.getName());
+            }
+            return result.toString();
+        }
+    }
+
+    private static final class TypeMatcher extends AllocationFilter {
+        private final String description;
+        private final Predicate<String> matcher;
+
+        TypeMatcher(String description, Predicate<String> matcher) {
+            this.description = description;
+            this.matcher = matcher;
+        }
+
+        @Override
+        Predicate<String> compileTypes() {
+            return matcher;
+        }
+
+        @Override
+        public String toString() {
+            return description;
+        }
+    }
+
+    private static final class ThreadSet extends AllocationFilter {
+        private final Set<Thread> threads;
+
+        ThreadSet(Set<Thread> threads) {
+            this.threads = threads;
+        }
+
+        @Override
+        Set<Thread> threadSet() {
+            return threads;
+        }
+
+        @Override
+        Predicate<String> compileTypes() {
+            throw threadConstraintError(this);
+        }
+
+        @Override
+        public String toString() {
+            var result = new StringJoiner(", ", "threads(", ")");
+            for (var thread : threads) {
+                result.add(thread.getName());
+            }
+            return result.toString();
+        }
+    }
+
+    private static final class RegisteredThreads extends AllocationFilter {
+        private final ThreadRegistry registry;
+
+        RegisteredThreads(ThreadRegistry registry) {
+            this.registry = registry;
+        }
+
+        @Override
+        Predicate<String> compileTypes() {
+            throw threadConstraintError(this);
+        }
+
+        @Override
+        public String toString() {
+            return "threads(registry)";
+        }
+    }
+
+    private static final class And extends AllocationFilter {
+        private final AllocationFilter left;
+        private final AllocationFilter right;
+
+        And(AllocationFilter left, AllocationFilter right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Predicate<String> compileTypes() {
+            return left.compileTypes().and(right.compileTypes());
+        }
+
+        @Override
+        public String toString() {
+            return "(" + left + " and " + right + ")";
+        }
+    }
+
+    private static final class Or extends AllocationFilter {
+        private final AllocationFilter left;
+        private final AllocationFilter right;
+
+        Or(AllocationFilter left, AllocationFilter right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Set<Thread> threadSet() {
+            var leftThreads = left.threadSet();
+            var rightThreads = right.threadSet();
+            if (leftThreads == null || rightThreads == null) return null;
+
+            var result = new HashSet<>(leftThreads);
+            result.addAll(rightThreads);
+            return result;
+        }
+
+        @Override
+        Set<Class<?>> exactTypes() {
+            var leftTypes = left.exactTypes();
+            var rightTypes = right.exactTypes();
+            if (leftTypes == null || rightTypes == null) return null;
+
+            var result = new HashSet<>(leftTypes);
+            result.addAll(rightTypes);
+            return result;
+        }
+
+        @Override
+        Predicate<String> compileTypes() {
+            if (left.threadSet() != null || right.threadSet() != null) throw threadConstraintError(this);
+            return left.compileTypes().or(right.compileTypes());
+        }
+
+        @Override
+        public String toString() {
+            return "(" + left + " or " + right + ")";
+        }
+    }
+
+    private static final class Not extends AllocationFilter {
+        private final AllocationFilter filter;
+
+        Not(AllocationFilter filter) {
+            this.filter = filter;
+        }
+
+        @Override
+        public AllocationFilter negate() {
+            return filter;
+        }
+
+        @Override
+        Predicate<String> compileTypes() {
+            return filter.compileTypes().negate();
+        }
+
+        @Override
+        public String toString() {
+            return "not(" + filter + ")";
+        }
+    }
+
+    /**
+     * Matchers of class descriptors that cannot be expressed as a set of descriptors.
+     */
+    private static final class DescriptorMatcher {
+        private DescriptorMatcher() {
+        }
+
+        static Predicate<String> prefix(String prefix) {
+            return descriptor -> descriptor.startsWith(prefix);
+        }
+
+        /**
+         * Resolves each descriptor to a class once, remembering the result, as resolution is expensive compared to the
+         * other matchers.
+         */
+        static Predicate<String> assignableTo(Class<?> type) {
+            var results = new HashMap<String, Boolean>();
+            return descriptor -> {
+                synchronized (results) {
+                    return results.computeIfAbsent(descriptor, key -> {
+                        var resolved = resolve(key, type.getClassLoader());
+                        return resolved != null && type.isAssignableFrom(resolved);
+                    });
+                }
+            };
+        }
+
+        private static Class<?> resolve(String descriptor, ClassLoader typeLoader) {
+            var name = descriptor.charAt(0) == 'L' && descriptor.endsWith(";")
+                    ? descriptor.substring(1, descriptor.length() - 1).replace('/', '.')
+                    : descriptor.replace('/', '.');
+
+            for (var loader : new ClassLoader[] { Thread.currentThread().getContextClassLoader(), typeLoader }) {
+                try {
+                    return Class.forName(name, false, loader);
+                } catch (ClassNotFoundException | LinkageError e) {
+                    // Try the next loader
+                }
+            }
+            return null;
+        }
+    }
+}
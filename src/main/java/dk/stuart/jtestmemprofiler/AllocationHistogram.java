@@ -0,0 +1,188 @@
+package dk.stuart.jtestmemprofiler;
+
+import java.util.Arrays;
+
+/**
+ * A histogram of allocation sizes with fixed log-linear buckets, counting the objects and bytes allocated in each
+ * bucket, so that e.g. a few huge buffers can be told apart from millions of small arrays of the same type.
+ * <p>
+ * Sizes below 8 bytes have a bucket each, and every power of two above is divided into 8 linear buckets, so a bucket
+ * spans at most 12.5% of its lower bound. The bucket of a size is computed from its leading zeros, so recording is a
+ * constant-time increment of two preallocated arrays that does not allocate.
+ */
+@SuppressWarnings("unused")
+public final class AllocationHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - 1 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private final long[] bytes = new long[BUCKETS];
+    private long totalCount = 0;
+    private long totalBytes = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = 0;
+
+    /**
+     * Records an object of the specified size.
+     */
+    public void record(long size) {
+        record(size, 1);
+    }
+
+    /**
+     * Records a number of objects of the specified size.
+     */
+    public void record(long size, long count) {
+        if (size < 0) throw new IllegalArgumentException("Size must not be negative");
+        if (count <= 0) return;
+
+        var bucket = bucketIndex(size);
+        counts[bucket] += count;
+        bytes[bucket] += size * count;
+        totalCount += count;
+        totalBytes += size * count;
+        if (size < min) min = size;
+        if (size > max) max = size;
+    }
+
+    /**
+     * Adds the objects recorded by another histogram to this histogram.
+     */
+    public void add(AllocationHistogram other) {
+        for (var i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+            bytes[i] += other.bytes[i];
+        }
+        totalCount += other.totalCount;
+        totalBytes += other.totalBytes;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Clears the recorded objects.
+     */
+    public void clear() {
+        Arrays.fill(counts, 0);
+        Arrays.fill(bytes, 0);
+        totalCount = 0;
+        totalBytes = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    /**
+     * Gets the number of recorded objects.
+     */
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    /**
+     * Gets the bytes of the recorded objects.
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Gets the smallest recorded size, or 0 if no objects have been recorded.
+     */
+    public long getMin() {
+        return totalCount == 0 ? 0 : min;
+    }
+
+    /**
+     * Gets the largest recorded size.
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * Gets the mean recorded size, or 0 if no objects have been recorded.
+     */
+    public double getMean() {
+        return totalCount == 0 ? 0 : (double) totalBytes / totalCount;
+    }
+
+    /**
+     * Gets the largest size in the bucket holding the specified percentile of the recorded objects, e.g. 50 for the
+     * median object size, or 0 if no objects have been recorded.
+     */
+    public long getPercentile(double percentile) {
+        if (!(percentile >= 0 && percentile <= 100)) throw new IllegalArgumentException("Percentile must be between 0 and 100");
+        if (totalCount == 0) return 0;
+
+        var rank = Math.max(1, (long) Math.ceil(percentile / 100 * totalCount));
+        long seen = 0;
+        for (var i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(max, getUpperBound(i) - 1);
+        }
+        return max;
+    }
+
+    /**
+     * Gets the number of buckets, each of which can be read by index.
+     */
+    public int getBucketCount() {
+        return BUCKETS;
+    }
+
+    /**
+     * Gets the smallest size of the bucket.
+     */
+    public long getLowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        var shift = bucket / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    }
+
+    /**
+     * Gets the size above the largest size of the bucket.
+     */
+    public long getUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket + 1;
+        var upper = getLowerBound(bucket) + (1L << (bucket / SUB_BUCKETS - 1));
+        return upper < 0 ? Long.MAX_VALUE : upper;
+    }
+
+    /**
+     * Gets the number of objects recorded in the bucket.
+     */
+    public long getCount(int bucket) {
+        return counts[bucket];
+    }
+
+    /**
+     * Gets the bytes of the objects recorded in the bucket.
+     */
+    public long getBytes(int bucket) {
+        return bytes[bucket];
+    }
+
+    /**
+     * Gets the bucket of a size.
+     */
+    static int bucketIndex(long size) {
+        if (size < SUB_BUCKETS) return (int) size;
+        var exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(size);
+        var subBucket = (int) (size >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    @Override
+    public String toString() {
+        var builder = new StringBuilder();
+        builder.append(totalCount).append(" objects, ").append(totalBytes).append(" bytes");
+        for (var i = 0; i < BUCKETS; i++) {
+            if (counts[i] == 0) continue;
+            builder.append(System.lineSeparator())
+                    .append('[').append(getLowerBound(i)).append(", ").append(getUpperBound(i)).append("): ")
+                    .append(counts[i]).append(" objects, ").append(bytes[i]).append(" bytes");
+        }
+        return builder.toString();
+    }
+}
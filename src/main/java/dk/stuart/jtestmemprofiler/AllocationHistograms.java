@@ -0,0 +1,49 @@
+package dk.stuart.jtestmemprofiler;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The allocation size histograms of a profiler by type and, optionally, by allocation site, sampled from JDK Flight
+ * Recorder with estimated object counts, see
+ * {@link ProfilerBuilder#withSampledHistogramCollector(java.util.function.Consumer, boolean)}.
+ */
+@SuppressWarnings("unused")
+public final class AllocationHistograms {
+    private final Map<String, AllocationHistogram> perType;
+    private final Map<String, AllocationHistogram> perSite;
+
+    AllocationHistograms(Map<String, AllocationHistogram> perType, Map<String, AllocationHistogram> perSite) {
+        this.perType = Collections.unmodifiableMap(perType);
+        this.perSite = perSite == null ? null : Collections.unmodifiableMap(perSite);
+    }
+
+    /**
+     * Gets the histogram of every allocated type by class descriptor, e.g. {@code [B}.
+     */
+    public Map<String, AllocationHistogram> getPerType() {
+        return perType;
+    }
+
+    /**
+     * Gets the histogram of the specified type, which is empty if the type was not allocated.
+     */
+    public AllocationHistogram getPerType(Class<?> type) {
+        var histogram = perType.get(type.descriptorString());
+        return histogram != null ? histogram : new AllocationHistogram();
+    }
+
+    /**
+     * Gets the histogram of every allocation site by the frame name of the allocating method, the top frame of the
+     * sampled stack trace, in the format of the frames of a call tree, e.g. {@code Lcom/example/Encoder;encode}, or
+     * null if not collected per site.
+     */
+    public Map<String, AllocationHistogram> getPerSite() {
+        return perSite;
+    }
+
+    @Override
+    public String toString() {
+        return "perType: " + perType.keySet() + (perSite == null ? "" : ", perSite: " + perSite.keySet());
+    }
+}
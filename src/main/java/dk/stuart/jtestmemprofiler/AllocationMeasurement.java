@@ -0,0 +1,256 @@
+package dk.stuart.jtestmemprofiler;
+
+import java.util.*;
+
+/**
+ * Measures the allocation of repeated invocations of a piece of code, for allocation assertions that are robust against
+ * the occasional allocation by the JIT compiler, class loading or the test framework.
+ * <p>
+ * The code is invoked a number of warmup iterations without profiling, followed by the measured iterations on the
+ * calling thread. All measured iterations share a single profiler, which is only enabled while the code runs, so
+ * thousands of iterations cost little more than the code itself. The agent cannot clear its results, so each iteration
+ * is measured as the change in the profiler's results across it, which is what rebaselining the profiler before every
+ * iteration would measure, without building a snapshot per iteration.
+ * <p>
+ * Iterations whose total allocation lies above Tukey's upper fence, {@code k} interquartile ranges above the upper
+ * quartile, are discarded as outliers before summarizing the allocation per iteration in total and, optionally, per
+ * type, as long as they are rare: when more than one in twenty iterations lie above the fence, they are part of the
+ * behaviour of the code and every iteration is kept. The interquartile range is taken to be at least a tenth of the
+ * median, so that when most iterations allocate exactly the same, small differences such as amortized growth of a
+ * collection are kept rather than discarded. The discarded iterations are reported by
+ * {@link AllocationStatistics#getOutlierValues()}, so code that should not allocate at all can be asserted to allocate
+ * in no iteration:
+ * <pre>{@code
+ * var result = new AllocationMeasurement().withIterations(1000).measure(() -> encoder.encode(message));
+ * assertThat(result.getTotal().getMedian()).isEqualTo(1040.0);
+ * }</pre>
+ * An {@link AllocationMeasurement} can be reused for several measurements, but not by several threads at once.
+ */
+@SuppressWarnings("unused")
+public final class AllocationMeasurement {
+    private static final double MIN_RELATIVE_RANGE = 0.1;
+    private static final double MAX_OUTLIER_FRACTION = 0.05;
+
+    private int warmupIterations = 10;
+    private int iterations = 100;
+    private double outlierFence = 1.5;
+    private boolean perType = false;
+    private AllocationFilter filter = null;
+
+    /**
+     * Sets the number of unprofiled invocations before the measured iterations, default 10.
+     * @return this measurement
+     */
+    public AllocationMeasurement withWarmupIterations(int warmupIterations) {
+        if (warmupIterations < 0) throw new IllegalArgumentException("Number of warmup iterations must not be negative");
+        this.warmupIterations = warmupIterations;
+        return this;
+    }
+
+    /**
+     * Sets the number of measured iterations, default 100.
+     * @return this measurement
+     */
+    public AllocationMeasurement withIterations(int iterations) {
+        if (iterations <= 0) throw new IllegalArgumentException("Number of iterations must be positive");
+        this.iterations = iterations;
+        return this;
+    }
+
+    /**
+     * Sets the number of interquartile ranges above the upper quartile of the total allocation per iteration at which
+     * an iteration is discarded as a rare outlier, default 1.5. Use {@link Double#POSITIVE_INFINITY} to keep every
+     * iteration.
+     * @return this measurement
+     */
+    public AllocationMeasurement withOutlierFence(double outlierFence) {
+        if (!(outlierFence >= 0)) throw new IllegalArgumentException("Outlier fence must not be negative");
+        this.outlierFence = outlierFence;
+        return this;
+    }
+
+    /**
+     * Sets the measurement to also summarize the allocation per type, default false.
+     * @return this measurement
+     */
+    public AllocationMeasurement withPerType(boolean perType) {
+        this.perType = perType;
+        return this;
+    }
+
+    /**
+     * Restricts the measured allocations to those matched by the filter, in addition to the calling thread. Type
+     * constraints are then applied to the per-type results, see {@link AllocationFilter}, so the allocation is
+     * collected per type even when only totals are reported.
+     * @return this measurement
+     */
+    public AllocationMeasurement withFilter(AllocationFilter filter) {
+        this.filter = filter;
+        return this;
+    }
+
+    /**
+     * Runs the warmup and measured iterations of the code on the calling thread.
+     * @param body Code to measure
+     * @return the statistics of the allocation per iteration
+     * @throws IllegalArgumentException if the filter cannot be evaluated by the native agent
+     */
+    public Result measure(Runnable body) {
+        for (var i = 0; i < warmupIterations; i++) {
+            body.run();
+        }
+
+        var threadFilter = AllocationFilter.threads(Thread.currentThread());
+        var measuredFilter = filter == null ? threadFilter : threadFilter.and(filter);
+        var builder = new ProfilerBuilder()
+                .withEnableImmediately(false)
+                .withFilter(measuredFilter);
+        if (perType || measuredFilter.compile().residualTypes() != null) builder.withPerTypeCollector(allocations -> {});
+        else builder.withLongTotalsCollector(total -> {});
+
+        var totals = new long[iterations];
+        var recorder = new TypeRecorder(iterations);
+        try (var profiler = builder.build()) {
+            var previous = new TypeAllocationMap();
+            var current = new TypeAllocationMap();
+            var previousTotal = profiler.read(previous);
+            for (var i = 0; i < iterations; i++) {
+                profiler.enable();
+                try {
+                    body.run();
+                } finally {
+                    profiler.disable();
+                }
+
+                var total = profiler.read(current);
+                totals[i] = total - previousTotal;
+                if (perType) recorder.record(i, current, previous);
+
+                var swap = previous;
+                previous = current;
+                current = swap;
+                previousTotal = total;
+            }
+        }
+
+        var outliers = findOutliers(totals, outlierFence);
+        var outlierCount = 0;
+        for (var outlier : outliers) {
+            if (outlier) outlierCount++;
+        }
+
+        var perTypeStatistics = new HashMap<String, AllocationStatistics>();
+        for (var column = 0; column < recorder.types.size(); column++) {
+            perTypeStatistics.put(recorder.types.get(column), statistics(recorder.columns.get(column), outliers, outlierCount));
+        }
+        return new Result(statistics(totals, outliers, outlierCount), perTypeStatistics);
+    }
+
+    /**
+     * Marks the values above Tukey's upper fence with the specified number of interquartile ranges, taking the range to
+     * be at least a fraction of the median, unless more than a small fraction of the values lie above it.
+     */
+    static boolean[] findOutliers(long[] values, double fence) {
+        var outliers = new boolean[values.length];
+        if (Double.isInfinite(fence)) return outliers;
+
+        var sorted = values.clone();
+        Arrays.sort(sorted);
+        var lowerQuartile = AllocationStatistics.percentile(sorted, 25);
+        var upperQuartile = AllocationStatistics.percentile(sorted, 75);
+        var median = AllocationStatistics.percentile(sorted, 50);
+        var range = Math.max(upperQuartile - lowerQuartile, MIN_RELATIVE_RANGE * Math.abs(median));
+        var count = 0;
+        for (var i = 0; i < values.length; i++) {
+            outliers[i] = values[i] > upperQuartile + fence * range;
+            if (outliers[i]) count++;
+        }
+
+        if (count > MAX_OUTLIER_FRACTION * values.length) Arrays.fill(outliers, false);
+        return outliers;
+    }
+
+    private static AllocationStatistics statistics(long[] values, boolean[] outliers, int outlierCount) {
+        var retained = new long[values.length - outlierCount];
+        var discarded = new long[outlierCount];
+        var nextRetained = 0;
+        var nextDiscarded = 0;
+        for (var i = 0; i < values.length; i++) {
+            if (outliers[i]) discarded[nextDiscarded++] = values[i];
+            else retained[nextRetained++] = values[i];
+        }
+        return new AllocationStatistics(retained, discarded);
+    }
+
+    /**
+     * Records the allocation per type of each iteration in a column per type.
+     */
+    private static final class TypeRecorder {
+        private final int iterations;
+        private final TypeAllocationMap columnIndex = new TypeAllocationMap();
+        private final List<String> types = new ArrayList<>();
+        private final List<long[]> columns = new ArrayList<>();
+
+        TypeRecorder(int iterations) {
+            this.iterations = iterations;
+        }
+
+        void record(int iteration, TypeAllocationMap current, TypeAllocationMap previous) {
+            current.forEach((type, allocation) -> {
+                var delta = allocation - previous.get(type);
+                if (delta == 0) return;
+
+                var column = (int) columnIndex.getOrDefault(type, -1);
+                if (column < 0) {
+                    column = types.size();
+                    columnIndex.put(type, column);
+                    types.add(TypeAllocationMap.intern(type));
+                    columns.add(new long[iterations]);
+                }
+                columns.get(column)[iteration] = delta;
+            });
+        }
+    }
+
+    /**
+     * The statistics of a measurement, see {@link #measure(Runnable)}.
+     */
+    public static final class Result {
+        private final AllocationStatistics total;
+        private final Map<String, AllocationStatistics> perType;
+
+        Result(AllocationStatistics total, Map<String, AllocationStatistics> perType) {
+            this.total = total;
+            this.perType = Collections.unmodifiableMap(perType);
+        }
+
+        /**
+         * Gets the statistics of the total allocation per iteration.
+         */
+        public AllocationStatistics getTotal() {
+            return total;
+        }
+
+        /**
+         * Gets the statistics of the allocation per iteration by class descriptor, e.g. {@code [B}, of every type
+         * allocated during a measured iteration, or an empty map if not measured per type.
+         */
+        public Map<String, AllocationStatistics> getPerType() {
+            return perType;
+        }
+
+        /**
+         * Gets the statistics of the allocation per iteration of the specified type, with zero allocation if the type
+         * was not allocated or not measured per type.
+         */
+        public AllocationStatistics getPerType(Class<?> type) {
+            var statistics = perType.get(type.descriptorString());
+            return statistics != null ? statistics : new AllocationStatistics(new long[total.getIterations()], new long[total.getOutliers()]);
+        }
+
+        @Override
+        public String toString() {
+            return "total: " + total;
+        }
+    }
+}
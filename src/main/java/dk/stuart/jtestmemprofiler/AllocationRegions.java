@@ -0,0 +1,261 @@
+package dk.stuart.jtestmemprofiler;
+
+import java.util.*;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * The region stacks of a {@link Profiler}, one per thread, each attributing allocation to a tree of region nodes.
+ * <p>
+ * The total allocation of a region is measured through the allocation counter the JVM keeps for each thread, so
+ * entering and leaving a region reads a thread-local counter and updates the node of the region, without allocating
+ * once the region path has been seen on the thread. Attributing types reads the per-type results of the profiler at
+ * both ends of the region instead.
+ * <p>
+ * Each stack is guarded by its own monitor, which is uncontended except while the regions are reported or cleared.
+ * The stacks of threads that have ended are merged into a single tree once enough new stacks have been created, so
+ * short-lived threads do not accumulate stacks.
+ */
+final class AllocationRegions {
+    private static final int MIN_PRUNE_SIZE = 16;
+
+    private final Profiler profiler;
+    private final ThreadLocal<Stack> stacks = ThreadLocal.withInitial(this::createStack);
+    /** The stacks of the threads that have entered a region, guarded by itself. */
+    private final ArrayList<Stack> allStacks = new ArrayList<>();
+    /** The regions of the threads that have ended, guarded by {@link #allStacks}. */
+    private final Node ended = new Node(null, false);
+    private int pruneSize = MIN_PRUNE_SIZE;
+
+    /**
+     * Constructs the regions of a profiler.
+     * @param perTypeProfiler Profiler read for the allocation per type, or null to only attribute totals
+     */
+    AllocationRegions(Profiler perTypeProfiler) {
+        this.profiler = perTypeProfiler;
+    }
+
+    Region enter(String name) {
+        Objects.requireNonNull(name);
+        if (!ThreadAllocationCounter.isSupported()) throw new UnsupportedOperationException("The JVM does not measure the allocation of threads");
+        return stacks.get().enter(name);
+    }
+
+    /**
+     * Merges the region trees of every thread by region path.
+     */
+    Map<String, RegionStatistics> report() {
+        var accumulated = new TreeMap<String, Node>();
+        synchronized (allStacks) {
+            accumulateChildren(ended, accumulated);
+            for (var stack : allStacks) {
+                synchronized (stack) {
+                    accumulateChildren(stack.root, accumulated);
+                }
+            }
+        }
+
+        var result = new LinkedHashMap<String, RegionStatistics>();
+        accumulated.forEach((path, node) -> result.put(path, new RegionStatistics(path, node.count, node.total, node.total - node.childTotal, node.perType)));
+        return result;
+    }
+
+    private void accumulateChildren(Node root, Map<String, Node> accumulated) {
+        for (var child : root.children.values()) {
+            accumulate(child, child.name, accumulated);
+        }
+    }
+
+    private void accumulate(Node node, String path, Map<String, Node> accumulated) {
+        var target = accumulated.computeIfAbsent(path, key -> new Node(node.name, profiler != null));
+        target.add(node);
+
+        for (var child : node.children.values()) {
+            accumulate(child, path + "/" + child.name, accumulated);
+        }
+    }
+
+    /**
+     * Clears the allocation attributed to every region, keeping the region trees. Regions entered on any thread at the
+     * time are measured from the clear when left.
+     */
+    void clear() {
+        synchronized (allStacks) {
+            ended.clear();
+            for (var stack : allStacks) {
+                stack.clear();
+            }
+        }
+    }
+
+    private Stack createStack() {
+        var stack = new Stack();
+        synchronized (allStacks) {
+            if (allStacks.size() >= pruneSize) {
+                allStacks.removeIf(this::retireEnded);
+                pruneSize = Math.max(MIN_PRUNE_SIZE, allStacks.size() * 2);
+            }
+            allStacks.add(stack);
+        }
+        return stack;
+    }
+
+    /**
+     * Merges the regions of a stack into the regions of ended threads if its thread has ended.
+     */
+    private boolean retireEnded(Stack stack) {
+        if (stack.owner.isAlive()) return false;
+
+        synchronized (stack) {
+            merge(stack.root, ended);
+        }
+        return true;
+    }
+
+    private static void merge(Node source, Node target) {
+        target.add(source);
+        for (var child : source.children.values()) {
+            merge(child, target.children.computeIfAbsent(child.name, name -> new Node(name, child.perType != null)));
+        }
+    }
+
+    private static final class Node {
+        final String name;
+        final HashMap<String, Node> children = new HashMap<>();
+        final TypeAllocationMap perType;
+        long count = 0;
+        long total = 0;
+        long childTotal = 0;
+
+        Node(String name, boolean perType) {
+            this.name = name;
+            this.perType = perType ? new TypeAllocationMap() : null;
+        }
+
+        void add(Node other) {
+            count += other.count;
+            total += other.total;
+            childTotal += other.childTotal;
+            if (other.perType != null) other.perType.forEach(perType::add);
+        }
+
+        void clear() {
+            count = 0;
+            total = 0;
+            childTotal = 0;
+            if (perType != null) perType.clear();
+            for (var child : children.values()) {
+                child.clear();
+            }
+        }
+    }
+
+    /**
+     * The regions entered on a thread, handing out one {@link Region} per depth so that entering a region does not
+     * allocate. The profiler is read outside the monitor of the stack, as {@link #clear()} runs while the profiler is
+     * locked.
+     */
+    private final class Stack {
+        private final Thread owner = Thread.currentThread();
+        private final Node root = new Node(null, false);
+        private Node[] nodes = new Node[8];
+        private Depth[] depths = new Depth[8];
+        private long[] starts = new long[8];
+        private TypeAllocationMap[] typeStarts = new TypeAllocationMap[8];
+        private TypeAllocationMap typeRead = profiler == null ? null : new TypeAllocationMap();
+        private final ObjLongConsumer<String> attributeType = this::attributeType;
+        /** The number of regions entered, only changed by the owner. */
+        private int depth = 0;
+        /** The number of times the stack has been cleared, so reads of the profiler racing a clear can be discarded. */
+        private volatile int clears = 0;
+
+        Region enter(String name) {
+            var seenClears = clears;
+            if (profiler != null) profiler.read(typeRead);
+
+            synchronized (this) {
+                var parent = depth == 0 ? root : nodes[depth - 1];
+                var node = parent.children.get(name);
+                if (node == null) {
+                    node = new Node(name, profiler != null);
+                    parent.children.put(name, node);
+                }
+
+                if (depth == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, depth * 2);
+                    depths = Arrays.copyOf(depths, depth * 2);
+                    starts = Arrays.copyOf(starts, depth * 2);
+                    typeStarts = Arrays.copyOf(typeStarts, depth * 2);
+                }
+                if (depths[depth] == null) depths[depth] = new Depth(depth);
+                nodes[depth] = node;
+                if (profiler != null) {
+                    var start = typeRead;
+                    typeRead = typeStarts[depth] == null ? new TypeAllocationMap() : typeStarts[depth];
+                    if (seenClears != clears) start.clear();
+                    typeStarts[depth] = start;
+                }
+                starts[depth] = ThreadAllocationCounter.current();
+                return depths[depth++];
+            }
+        }
+
+        void leave(Depth region) {
+            if (Thread.currentThread() != owner) throw new IllegalStateException("Region must be left on the thread that entered it");
+            if (depth == 0) throw new IllegalStateException("No region has been entered");
+            if (region.index != depth - 1) throw new IllegalStateException("Region has already been left, or is not the innermost region entered");
+
+            var seenClears = clears;
+            if (profiler != null) profiler.read(typeRead);
+
+            synchronized (this) {
+                var end = ThreadAllocationCounter.current();
+                depth--;
+                var node = nodes[depth];
+                var allocation = end - starts[depth];
+                node.count++;
+                node.total += allocation;
+                (depth == 0 ? root : nodes[depth - 1]).childTotal += allocation;
+
+                if (profiler != null && seenClears == clears) typeRead.forEach(attributeType);
+                nodes[depth] = null;
+            }
+        }
+
+        /**
+         * Clears the regions of the stack, restarting the regions entered at the counter of the owner and the per-type
+         * results of a profiler just rebaselined.
+         */
+        synchronized void clear() {
+            root.clear();
+            if (depth > 0) {
+                var counter = ThreadAllocationCounter.of(owner);
+                for (var i = 0; i < depth; i++) {
+                    starts[i] = counter;
+                    if (typeStarts[i] != null) typeStarts[i].clear();
+                }
+            }
+            clears++;
+        }
+
+        private void attributeType(String type, long allocation) {
+            var change = allocation - typeStarts[depth].get(type);
+            if (change != 0) nodes[depth].perType.add(type, change);
+        }
+
+        /**
+         * The region entered at a depth of the stack.
+         */
+        private final class Depth implements Region {
+            private final int index;
+
+            Depth(int index) {
+                this.index = index;
+            }
+
+            @Override
+            public void close() {
+                leave(this);
+            }
+        }
+    }
+}
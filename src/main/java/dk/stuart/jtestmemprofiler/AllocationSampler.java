@@ -0,0 +1,380 @@
+package dk.stuart.jtestmemprofiler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Takes periodic readings of a {@link Profiler} on a background thread and records the allocation during each
+ * interval as a time series, in total and per type when the profiler collects per type.
+ * <p>
+ * Readings are stored in a ring buffer preallocated for a fixed number of samples and type columns. When the buffer is
+ * full the oldest sample is overwritten and counted as dropped; drain it regularly through {@link #drain(Consumer)} or
+ * {@link #drainTo(Path)}. The first types seen get a column each, allocation of types beyond the column limit is
+ * summed as other allocation. Apart from registering a new type column the sampler does not allocate in steady state;
+ * reading a per-type profiler still materializes the result of the native collector.
+ * <p>
+ * The sampler thread is itself subject to profiling, so a profiler sampled in the background is best filtered to the
+ * threads under test.
+ */
+@SuppressWarnings("unused")
+public final class AllocationSampler implements Closeable {
+    private static final byte[] CSV_HEADER = "timestamp_ns,interval_ns,type,bytes\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TOTAL = "total".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] OTHER = "other".getBytes(StandardCharsets.US_ASCII);
+
+    private final Profiler profiler;
+    private final long intervalNanos;
+    private final int capacity;
+    private final int maxTypes;
+    private final boolean perType;
+    private final Instant startTime;
+    private final long startNanos;
+
+    private final long[] timestamps;
+    private final long[] intervals;
+    private final long[] totals;
+    private final long[] others;
+    private final long[] typeAllocations;
+    private final String[] typeNames;
+    private final byte[][] typeNameBytes;
+    private final TypeAllocationMap typeColumns;
+    private int typeCount = 0;
+    private int head = 0;
+    private int size = 0;
+    private long dropped = 0;
+
+    private TypeAllocationMap current;
+    private TypeAllocationMap previous;
+    private long previousTotal;
+    private long previousTimestamp;
+    private int row;
+    private final ObjLongConsumer<String> recordType = this::recordType;
+    private final Sample sample = new Sample();
+
+    private final Thread thread;
+    private volatile boolean running = true;
+    private boolean closed = false;
+
+    private AllocationSampler(Profiler profiler, Duration interval, int capacity, int maxTypes) {
+        if (interval.isNegative() || interval.isZero()) throw new IllegalArgumentException("Interval must be positive");
+        if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive");
+        if (maxTypes < 0) throw new IllegalArgumentException("Maximum number of types must not be negative");
+        if (profiler.collectsCallTree()) throw new IllegalArgumentException("Sampling requires the totals or per-type collector");
+
+        this.profiler = profiler;
+        this.intervalNanos = interval.toNanos();
+        this.capacity = capacity;
+        this.maxTypes = profiler.collectsPerType() ? maxTypes : 0;
+        this.perType = profiler.collectsPerType();
+
+        timestamps = new long[capacity];
+        intervals = new long[capacity];
+        totals = new long[capacity];
+        others = new long[capacity];
+        typeAllocations = new long[capacity * this.maxTypes];
+        typeNames = new String[this.maxTypes];
+        typeNameBytes = new byte[this.maxTypes][];
+        typeColumns = new TypeAllocationMap(this.maxTypes);
+        current = new TypeAllocationMap();
+        previous = new TypeAllocationMap();
+
+        startTime = Instant.now();
+        startNanos = System.nanoTime();
+        previousTimestamp = 0;
+        previousTotal = profiler.read(previous);
+
+        thread = new Thread(this::run, "jtestmemprofiler-sampler");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Starts sampling the profiler with room for the specified number of samples of up to 64 types.
+     * @param profiler Profiler with the totals or per-type collector to sample
+     * @param interval Interval between readings
+     * @param capacity Number of samples retained until drained
+     * @return the started sampler
+     * @throws IllegalArgumentException if the profiler collects a call tree or the arguments are out of range
+     * @throws IllegalStateException if the profiler has been closed
+     */
+    public static AllocationSampler start(Profiler profiler, Duration interval, int capacity) {
+        return start(profiler, interval, capacity, 64);
+    }
+
+    /**
+     * Starts sampling the profiler with room for the specified number of samples and type columns.
+     * @param profiler Profiler with the totals or per-type collector to sample
+     * @param interval Interval between readings
+     * @param capacity Number of samples retained until drained
+     * @param maxTypes Number of types recorded separately, further types are recorded as other allocation
+     * @return the started sampler
+     * @throws IllegalArgumentException if the profiler collects a call tree or the arguments are out of range
+     * @throws IllegalStateException if the profiler has been closed
+     */
+    public static AllocationSampler start(Profiler profiler, Duration interval, int capacity, int maxTypes) {
+        var sampler = new AllocationSampler(profiler, interval, capacity, maxTypes);
+        sampler.thread.start();
+        return sampler;
+    }
+
+    /**
+     * Gets the wall-clock time the sampler was started, which sample timestamps are relative to.
+     */
+    public Instant getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Gets the number of samples overwritten before they were drained.
+     */
+    public synchronized long getDroppedSampleCount() {
+        return dropped;
+    }
+
+    /**
+     * Passes the buffered samples to the consumer, oldest first, and removes them from the buffer. The sample passed
+     * is a reused view that is only valid during the call; sampling waits while the samples are drained.
+     * @return the number of samples drained
+     */
+    public synchronized int drain(Consumer<Sample> consumer) {
+        var count = 0;
+        while (size > 0) {
+            sample.row = head;
+            head = (head + 1) % capacity;
+            size--;
+            count++;
+            consumer.accept(sample);
+        }
+        return count;
+    }
+
+    /**
+     * Drains the buffered samples to a CSV file with the columns {@code timestamp_ns,interval_ns,type,bytes}, writing
+     * a row for the total of each sample, named {@code total}, and for every type with allocation during the interval,
+     * including {@code other}. Rows are appended to an existing file.
+     * @return the number of samples drained
+     */
+    public int drainTo(Path path) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            var output = new ChannelOutput(channel);
+            if (channel.size() == 0) output.put(CSV_HEADER);
+            return drainTo(output);
+        }
+    }
+
+    /**
+     * Drains the buffered samples as CSV rows without a header to the specified channel, see {@link #drainTo(Path)}.
+     * The channel is not closed.
+     * @return the number of samples drained
+     */
+    public int drainTo(WritableByteChannel channel) throws IOException {
+        return drainTo(new ChannelOutput(channel));
+    }
+
+    private int drainTo(ChannelOutput output) throws IOException {
+        try {
+            var count = drain(sample -> {
+                writeRow(output, sample, TOTAL, sample.getTotal());
+                for (var column = 0; column < sample.getTypeCount(); column++) {
+                    var allocation = sample.getAllocation(column);
+                    if (allocation != 0) writeRow(output, sample, typeNameBytes[column], allocation);
+                }
+                if (sample.getOtherAllocation() != 0) writeRow(output, sample, OTHER, sample.getOtherAllocation());
+            });
+            output.flush();
+            return count;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static void writeRow(ChannelOutput output, Sample sample, byte[] type, long allocation) {
+        output.putLong(sample.getTimestampNanos());
+        output.put((byte) ',');
+        output.putLong(sample.getIntervalNanos());
+        output.put((byte) ',');
+        output.put(type);
+        output.put((byte) ',');
+        output.putLong(allocation);
+        output.put((byte) '\n');
+    }
+
+    /**
+     * Stops sampling after taking a final reading if the profiler is still open. Buffered samples can still be
+     * drained.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+        }
+
+        running = false;
+        LockSupport.unpark(thread);
+        var interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        takeSample();
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    private void run() {
+        var next = System.nanoTime() + intervalNanos;
+        while (running) {
+            var now = System.nanoTime();
+            if (now - next < 0) {
+                LockSupport.parkNanos(this, next - now);
+                continue;
+            }
+
+            if (!takeSample()) return;
+            next += intervalNanos;
+            if (System.nanoTime() - next > intervalNanos) next = System.nanoTime() + intervalNanos;
+        }
+    }
+
+    /**
+     * Reads the profiler and records the allocation since the previous reading.
+     * @return false if the profiler has been closed
+     */
+    private boolean takeSample() {
+        long total;
+        try {
+            total = profiler.read(current);
+        } catch (IllegalStateException e) {
+            return false;
+        }
+        var timestamp = System.nanoTime() - startNanos;
+
+        synchronized (this) {
+            if (size == capacity) {
+                row = head;
+                head = (head + 1) % capacity;
+                dropped++;
+            } else {
+                row = (head + size) % capacity;
+                size++;
+            }
+
+            timestamps[row] = timestamp;
+            intervals[row] = timestamp - previousTimestamp;
+            totals[row] = total - previousTotal;
+            others[row] = 0;
+            Arrays.fill(typeAllocations, row * maxTypes, (row + 1) * maxTypes, 0L);
+            if (perType) current.forEach(recordType);
+        }
+
+        var swap = previous;
+        previous = current;
+        current = swap;
+        previousTotal = total;
+        previousTimestamp = timestamp;
+        return true;
+    }
+
+    private void recordType(String type, long allocation) {
+        var delta = allocation - previous.get(type);
+        if (delta == 0) return;
+
+        var column = (int) typeColumns.getOrDefault(type, -1);
+        if (column < 0) {
+            if (typeCount == maxTypes) {
+                others[row] += delta;
+                return;
+            }
+
+            column = typeCount++;
+            typeColumns.put(type, column);
+            typeNames[column] = TypeAllocationMap.intern(type);
+            typeNameBytes[column] = type.getBytes(StandardCharsets.UTF_8);
+        }
+        typeAllocations[row * maxTypes + column] += delta;
+    }
+
+    /**
+     * A view of a single sample, see {@link #drain(Consumer)}.
+     */
+    public final class Sample {
+        private int row;
+
+        private Sample() {
+        }
+
+        /**
+         * Gets the time of the reading in nanoseconds since the sampler was started.
+         */
+        public long getTimestampNanos() {
+            return timestamps[row];
+        }
+
+        /**
+         * Gets the time since the previous reading in nanoseconds.
+         */
+        public long getIntervalNanos() {
+            return intervals[row];
+        }
+
+        /**
+         * Gets the total allocation during the interval.
+         */
+        public long getTotal() {
+            return totals[row];
+        }
+
+        /**
+         * Gets the total allocation rate during the interval in bytes per second.
+         */
+        public double getAllocationRate() {
+            return intervals[row] == 0 ? 0.0 : totals[row] * 1e9 / intervals[row];
+        }
+
+        /**
+         * Gets the number of type columns, which is the number of types seen by the sampler up to its type limit.
+         */
+        public int getTypeCount() {
+            return typeCount;
+        }
+
+        /**
+         * Gets the class descriptor of the type in the specified column.
+         */
+        public String getType(int column) {
+            if (column < 0 || column >= typeCount) throw new IndexOutOfBoundsException(column);
+            return typeNames[column];
+        }
+
+        /**
+         * Gets the allocation during the interval of the type in the specified column.
+         */
+        public long getAllocation(int column) {
+            if (column < 0 || column >= typeCount) throw new IndexOutOfBoundsException(column);
+            return typeAllocations[row * maxTypes + column];
+        }
+
+        /**
+         * Gets the allocation during the interval of types beyond the type limit.
+         */
+        public long getOtherAllocation() {
+            return others[row];
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package dk.stuart.jtestmemprofiler;
+
+import java.util.Arrays;
+
+/**
+ * Summary statistics of the bytes allocated per iteration of an {@link AllocationMeasurement}, over the iterations
+ * that were not discarded as outliers.
+ */
+@SuppressWarnings("unused")
+public final class AllocationStatistics {
+    private final long[] sorted;
+    private final long[] outliers;
+    private final double mean;
+    private final double standardDeviation;
+
+    AllocationStatistics(long[] values, long[] outliers) {
+        sorted = values.clone();
+        Arrays.sort(sorted);
+        this.outliers = outliers.clone();
+        Arrays.sort(this.outliers);
+
+        var sum = 0.0;
+        for (var value : sorted) {
+            sum += value;
+        }
+        mean = sorted.length == 0 ? 0.0 : sum / sorted.length;
+
+        var squares = 0.0;
+        for (var value : sorted) {
+            squares += (value - mean) * (value - mean);
+        }
+        standardDeviation = sorted.length < 2 ? 0.0 : Math.sqrt(squares / (sorted.length - 1));
+    }
+
+    /**
+     * Gets the number of iterations the statistics are computed over.
+     */
+    public int getIterations() {
+        return sorted.length;
+    }
+
+    /**
+     * Gets the number of measured iterations discarded as outliers.
+     */
+    public int getOutliers() {
+        return outliers.length;
+    }
+
+    /**
+     * Gets the allocation of each measured iteration discarded as an outlier, in ascending order, e.g. to assert that
+     * code allocating nothing in its steady state did not allocate in any iteration either.
+     */
+    public long[] getOutlierValues() {
+        return outliers.clone();
+    }
+
+    /**
+     * Gets the least allocation of an iteration.
+     */
+    public long getMin() {
+        return sorted.length == 0 ? 0 : sorted[0];
+    }
+
+    /**
+     * Gets the greatest allocation of an iteration.
+     */
+    public long getMax() {
+        return sorted.length == 0 ? 0 : sorted[sorted.length - 1];
+    }
+
+    /**
+     * Gets the median allocation of an iteration.
+     */
+    public double getMedian() {
+        return getPercentile(50);
+    }
+
+    /**
+     * Gets the 95th percentile of the allocation of an iteration.
+     */
+    public double getP95() {
+        return getPercentile(95);
+    }
+
+    /**
+     * Gets the mean allocation of an iteration.
+     */
+    public double getMean() {
+        return mean;
+    }
+
+    /**
+     * Gets the sample standard deviation of the allocation of an iteration.
+     */
+    public double getStandardDeviation() {
+        return standardDeviation;
+    }
+
+    /**
+     * Gets the specified percentile of the allocation of an iteration, interpolating linearly between the closest
+     * iterations.
+     * @param percentile Percentile between 0 and 100
+     * @throws IllegalArgumentException if the percentile is out of range
+     */
+    public double getPercentile(double percentile) {
+        return percentile(sorted, percentile);
+    }
+
+    static double percentile(long[] sorted, double percentile) {
+        if (percentile < 0 || percentile > 100) throw new IllegalArgumentException("Percentile must be between 0 and 100");
+        if (sorted.length == 0) return 0.0;
+
+        var position = percentile / 100 * (sorted.length - 1);
+        var lower = (int) Math.floor(position);
+        var upper = (int) Math.ceil(position);
+        return sorted[lower] + (position - lower) * (sorted[upper] - sorted[lower]);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("min=%d, median=%.1f, p95=%.1f, stddev=%.1f (%d iterations, %d outliers%s)",
+                getMin(), getMedian(), getP95(), standardDeviation, sorted.length, outliers.length,
+                outliers.length == 0 ? "" : " up to " + outliers[outliers.length - 1]);
+    }
+}
@@ -0,0 +1,403 @@
+package dk.stuart.jtestmemprofiler;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A compact, array-backed call tree of allocation stack traces.
+ * <p>
+ * Nodes are addressed by index, with {@link #ROOT} being the synthetic root above the thread entry points. The tree
+ * shape is stored as parallel arrays of parent, first child and next sibling indexes, and each node refers to its
+ * frame name by id into the global {@link FrameTable}. Nodes are laid out in pre-order, so the
+ * subtree of a node occupies a contiguous index range starting at the node itself.
+ * <p>
+ * A {@link CallTree} is immutable once constructed and safe for use by multiple threads.
+ */
+@SuppressWarnings("unused")
+public final class CallTree {
+    /**
+     * Index of the root node.
+     */
+    public static final int ROOT = 0;
+
+    /**
+     * Index used for absent parent, child and sibling links, and frame id of the root node.
+     */
+    public static final int NO_NODE = -1;
+
+    private final FrameTable frameTable = FrameTable.global();
+    private final int[] frameIds;
+    private final int[] parents;
+    private final int[] firstChildren;
+    private final int[] nextSiblings;
+    private final long[] allocationSizes;
+    private final long[] childAccumulatedAllocationSizes;
+
+    private CallTree(int[] frameIds, int[] parents, int[] firstChildren, int[] nextSiblings, long[] allocationSizes, long[] childAccumulatedAllocationSizes) {
+        this.frameIds = frameIds;
+        this.parents = parents;
+        this.firstChildren = firstChildren;
+        this.nextSiblings = nextSiblings;
+        this.allocationSizes = allocationSizes;
+        this.childAccumulatedAllocationSizes = childAccumulatedAllocationSizes;
+    }
+
+    /**
+     * Converts a {@link TrieNode} graph into a compact call tree with the specified node as its root.
+     */
+    public static CallTree of(TrieNode root) {
+        var builder = new Builder(false);
+        convert(root, builder, false);
+        return builder.build();
+    }
+
+    /**
+     * Converts a {@link TrieNode} graph like {@link #of(TrieNode)}, but removes each child from its parent's map as it
+     * is converted, so converted subtrees can be collected while the rest is still being converted. The graph is
+     * left empty.
+     */
+    static CallTree drain(TrieNode root) {
+        var builder = new Builder(false);
+        convert(root, builder, true);
+        return builder.build();
+    }
+
+    static void convert(TrieNode root, Builder builder, boolean drain) {
+        builder.add(NO_NODE, null, root, root.getAllocationSize(), root.getChildAccumulatedAllocationSize());
+
+        var iterators = new ArrayDeque<Iterator<Map.Entry<String, TrieNode>>>();
+        var indexes = new int[16];
+        iterators.push(root.getChildren().entrySet().iterator());
+        indexes[0] = ROOT;
+
+        while (!iterators.isEmpty()) {
+            var iterator = iterators.peek();
+            if (!iterator.hasNext()) {
+                iterators.pop();
+                continue;
+            }
+
+            var entry = iterator.next();
+            var child = entry.getValue();
+            if (drain) iterator.remove();
+            var index = builder.add(indexes[iterators.size() - 1], entry.getKey(), child, child.getAllocationSize(), child.getChildAccumulatedAllocationSize());
+            if (iterators.size() == indexes.length) indexes = Arrays.copyOf(indexes, indexes.length * 2);
+            indexes[iterators.size()] = index;
+            iterators.push(child.getChildren().entrySet().iterator());
+        }
+    }
+
+    /**
+     * Returns the number of nodes in the tree, including the root.
+     */
+    public int getNodeCount() {
+        return frameIds.length;
+    }
+
+    /**
+     * Returns the frame table the frame ids of this tree refer to.
+     */
+    public FrameTable getFrameTable() {
+        return frameTable;
+    }
+
+    /**
+     * Returns the frame name (declaring class and method) with the specified id.
+     */
+    public String getFrame(int frameId) {
+        return frameTable.getFrame(frameId);
+    }
+
+    /**
+     * Returns the frame id of the node, or {@link #NO_NODE} for the root.
+     */
+    public int getFrameId(int node) {
+        return frameIds[node];
+    }
+
+    /**
+     * Returns the frame name of the node, or null for the root.
+     */
+    public String getFrameName(int node) {
+        var frameId = frameIds[node];
+        return frameId == NO_NODE ? null : frameTable.getFrame(frameId);
+    }
+
+    /**
+     * Returns the parent of the node, or {@link #NO_NODE} for the root.
+     */
+    public int getParent(int node) {
+        return parents[node];
+    }
+
+    /**
+     * Returns the first child of the node, or {@link #NO_NODE} if it is a leaf.
+     */
+    public int getFirstChild(int node) {
+        return firstChildren[node];
+    }
+
+    /**
+     * Returns the next sibling of the node, or {@link #NO_NODE} if it is the last child of its parent.
+     */
+    public int getNextSibling(int node) {
+        return nextSiblings[node];
+    }
+
+    /**
+     * Returns the direct allocation at the node.
+     */
+    public long getAllocationSize(int node) {
+        return allocationSizes[node];
+    }
+
+    /**
+     * Returns the accumulated allocation at the node and all its children recursively.
+     */
+    public long getChildAccumulatedAllocationSize(int node) {
+        return childAccumulatedAllocationSizes[node];
+    }
+
+    /**
+     * Returns the index just past the last node of the subtree rooted at the node. As nodes are laid out in
+     * pre-order, the subtree consists of the indexes from the node up to, but excluding, the returned index.
+     */
+    public int getSubtreeEnd(int node) {
+        for (var n = node; n != NO_NODE; n = parents[n]) {
+            if (nextSiblings[n] != NO_NODE) return nextSiblings[n];
+        }
+
+        return frameIds.length;
+    }
+
+    /**
+     * Returns the child of the node with the specified frame name, or {@link #NO_NODE} if there is none.
+     */
+    public int findChild(int node, String frame) {
+        var frameId = frameTable.find(frame);
+        return frameId == FrameTable.NO_FRAME ? NO_NODE : findChild(node, frameId);
+    }
+
+    /**
+     * Returns the child of the node with the specified frame id, or {@link #NO_NODE} if there is none.
+     */
+    public int findChild(int node, int frameId) {
+        for (var child = firstChildren[node]; child != NO_NODE; child = nextSiblings[child]) {
+            if (frameIds[child] == frameId) return child;
+        }
+
+        return NO_NODE;
+    }
+
+    /**
+     * Visits all leaves below the root and passes the path to each to the specified visitor.
+     */
+    public void visitLeaves(CallTreePathVisitor visitor) {
+        traverse(ROOT, visitor, false);
+    }
+
+    /**
+     * Visits all leaves below the specified node and passes the path to each to the specified visitor.
+     */
+    public void visitLeaves(int node, CallTreePathVisitor visitor) {
+        traverse(node, visitor, false);
+    }
+
+    /**
+     * Visits all nodes below the root that allocate something (whether they are leaves or not). Inner nodes are
+     * visited after their children.
+     */
+    public void visitSelfAllocators(CallTreePathVisitor visitor) {
+        traverse(ROOT, visitor, true);
+    }
+
+    /**
+     * Visits all nodes below the specified node that allocate something (whether they are leaves or not). Inner
+     * nodes are visited after their children.
+     */
+    public void visitSelfAllocators(int node, CallTreePathVisitor visitor) {
+        traverse(node, visitor, true);
+    }
+
+    private void traverse(int start, CallTreePathVisitor visitor, boolean selfAllocators) {
+        var path = new CallTreePath(this);
+        var node = firstChildren[Objects.checkIndex(start, frameIds.length)];
+        var ordinal = 0;
+
+        while (node != NO_NODE) {
+            path.push(node, ordinal);
+
+            var child = firstChildren[node];
+            if (child != NO_NODE) {
+                node = child;
+                ordinal = 0;
+                continue;
+            }
+
+            visitor.visitPath(path);
+
+            node = NO_NODE;
+            while (path.getDepth() > 0) {
+                ordinal = path.peekOrdinal() + 1;
+                var sibling = nextSiblings[path.pop()];
+                if (sibling != NO_NODE) {
+                    node = sibling;
+                    break;
+                }
+
+                if (selfAllocators && path.getDepth() > 0 && allocationSizes[path.getLastNode()] > 0) {
+                    visitor.visitPath(path);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a {@link TrieNode} view of the root of this tree.
+     */
+    public TrieNode getRoot() {
+        return new TrieNode(this, ROOT);
+    }
+
+    /**
+     * Returns a {@link TrieNode} view of the specified node of this tree.
+     */
+    public TrieNode getNode(int node) {
+        Objects.checkIndex(node, frameIds.length);
+        return new TrieNode(this, node);
+    }
+
+    /**
+     * Incrementally constructs a {@link CallTree} in pre-order, i.e., a node must be added after its parent and
+     * before any node outside the parent's subtree.
+     */
+    static final class Builder {
+        private int[] frameIds = new int[256];
+        private int[] parents = new int[256];
+        private int[] firstChildren = new int[256];
+        private int[] nextSiblings = new int[256];
+        private int[] lastChildren = new int[256];
+        private long[] allocationSizes = new long[256];
+        private long[] childAccumulatedAllocationSizes = new long[256];
+        private TrieNode[] sources;
+        private int nodeCount = 0;
+
+        /**
+         * @param trackSources true to record the {@link TrieNode} each node was converted from
+         */
+        Builder(boolean trackSources) {
+            sources = trackSources ? new TrieNode[256] : null;
+        }
+
+        int add(int parent, String frame, long allocationSize, long childAccumulatedAllocationSize) {
+            return add(parent, frame, null, allocationSize, childAccumulatedAllocationSize);
+        }
+
+        int add(int parent, String frame, TrieNode source, long allocationSize, long childAccumulatedAllocationSize) {
+            var index = add(parent, frame == null ? NO_NODE : FrameTable.global().intern(frame), allocationSize, childAccumulatedAllocationSize);
+            if (sources != null) sources[index] = source;
+            return index;
+        }
+
+        /**
+         * Adds a node with a frame id from the global {@link FrameTable}, or {@link #NO_NODE} for the root.
+         */
+        int add(int parent, int frameId, long allocationSize, long childAccumulatedAllocationSize) {
+            ensureCapacity(nodeCount + 1);
+
+            var index = nodeCount++;
+            frameIds[index] = frameId;
+            parents[index] = parent;
+            firstChildren[index] = NO_NODE;
+            nextSiblings[index] = NO_NODE;
+            lastChildren[index] = NO_NODE;
+            allocationSizes[index] = allocationSize;
+            childAccumulatedAllocationSizes[index] = childAccumulatedAllocationSize;
+
+            if (parent != NO_NODE) {
+                if (lastChildren[parent] == NO_NODE) firstChildren[parent] = index;
+                else nextSiblings[lastChildren[parent]] = index;
+                lastChildren[parent] = index;
+            }
+
+            return index;
+        }
+
+        /**
+         * Appends all nodes of a fragment built by another builder, attaching the fragment's root as the last child
+         * of the specified parent.
+         */
+        void append(int parent, Builder fragment) {
+            ensureCapacity(nodeCount + fragment.nodeCount);
+
+            var base = nodeCount;
+            for (var i = 0; i < fragment.nodeCount; i++) {
+                frameIds[base + i] = fragment.frameIds[i];
+                parents[base + i] = i == 0 ? parent : fragment.parents[i] + base;
+                firstChildren[base + i] = offset(fragment.firstChildren[i], base);
+                nextSiblings[base + i] = offset(fragment.nextSiblings[i], base);
+                lastChildren[base + i] = offset(fragment.lastChildren[i], base);
+                allocationSizes[base + i] = fragment.allocationSizes[i];
+                childAccumulatedAllocationSizes[base + i] = fragment.childAccumulatedAllocationSizes[i];
+            }
+            nodeCount += fragment.nodeCount;
+
+            if (parent != NO_NODE && fragment.nodeCount > 0) {
+                if (lastChildren[parent] == NO_NODE) firstChildren[parent] = base;
+                else nextSiblings[lastChildren[parent]] = base;
+                lastChildren[parent] = base;
+            }
+        }
+
+        private static int offset(int index, int base) {
+            return index == NO_NODE ? NO_NODE : index + base;
+        }
+
+        void setChildAccumulatedAllocationSize(int index, long childAccumulatedAllocationSize) {
+            childAccumulatedAllocationSizes[index] = childAccumulatedAllocationSize;
+        }
+
+        int getParent(int index) {
+            return parents[index];
+        }
+
+        int getNodeCount() {
+            return nodeCount;
+        }
+
+        long getChildAccumulatedAllocationSize(int index) {
+            return childAccumulatedAllocationSizes[index];
+        }
+
+        private void ensureCapacity(int minimum) {
+            if (minimum <= frameIds.length) return;
+
+            var capacity = Math.max(minimum, frameIds.length * 2);
+            frameIds = Arrays.copyOf(frameIds, capacity);
+            parents = Arrays.copyOf(parents, capacity);
+            firstChildren = Arrays.copyOf(firstChildren, capacity);
+            nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+            lastChildren = Arrays.copyOf(lastChildren, capacity);
+            allocationSizes = Arrays.copyOf(allocationSizes, capacity);
+            childAccumulatedAllocationSizes = Arrays.copyOf(childAccumulatedAllocationSizes, capacity);
+            if (sources != null) sources = Arrays.copyOf(sources, capacity);
+        }
+
+        TrieNode[] getSources() {
+            return sources;
+        }
+
+        CallTree build() {
+            return new CallTree(
+                    Arrays.copyOf(frameIds, nodeCount),
+                    Arrays.copyOf(parents, nodeCount),
+                    Arrays.copyOf(firstChildren, nodeCount),
+                    Arrays.copyOf(nextSiblings, nodeCount),
+                    Arrays.copyOf(allocationSizes, nodeCount),
+                    Arrays.copyOf(childAccumulatedAllocationSizes, nodeCount));
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package dk.stuart.jtestmemprofiler;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Exports a {@link CallTree} in the collapsed stack (folded) format understood by common flame graph tooling, or as
+ * a self-contained HTML flame graph.
+ * <p>
+ * Output is streamed through a reused buffer directly to a channel. Each frame name is encoded once per export, so
+ * no strings are created per stack path.
+ */
+@SuppressWarnings("unused")
+public final class CallTreeExporter {
+    private CallTreeExporter() {
+    }
+
+    /**
+     * Writes a line {@code frame;frame;frame bytes} for every stack path that allocates something directly, outermost
+     * frame first. Separator characters ({@code ;} and whitespace) in frame names are replaced by {@code _}.
+     */
+    public static void writeFolded(CallTree tree, Path path) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeFolded(tree, channel);
+        }
+    }
+
+    /**
+     * Writes the folded stacks of the tree to the specified channel, see {@link #writeFolded(CallTree, Path)}. The
+     * channel is not closed.
+     */
+    public static void writeFolded(CallTree tree, WritableByteChannel channel) throws IOException {
+        var output = new ChannelOutput(channel);
+        var line = new FoldedLine(new FrameBytes(tree, false));
+
+        try {
+            tree.visitSelfAllocators(path -> {
+                var size = path.getAllocationSize(path.getDepth() - 1);
+                if (size > 0) output.put(line.update(path), 0, line.terminate(size));
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        output.flush();
+    }
+
+    /**
+     * Writes a self-contained HTML page rendering the tree as an interactive flame graph, with frame widths
+     * proportional to the accumulated allocation. Clicking a frame zooms to it.
+     */
+    public static void writeFlameGraph(CallTree tree, Path path) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeFlameGraph(tree, channel);
+        }
+    }
+
+    /**
+     * Writes the HTML flame graph of the tree to the specified channel, see {@link #writeFlameGraph(CallTree, Path)}.
+     * The channel is not closed.
+     */
+    public static void writeFlameGraph(CallTree tree, WritableByteChannel channel) throws IOException {
+        try {
+            writeFlameGraph(tree, new ChannelOutput(channel));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static void writeFlameGraph(CallTree tree, ChannelOutput output) throws IOException {
+        var frames = new FrameBytes(tree, true);
+        var localIds = new IntIntMap(expectedFrames(tree));
+
+        output.putAscii(HTML_HEAD);
+
+        output.putAscii("const F=[");
+        var frameCount = 0;
+        for (var node = 1; node < tree.getNodeCount(); node++) {
+            var frameId = tree.getFrameId(node);
+            if (localIds.get(frameId) != IntIntMap.NO_VALUE) continue;
+
+            if (frameCount > 0) output.put((byte) ',');
+            localIds.put(frameId, frameCount++);
+            output.put((byte) '"');
+            output.put(frames.get(frameId));
+            output.put((byte) '"');
+        }
+        output.putAscii("];\n");
+
+        output.putAscii("const N=[");
+        var ancestors = new int[64];
+        var depth = 0;
+        ancestors[0] = CallTree.ROOT;
+        for (var node = 1; node < tree.getNodeCount(); node++) {
+            var parent = tree.getParent(node);
+            while (ancestors[depth] != parent) depth--;
+            depth++;
+            if (depth == ancestors.length) ancestors = Arrays.copyOf(ancestors, depth * 2);
+            ancestors[depth] = node;
+
+            if (node > 1) output.put((byte) ',');
+            output.putLong(depth - 1);
+            output.put((byte) ',');
+            output.putLong(localIds.get(tree.getFrameId(node)));
+            output.put((byte) ',');
+            output.putLong(tree.getChildAccumulatedAllocationSize(node));
+        }
+        output.putAscii("];\n");
+        output.putAscii("const T=");
+        output.putLong(tree.getChildAccumulatedAllocationSize(CallTree.ROOT));
+        output.putAscii(";\n");
+
+        output.putAscii(HTML_TAIL);
+        output.flush();
+    }
+
+    /**
+     * Gets the initial number of distinct frames to size per-frame lookups for, which grow with the frames actually
+     * found in the tree.
+     */
+    private static int expectedFrames(CallTree tree) {
+        return Math.min(tree.getNodeCount(), 1024);
+    }
+
+    /**
+     * The encoded folded line of the current path. Consecutive paths of a traversal share prefixes, so only the
+     * frames below the first depth that differs from the previous path are re-encoded.
+     */
+    private static final class FoldedLine {
+        private final FrameBytes frames;
+        private byte[] bytes = new byte[4096];
+        private int[] nodes = new int[64];
+        private int[] ends = new int[64];
+        private int depth = 0;
+
+        FoldedLine(FrameBytes frames) {
+            this.frames = frames;
+        }
+
+        byte[] update(CallTreePath path) {
+            var common = 0;
+            var limit = Math.min(depth, path.getDepth());
+            while (common < limit && nodes[common] == path.getNode(common)) common++;
+
+            if (path.getDepth() > nodes.length) {
+                nodes = Arrays.copyOf(nodes, Math.max(path.getDepth(), nodes.length * 2));
+                ends = Arrays.copyOf(ends, nodes.length);
+            }
+
+            var length = common == 0 ? 0 : ends[common - 1];
+            for (var d = common; d < path.getDepth(); d++) {
+                var frame = frames.get(path.getFrameId(d));
+                ensureCapacity(length + frame.length + 1);
+                if (d > 0) bytes[length++] = ';';
+                System.arraycopy(frame, 0, bytes, length, frame.length);
+                length += frame.length;
+                nodes[d] = path.getNode(d);
+                ends[d] = length;
+            }
+
+            depth = path.getDepth();
+            return bytes;
+        }
+
+        int terminate(long size) {
+            var length = ends[depth - 1];
+            ensureCapacity(length + 22);
+            bytes[length++] = ' ';
+
+            var start = length;
+            do {
+                bytes[length++] = (byte) ('0' + size % 10);
+                size /= 10;
+            } while (size != 0);
+            for (int i = start, j = length - 1; i < j; i++, j--) {
+                var b = bytes[i];
+                bytes[i] = bytes[j];
+                bytes[j] = b;
+            }
+
+            bytes[length++] = '\n';
+            return length;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+        }
+    }
+
+    /**
+     * Lazily encoded UTF-8 bytes of the frame names of a tree by frame id, held only for the frames of the tree.
+     */
+    private static final class FrameBytes {
+        private final FrameTable frameTable;
+        private final boolean javaScript;
+        private final IntIntMap indexes;
+        private byte[][] encoded;
+
+        FrameBytes(CallTree tree, boolean javaScript) {
+            this.frameTable = tree.getFrameTable();
+            this.javaScript = javaScript;
+            this.indexes = new IntIntMap(expectedFrames(tree));
+            this.encoded = new byte[16][];
+        }
+
+        byte[] get(int frameId) {
+            var index = indexes.get(frameId);
+            if (index != IntIntMap.NO_VALUE) return encoded[index];
+
+            var frame = frameTable.getFrame(frameId);
+            var bytes = (javaScript ? escapeJavaScript(frame) : escapeFolded(frame)).getBytes(StandardCharsets.UTF_8);
+            index = indexes.size();
+            if (index == encoded.length) encoded = Arrays.copyOf(encoded, index * 2);
+            encoded[index] = bytes;
+            indexes.put(frameId, index);
+            return bytes;
+        }
+
+        private static String escapeFolded(String frame) {
+            var result = new StringBuilder(frame.length());
+            for (var i = 0; i < frame.length(); i++) {
+                var c = frame.charAt(i);
+                result.append(c == ';' || Character.isWhitespace(c) ? '_' : c);
+            }
+            return result.toString();
+        }
+
+        private static String escapeJavaScript(String frame) {
+            var result = new StringBuilder(frame.length() + 8);
+            for (var i = 0; i < frame.length(); i++) {
+                var c = frame.charAt(i);
+                switch (c) {
+                    case '"' -> result.append("\\\"");
+                    case '\\' -> result.append("\\\\");
+                    case '<' -> result.append("\\u003c");
+                    case '>' -> result.append("\\u003e");
+                    case '&' -> result.append("\\u0026");
+                    default -> {
+                        if (c < 0x20 || c == '\u2028' || c == '\u2029') result.append(String.format("\\u%04x", (int) c));
+                        else result.append(c);
+                    }
+                }
+            }
+            return result.toString();
+        }
+    }
+
+    private static final String HTML_HEAD = """
+            <!DOCTYPE html>
+            <html lang="en">
+            <head>
+            <meta charset="utf-8">
+            <title>Allocation flame graph</title>
+            <style>
+            body { margin: 0; font: 12px sans-serif; }
+            #info { padding: 4px 8px; height: 16px; white-space: nowrap; overflow: hidden; }
+            canvas { display: block; width: 100%; }
+            </style>
+            </head>
+            <body>
+            <div id="info">Click a frame to zoom, click the background to reset.</div>
+            <canvas id="graph"></canvas>
+            <script>
+            """;
+
+    private static final String HTML_TAIL = """
+            const H = 16, canvas = document.getElementById("graph"), info = document.getElementById("info");
+            const count = N.length / 3, X = new Float64Array(count), D = new Int32Array(count);
+            let maxDepth = 0;
+            { const next = [0]; for (let i = 0; i < count; i++) { const d = N[3 * i], v = N[3 * i + 2], x = next[d] || 0; X[i] = x; D[i] = d; next[d] = x + v; next[d + 1] = x; if (d > maxDepth) maxDepth = d; } }
+            let zoom = -1;
+            function view() { return zoom < 0 ? [0, T, 0] : [X[zoom], N[3 * zoom + 2], D[zoom]]; }
+            function draw() {
+              const width = canvas.clientWidth, ratio = window.devicePixelRatio || 1;
+              canvas.width = width * ratio; canvas.height = (maxDepth + 1) * H * ratio; canvas.style.height = (maxDepth + 1) * H + "px";
+              const g = canvas.getContext("2d"); g.scale(ratio, ratio); g.font = "11px sans-serif";
+              const [x0, total, d0] = view(), scale = width / Math.max(total, 1);
+              for (let i = 0; i < count; i++) {
+                const x = (X[i] - x0) * scale, w = N[3 * i + 2] * scale, d = D[i];
+                if (w < 0.5 || x + w <= 0 || x >= width || d < d0) continue;
+                const y = d * H;
+                g.fillStyle = "hsl(" + (20 + (N[3 * i + 1] * 47) % 40) + ",80%," + (55 + (N[3 * i + 1] * 13) % 15) + "%)";
+                g.fillRect(x, y, w - 1, H - 1);
+                if (w > 30) { g.fillStyle = "#000"; g.save(); g.beginPath(); g.rect(x, y, w - 1, H); g.clip(); g.fillText(F[N[3 * i + 1]], x + 3, y + 12); g.restore(); }
+              }
+            }
+            function find(event) {
+              const rect = canvas.getBoundingClientRect(), [x0, total, d0] = view(), scale = rect.width / Math.max(total, 1);
+              const d = Math.floor((event.clientY - rect.top) / H), x = (event.clientX - rect.left) / scale + x0;
+              for (let i = 0; i < count; i++) if (D[i] === d && d >= d0 && X[i] <= x && x < X[i] + N[3 * i + 2]) return i;
+              return -1;
+            }
+            canvas.onmousemove = e => { const i = find(e); info.textContent = i < 0 ? "" : F[N[3 * i + 1]] + " - " + N[3 * i + 2] + " bytes (" + (100 * N[3 * i + 2] / Math.max(T, 1)).toFixed(2) + "%)"; };
+            canvas.onclick = e => { zoom = find(e); draw(); };
+            window.onresize = draw;
+            draw();
+            </script>
+            </body>
+            </html>
+            """;
+}
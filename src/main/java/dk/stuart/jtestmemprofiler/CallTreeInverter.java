@@ -0,0 +1,162 @@
+package dk.stuart.jtestmemprofiler;
+
+import java.util.Arrays;
+
+/**
+ * Builds the bottom-up (inverted) view of a {@link CallTree}.
+ * <p>
+ * The children of the root of an inverted tree are the frames that allocate directly, their children are the frames
+ * calling them, and so forth up to the thread entry points. The accumulated allocation of an inverted node is the
+ * direct allocation of the root-level frame when called through that chain of callers, and its direct allocation is
+ * the part of that where the chain ends at a thread entry point. Children are ordered by descending accumulated
+ * allocation.
+ */
+@SuppressWarnings("unused")
+public final class CallTreeInverter {
+    private CallTreeInverter() {
+    }
+
+    /**
+     * Inverts the call tree the specified node is the root of.
+     */
+    public static CallTree invert(TrieNode root) {
+        return invert(root.toCallTree());
+    }
+
+    /**
+     * Inverts the specified call tree in a single pass over its self-allocating nodes.
+     */
+    public static CallTree invert(CallTree tree) {
+        var inverted = new MutableTree();
+
+        for (var node = 1; node < tree.getNodeCount(); node++) {
+            var size = tree.getAllocationSize(node);
+            if (size == 0) continue;
+
+            var current = CallTree.ROOT;
+            inverted.accumulated[current] += size;
+            for (var caller = node; caller != CallTree.ROOT; caller = tree.getParent(caller)) {
+                current = inverted.child(current, tree.getFrameId(caller));
+                inverted.accumulated[current] += size;
+            }
+            inverted.self[current] += size;
+        }
+
+        return inverted.toCallTree();
+    }
+
+    /**
+     * An insertion-ordered tree with hashed (parent, frame id) child lookup.
+     */
+    private static final class MutableTree {
+        private int[] frameIds = new int[256];
+        private int[] firstChildren = new int[256];
+        private int[] nextSiblings = new int[256];
+        private long[] self = new long[256];
+        private long[] accumulated = new long[256];
+        private int nodeCount = 1;
+
+        private long[] keys = new long[512];
+        private int[] values = new int[512];
+
+        MutableTree() {
+            frameIds[CallTree.ROOT] = CallTree.NO_NODE;
+            firstChildren[CallTree.ROOT] = CallTree.NO_NODE;
+            nextSiblings[CallTree.ROOT] = CallTree.NO_NODE;
+            Arrays.fill(values, CallTree.NO_NODE);
+        }
+
+        int child(int parent, int frameId) {
+            var key = (long) parent << 32 | (frameId & 0xFFFFFFFFL);
+            var mask = keys.length - 1;
+            var slot = hash(key) & mask;
+            while (values[slot] != CallTree.NO_NODE) {
+                if (keys[slot] == key) return values[slot];
+                slot = (slot + 1) & mask;
+            }
+
+            if (nodeCount == frameIds.length) grow();
+            var index = nodeCount++;
+            frameIds[index] = frameId;
+            firstChildren[index] = CallTree.NO_NODE;
+            nextSiblings[index] = firstChildren[parent];
+            firstChildren[parent] = index;
+
+            keys[slot] = key;
+            values[slot] = index;
+            if (nodeCount * 2 > keys.length) rehash();
+
+            return index;
+        }
+
+        private static int hash(long key) {
+            var h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+
+        private void grow() {
+            var capacity = nodeCount * 2;
+            frameIds = Arrays.copyOf(frameIds, capacity);
+            firstChildren = Arrays.copyOf(firstChildren, capacity);
+            nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+            self = Arrays.copyOf(self, capacity);
+            accumulated = Arrays.copyOf(accumulated, capacity);
+        }
+
+        private void rehash() {
+            var oldKeys = keys;
+            var oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new int[oldValues.length * 2];
+            Arrays.fill(values, CallTree.NO_NODE);
+
+            var mask = keys.length - 1;
+            for (var i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] == CallTree.NO_NODE) continue;
+
+                var slot = hash(oldKeys[i]) & mask;
+                while (values[slot] != CallTree.NO_NODE) slot = (slot + 1) & mask;
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+
+        /**
+         * Lays the tree out in pre-order with the children of every node sorted by descending accumulated allocation.
+         */
+        CallTree toCallTree() {
+            var builder = new CallTree.Builder(false);
+            var stack = new int[64];
+            var stackParents = new int[64];
+            var children = new Integer[16];
+            var size = 1;
+            stack[0] = CallTree.ROOT;
+            stackParents[0] = CallTree.NO_NODE;
+
+            while (size > 0) {
+                size--;
+                var node = stack[size];
+                var index = builder.add(stackParents[size], frameIds[node], self[node], accumulated[node]);
+
+                var childCount = 0;
+                for (var child = firstChildren[node]; child != CallTree.NO_NODE; child = nextSiblings[child]) {
+                    if (childCount == children.length) children = Arrays.copyOf(children, childCount * 2);
+                    children[childCount++] = child;
+                }
+                Arrays.sort(children, 0, childCount, (a, b) -> Long.compare(accumulated[a], accumulated[b]));
+
+                if (size + childCount > stack.length) {
+                    stack = Arrays.copyOf(stack, Math.max(size + childCount, stack.length * 2));
+                    stackParents = Arrays.copyOf(stackParents, stack.length);
+                }
+                for (var i = 0; i < childCount; i++) {
+                    stack[size] = children[i];
+                    stackParents[size] = index;
+                    size++;
+                }
+            }
+
+            return builder.build();
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package dk.stuart.jtestmemprofiler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Merges and diffs {@link CallTree} instances.
+ * <p>
+ * Nodes of the input trees are matched by their path of frame ids from the root. The direct allocation of a resulting
+ * node is the (signed) sum of the direct allocations of the matched input nodes, and the accumulated allocation is
+ * recomputed from the resulting tree. Children are ordered by frame id.
+ * <p>
+ * Independent subtrees are merged in parallel on the common {@link ForkJoinPool}. Subtrees with fewer input nodes
+ * than a threshold, and subtrees deeper than a fixed number of levels, are merged sequentially without recursion, so
+ * the depth of a call tree is not limited by the stack size.
+ */
+@SuppressWarnings("unused")
+public final class CallTreeMerger {
+    private static final int SEQUENTIAL_THRESHOLD = 8192;
+    private static final int MAX_FORK_DEPTH = 32;
+
+    private CallTreeMerger() {
+    }
+
+    /**
+     * Merges the specified trees into one tree with the allocations of all trees added together.
+     */
+    public static CallTree merge(Collection<CallTree> trees) {
+        var weights = new long[trees.size()];
+        Arrays.fill(weights, 1);
+        return combine(trees.toArray(new CallTree[0]), weights);
+    }
+
+    /**
+     * Merges the specified trees into one tree with the allocations of all trees added together.
+     */
+    public static CallTree merge(CallTree... trees) {
+        return merge(Arrays.asList(trees));
+    }
+
+    /**
+     * Computes a signed delta tree with the allocations of the baseline subtracted from the allocations of the current
+     * tree. Call paths only present in the baseline have negative allocations.
+     */
+    public static CallTree diff(CallTree baseline, CallTree current) {
+        return combine(new CallTree[] { current, baseline }, new long[] { 1, -1 });
+    }
+
+    private static CallTree combine(CallTree[] trees, long[] weights) {
+        var groupTrees = new int[trees.length];
+        var groupNodes = new int[trees.length];
+        for (var i = 0; i < trees.length; i++) {
+            groupTrees[i] = i;
+            groupNodes[i] = CallTree.ROOT;
+        }
+
+        if (trees.length == 0) {
+            var builder = new CallTree.Builder(false);
+            builder.add(CallTree.NO_NODE, CallTree.NO_NODE, 0, 0);
+            return builder.build();
+        }
+
+        return ForkJoinPool.commonPool().invoke(new MergeTask(trees, weights, groupTrees, groupNodes, 0)).build();
+    }
+
+    /**
+     * Merges a group of input nodes sharing the same path, and their subtrees, into a tree fragment whose root is the
+     * merged node.
+     */
+    private static final class MergeTask extends RecursiveTask<CallTree.Builder> {
+        private static final long serialVersionUID = 1L;
+
+        private final CallTree[] trees;
+        private final long[] weights;
+        private final int[] groupTrees;
+        private final int[] groupNodes;
+        private final int depth;
+
+        MergeTask(CallTree[] trees, long[] weights, int[] groupTrees, int[] groupNodes, int depth) {
+            this.trees = trees;
+            this.weights = weights;
+            this.groupTrees = groupTrees;
+            this.groupNodes = groupNodes;
+            this.depth = depth;
+        }
+
+        @Override
+        protected CallTree.Builder compute() {
+            var builder = new CallTree.Builder(false);
+
+            var inputSize = 0L;
+            for (var i = 0; i < groupTrees.length; i++) {
+                var tree = trees[groupTrees[i]];
+                inputSize += tree.getSubtreeEnd(groupNodes[i]) - groupNodes[i];
+            }
+
+            if (inputSize <= SEQUENTIAL_THRESHOLD || depth >= MAX_FORK_DEPTH) {
+                mergeSequentially(builder, CallTree.NO_NODE, groupTrees, groupNodes);
+                return builder;
+            }
+
+            var self = selfAllocation(groupTrees, groupNodes);
+            var root = builder.add(CallTree.NO_NODE, frameId(groupTrees, groupNodes), self, 0);
+
+            var tasks = new ArrayList<MergeTask>();
+            forEachChildGroup(groupTrees, groupNodes, (childTrees, childNodes) -> tasks.add(new MergeTask(trees, weights, childTrees, childNodes, depth + 1)));
+            invokeAll(tasks);
+
+            var accumulated = self;
+            for (var task : tasks) {
+                var fragment = task.join();
+                accumulated += fragment.getChildAccumulatedAllocationSize(0);
+                builder.append(root, fragment);
+            }
+            builder.setChildAccumulatedAllocationSize(root, accumulated);
+
+            return builder;
+        }
+
+        /**
+         * Merges a group and its subtrees into the builder without recursion, using an explicit stack of pending
+         * groups, so deep call paths cannot overflow the thread's stack. Accumulated allocation is summed afterward
+         * from the last node back, since every node is added after its parent.
+         */
+        private void mergeSequentially(CallTree.Builder builder, int parent, int[] nodeTrees, int[] nodes) {
+            var first = builder.getNodeCount();
+            var pending = new ArrayDeque<PendingGroup>();
+            var children = new ArrayList<PendingGroup>();
+            pending.push(new PendingGroup(parent, nodeTrees, nodes));
+
+            while (!pending.isEmpty()) {
+                var group = pending.pop();
+                var self = selfAllocation(group.trees, group.nodes);
+                var index = builder.add(group.parent, frameId(group.trees, group.nodes), self, self);
+
+                forEachChildGroup(group.trees, group.nodes, (childTrees, childNodes) -> children.add(new PendingGroup(index, childTrees, childNodes)));
+                for (var i = children.size() - 1; i >= 0; i--) pending.push(children.get(i));
+                children.clear();
+            }
+
+            for (var index = builder.getNodeCount() - 1; index > first; index--) {
+                var parentIndex = builder.getParent(index);
+                builder.setChildAccumulatedAllocationSize(parentIndex, builder.getChildAccumulatedAllocationSize(parentIndex) + builder.getChildAccumulatedAllocationSize(index));
+            }
+        }
+
+        private long selfAllocation(int[] nodeTrees, int[] nodes) {
+            var self = 0L;
+            for (var i = 0; i < nodeTrees.length; i++) {
+                self += weights[nodeTrees[i]] * trees[nodeTrees[i]].getAllocationSize(nodes[i]);
+            }
+            return self;
+        }
+
+        private int frameId(int[] nodeTrees, int[] nodes) {
+            return trees[nodeTrees[0]].getFrameId(nodes[0]);
+        }
+
+        /**
+         * Groups the children of all the specified nodes by frame id, in order of frame id.
+         */
+        private void forEachChildGroup(int[] nodeTrees, int[] nodes, ChildGroupConsumer consumer) {
+            var childCount = 0;
+            for (var i = 0; i < nodeTrees.length; i++) {
+                var tree = trees[nodeTrees[i]];
+                for (var child = tree.getFirstChild(nodes[i]); child != CallTree.NO_NODE; child = tree.getNextSibling(child)) {
+                    childCount++;
+                }
+            }
+            if (childCount == 0) return;
+
+            var keys = new long[childCount];
+            var childTrees = new int[childCount];
+            var childNodes = new int[childCount];
+            var position = 0;
+            for (var i = 0; i < nodeTrees.length; i++) {
+                var tree = trees[nodeTrees[i]];
+                for (var child = tree.getFirstChild(nodes[i]); child != CallTree.NO_NODE; child = tree.getNextSibling(child)) {
+                    keys[position] = (long) tree.getFrameId(child) << 32 | position;
+                    childTrees[position] = nodeTrees[i];
+                    childNodes[position] = child;
+                    position++;
+                }
+            }
+            Arrays.sort(keys);
+
+            var start = 0;
+            while (start < childCount) {
+                var frameId = (int) (keys[start] >>> 32);
+                var end = start + 1;
+                while (end < childCount && (int) (keys[end] >>> 32) == frameId) end++;
+
+                var groupTrees = new int[end - start];
+                var groupNodes = new int[end - start];
+                for (var i = start; i < end; i++) {
+                    var original = (int) keys[i];
+                    groupTrees[i - start] = childTrees[original];
+                    groupNodes[i - start] = childNodes[original];
+                }
+                consumer.accept(groupTrees, groupNodes);
+
+                start = end;
+            }
+        }
+    }
+
+    private record PendingGroup(int parent, int[] trees, int[] nodes) {
+    }
+
+    private interface ChildGroupConsumer {
+        void accept(int[] groupTrees, int[] groupNodes);
+    }
+}
@@ -0,0 +1,105 @@
+package dk.stuart.jtestmemprofiler;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * A mutable path from just below a traversal's starting node down to the node currently being visited in a
+ * {@link CallTree}. Depth 0 is the outermost frame on the path and {@link #getDepth()} - 1 is the visited node.
+ * <p>
+ * A single instance is reused for the entire traversal, so it is only valid for the duration of the
+ * {@link CallTreePathVisitor#visitPath(CallTreePath)} call. Copy out any values that need to be retained.
+ */
+@SuppressWarnings("unused")
+public final class CallTreePath {
+    private final CallTree tree;
+    private int[] nodes = new int[32];
+    private int[] ordinals = new int[32];
+    private int depth = 0;
+
+    CallTreePath(CallTree tree) {
+        this.tree = tree;
+    }
+
+    /**
+     * Returns the tree being traversed.
+     */
+    public CallTree getTree() {
+        return tree;
+    }
+
+    /**
+     * Returns the number of frames on the path.
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Returns the tree node index at the specified depth.
+     */
+    public int getNode(int depth) {
+        return nodes[Objects.checkIndex(depth, this.depth)];
+    }
+
+    /**
+     * Returns the tree node index of the node being visited, i.e., the deepest node on the path.
+     */
+    public int getLastNode() {
+        return nodes[depth - 1];
+    }
+
+    /**
+     * Returns the frame id of the node at the specified depth.
+     */
+    public int getFrameId(int depth) {
+        return tree.getFrameId(getNode(depth));
+    }
+
+    /**
+     * Returns the frame name (declaring class and method) of the node at the specified depth.
+     */
+    public String getFrameName(int depth) {
+        return tree.getFrameName(getNode(depth));
+    }
+
+    /**
+     * Returns the direct allocation of the node at the specified depth.
+     */
+    public long getAllocationSize(int depth) {
+        return tree.getAllocationSize(getNode(depth));
+    }
+
+    /**
+     * Returns the accumulated allocation of the node at the specified depth and all its children recursively.
+     */
+    public long getChildAccumulatedAllocationSize(int depth) {
+        return tree.getChildAccumulatedAllocationSize(getNode(depth));
+    }
+
+    /**
+     * Returns the position of the node at the specified depth among its siblings.
+     */
+    int getOrdinal(int depth) {
+        return ordinals[Objects.checkIndex(depth, this.depth)];
+    }
+
+    void push(int node, int ordinal) {
+        if (depth == nodes.length) {
+            nodes = Arrays.copyOf(nodes, depth * 2);
+            ordinals = Arrays.copyOf(ordinals, depth * 2);
+        }
+
+        nodes[depth] = node;
+        ordinals[depth] = ordinal;
+        depth++;
+    }
+
+    int pop() {
+        return nodes[--depth];
+    }
+
+    int peekOrdinal() {
+        return ordinals[depth - 1];
+    }
+}
@@ -0,0 +1,12 @@
+package dk.stuart.jtestmemprofiler;
+
+/**
+ * Visitor for acting on selected call tree nodes through a reused {@link CallTreePath}.
+ */
+public interface CallTreePathVisitor {
+    /**
+     * Perform an action on an allocation path (e.g. self-allocators or leaves).
+     * @param path The current path leading to this node, only valid for the duration of the call.
+     */
+    void visitPath(CallTreePath path);
+}
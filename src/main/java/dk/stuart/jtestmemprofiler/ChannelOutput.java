@@ -0,0 +1,120 @@
+package dk.stuart.jtestmemprofiler;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A reused heap buffer in front of a channel. Failures writing to the channel while the buffer is drained are
+ * reported as {@link UncheckedIOException} so the output can be used from visitor callbacks.
+ */
+final class ChannelOutput {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final byte[] digits = new byte[20];
+
+    ChannelOutput(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    void put(byte b) {
+        if (!buffer.hasRemaining()) drain();
+        buffer.put(b);
+    }
+
+    void put(byte[] bytes) {
+        put(bytes, 0, bytes.length);
+    }
+
+    void put(byte[] bytes, int offset, int length) {
+        var end = offset + length;
+        while (offset < end) {
+            if (!buffer.hasRemaining()) drain();
+            var chunk = Math.min(buffer.remaining(), end - offset);
+            buffer.put(bytes, offset, chunk);
+            offset += chunk;
+        }
+    }
+
+    void putAscii(String text) {
+        for (var i = 0; i < text.length(); i++) {
+            put((byte) text.charAt(i));
+        }
+    }
+
+    /**
+     * Writes the value as decimal ASCII digits.
+     */
+    void putLong(long value) {
+        if (value < 0) {
+            put((byte) '-');
+            if (value == Long.MIN_VALUE) {
+                putAscii("9223372036854775808");
+                return;
+            }
+            value = -value;
+        }
+
+        var position = digits.length;
+        do {
+            digits[--position] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+
+        while (position < digits.length) put(digits[position++]);
+    }
+
+    /**
+     * Writes the value as an unsigned LEB128 varint.
+     */
+    void putVarLong(long value) {
+        while ((value & ~0x7FL) != 0) {
+            put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        put((byte) value);
+    }
+
+    /**
+     * Writes the value zigzag encoded as an unsigned LEB128 varint, so small negative values stay short.
+     */
+    void putSignedVarLong(long value) {
+        putVarLong((value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * Returns the number of bytes {@link #putVarLong(long)} writes for the value.
+     */
+    static int varLongSize(long value) {
+        var size = 1;
+        while ((value & ~0x7FL) != 0) {
+            size++;
+            value >>>= 7;
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of bytes {@link #putSignedVarLong(long)} writes for the value.
+     */
+    static int signedVarLongSize(long value) {
+        return varLongSize((value << 1) ^ (value >> 63));
+    }
+
+    void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+
+    private void drain() {
+        try {
+            flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
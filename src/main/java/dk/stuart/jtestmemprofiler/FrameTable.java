@@ -0,0 +1,85 @@
+package dk.stuart.jtestmemprofiler;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A global symbol table interning stack frame names (declaring class and method) to small int ids.
+ * <p>
+ * All {@link CallTree} instances refer to their frames by id into this table, so every distinct frame name is held
+ * once per JVM no matter how many call trees are retained, and frames can be compared by id. Ids are dense, start
+ * at 0 and are never reused; interned names are retained for the lifetime of the JVM.
+ * <p>
+ * The table is safe for use by multiple threads. Lookups by id and by name do not lock.
+ */
+@SuppressWarnings("unused")
+public final class FrameTable {
+    /**
+     * Id returned by {@link #find(String)} for frame names that have not been interned.
+     */
+    public static final int NO_FRAME = -1;
+
+    private static final FrameTable GLOBAL = new FrameTable();
+
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] frames = new String[1024];
+    private volatile int size = 0;
+
+    private FrameTable() {
+    }
+
+    /**
+     * Returns the table shared by all call trees.
+     */
+    public static FrameTable global() {
+        return GLOBAL;
+    }
+
+    /**
+     * Returns the id of the specified frame name, adding it to the table if it is not already present.
+     */
+    public int intern(String frame) {
+        var id = ids.get(frame);
+        if (id != null) return id;
+
+        synchronized (this) {
+            id = ids.get(frame);
+            if (id != null) return id;
+
+            // Publish the frame and the new size before the id, so a reader that finds the id can also read the frame.
+            var next = size;
+            var current = frames;
+            if (next == current.length) current = Arrays.copyOf(current, next * 2);
+            current[next] = frame;
+            frames = current;
+            size = next + 1;
+            ids.put(frame, next);
+            return next;
+        }
+    }
+
+    /**
+     * Returns the id of the specified frame name, or {@link #NO_FRAME} if it has not been interned.
+     */
+    public int find(String frame) {
+        var id = ids.get(frame);
+        return id == null ? NO_FRAME : id;
+    }
+
+    /**
+     * Returns the frame name with the specified id.
+     *
+     * @throws IndexOutOfBoundsException if no frame with the id has been interned
+     */
+    public String getFrame(int id) {
+        if (id < 0 || id >= size) throw new IndexOutOfBoundsException("Unknown frame id " + id);
+        return frames[id];
+    }
+
+    /**
+     * Returns the number of interned frame names.
+     */
+    public int size() {
+        return size;
+    }
+}
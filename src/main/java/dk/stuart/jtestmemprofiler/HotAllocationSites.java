@@ -0,0 +1,185 @@
+package dk.stuart.jtestmemprofiler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Finds the frames of a {@link CallTree} that allocate the most directly, summed over all call paths, together with
+ * their dominant callers.
+ * <p>
+ * The query scans the nodes of the tree twice without following call paths, in O(nodes log n) time: once to sum direct
+ * allocation per frame, selecting the heaviest frames with a bounded heap, and once to sum the allocation of just those
+ * frames per calling frame. Frames are numbered through an open-addressing map of the distinct frames of the tree, so
+ * apart from a sum per distinct frame the memory used is proportional to the number of requested sites and callers,
+ * and grows neither with the number of nodes nor with the global {@link FrameTable}.
+ */
+@SuppressWarnings("unused")
+public final class HotAllocationSites {
+    private HotAllocationSites() {
+    }
+
+    /**
+     * Returns up to n frames with the highest direct allocation, highest first, each with up to maxCallers calling
+     * frames ordered by how much of the frame's allocation happened when called from them.
+     */
+    public static List<Site> top(TrieNode root, int n, int maxCallers) {
+        return top(root.toCallTree(), n, maxCallers);
+    }
+
+    /**
+     * Returns up to n frames with the highest direct allocation, highest first, each with up to maxCallers calling
+     * frames ordered by how much of the frame's allocation happened when called from them.
+     */
+    public static List<Site> top(CallTree tree, int n, int maxCallers) {
+        if (n <= 0) return List.of();
+
+        var nodeCount = tree.getNodeCount();
+        var locals = new IntIntMap(Math.min(nodeCount, 1024));
+        var frameIds = new int[16];
+        var totals = new long[16];
+        for (var node = 1; node < nodeCount; node++) {
+            var frameId = tree.getFrameId(node);
+            var local = locals.get(frameId);
+            if (local == IntIntMap.NO_VALUE) {
+                local = locals.size();
+                if (local == frameIds.length) {
+                    frameIds = Arrays.copyOf(frameIds, local * 2);
+                    totals = Arrays.copyOf(totals, local * 2);
+                }
+                frameIds[local] = frameId;
+                locals.put(frameId, local);
+            }
+            totals[local] += tree.getAllocationSize(node);
+        }
+
+        var heap = new BoundedHeap(n);
+        for (var local = 0; local < locals.size(); local++) {
+            if (totals[local] > 0) heap.offer(local, totals[local]);
+        }
+
+        var frames = heap.drainDescending();
+        var ranks = new IntIntMap(frames.length);
+        for (var rank = 0; rank < frames.length; rank++) {
+            ranks.put(frameIds[frames[rank]], rank);
+        }
+
+        var callers = new HashMap<Long, long[]>();
+        for (var node = 1; node < nodeCount; node++) {
+            var size = tree.getAllocationSize(node);
+            if (size == 0) continue;
+            var rank = ranks.get(tree.getFrameId(node));
+            if (rank == IntIntMap.NO_VALUE) continue;
+
+            var caller = tree.getFrameId(tree.getParent(node));
+            callers.computeIfAbsent((long) rank << 32 | (caller & 0xFFFFFFFFL), key -> new long[1])[0] += size;
+        }
+
+        var callerLists = new ArrayList<List<Caller>>(frames.length);
+        for (var rank = 0; rank < frames.length; rank++) {
+            callerLists.add(new ArrayList<>());
+        }
+        for (var entry : callers.entrySet()) {
+            var rank = (int) (entry.getKey() >>> 32);
+            var caller = (int) (long) entry.getKey();
+            callerLists.get(rank).add(new Caller(caller == CallTree.NO_NODE ? null : tree.getFrame(caller), entry.getValue()[0]));
+        }
+
+        var result = new ArrayList<Site>(frames.length);
+        for (var rank = 0; rank < frames.length; rank++) {
+            var siteCallers = callerLists.get(rank);
+            siteCallers.sort(Comparator.comparingLong(Caller::allocationSize).reversed());
+            var limited = List.copyOf(siteCallers.subList(0, Math.min(Math.max(maxCallers, 0), siteCallers.size())));
+            result.add(new Site(tree.getFrame(frameIds[frames[rank]]), totals[frames[rank]], limited));
+        }
+        return result;
+    }
+
+    /**
+     * A frame and its direct allocation summed over all call paths.
+     * @param frame The frame name (declaring class and method)
+     * @param allocationSize The direct allocation of the frame
+     * @param callers The dominant callers of the frame, highest allocation first
+     */
+    public record Site(String frame, long allocationSize, List<Caller> callers) {
+    }
+
+    /**
+     * A frame calling an allocation site.
+     * @param frame The calling frame name, or null if the allocation site is a thread entry point
+     * @param allocationSize The direct allocation of the site when called from this frame
+     */
+    public record Caller(String frame, long allocationSize) {
+    }
+
+    /**
+     * A min-heap of at most a fixed number of frame ids keyed by allocation, retaining the largest offered.
+     */
+    private static final class BoundedHeap {
+        private final int[] frameIds;
+        private final long[] sizes;
+        private int count = 0;
+
+        BoundedHeap(int capacity) {
+            frameIds = new int[capacity];
+            sizes = new long[capacity];
+        }
+
+        void offer(int frameId, long size) {
+            if (count < frameIds.length) {
+                frameIds[count] = frameId;
+                sizes[count] = size;
+                siftUp(count++);
+            } else if (size > sizes[0]) {
+                frameIds[0] = frameId;
+                sizes[0] = size;
+                siftDown(0);
+            }
+        }
+
+        int[] drainDescending() {
+            var result = new int[count];
+            while (count > 0) {
+                result[count - 1] = frameIds[0];
+                count--;
+                frameIds[0] = frameIds[count];
+                sizes[0] = sizes[count];
+                siftDown(0);
+            }
+            return result;
+        }
+
+        private void siftUp(int index) {
+            while (index > 0) {
+                var parent = (index - 1) / 2;
+                if (sizes[parent] <= sizes[index]) return;
+                swap(parent, index);
+                index = parent;
+            }
+        }
+
+        private void siftDown(int index) {
+            while (true) {
+                var smallest = index;
+                var left = 2 * index + 1;
+                var right = left + 1;
+                if (left < count && sizes[left] < sizes[smallest]) smallest = left;
+                if (right < count && sizes[right] < sizes[smallest]) smallest = right;
+                if (smallest == index) return;
+                swap(smallest, index);
+                index = smallest;
+            }
+        }
+
+        private void swap(int a, int b) {
+            var frameId = frameIds[a];
+            frameIds[a] = frameIds[b];
+            frameIds[b] = frameId;
+            var size = sizes[a];
+            sizes[a] = sizes[b];
+            sizes[b] = size;
+        }
+    }
+}
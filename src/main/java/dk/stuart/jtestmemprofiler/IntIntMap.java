@@ -0,0 +1,83 @@
+package dk.stuart.jtestmemprofiler;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing map from non-negative int keys to int values, e.g. from global frame ids to ids local to a single
+ * call tree, so that the memory used is proportional to the keys in the map rather than to the largest key.
+ */
+final class IntIntMap {
+    /**
+     * Value returned by {@link #get(int)} for keys that are not in the map.
+     */
+    static final int NO_VALUE = -1;
+
+    private static final int EMPTY = -1;
+
+    private int[] keys;
+    private int[] values;
+    private int size = 0;
+
+    /**
+     * Constructs a map with room for the expected number of keys before growing.
+     */
+    IntIntMap(int expectedSize) {
+        var capacity = Integer.highestOneBit(Math.max(expectedSize, 8) * 2 - 1) << 1;
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    /**
+     * Gets the value of the key, or {@link #NO_VALUE} if the key is not in the map.
+     */
+    int get(int key) {
+        var mask = keys.length - 1;
+        for (var slot = slot(key, mask); ; slot = (slot + 1) & mask) {
+            var current = keys[slot];
+            if (current == key) return values[slot];
+            if (current == EMPTY) return NO_VALUE;
+        }
+    }
+
+    /**
+     * Sets the value of the key.
+     */
+    void put(int key, int value) {
+        if (key < 0) throw new IllegalArgumentException("Key must not be negative");
+        if ((size + 1) * 2 > keys.length) grow();
+        insert(key, value);
+    }
+
+    /**
+     * Gets the number of keys in the map.
+     */
+    int size() {
+        return size;
+    }
+
+    private void insert(int key, int value) {
+        var mask = keys.length - 1;
+        var slot = slot(key, mask);
+        while (keys[slot] != EMPTY && keys[slot] != key) slot = (slot + 1) & mask;
+        if (keys[slot] == EMPTY) size++;
+        keys[slot] = key;
+        values[slot] = value;
+    }
+
+    private void grow() {
+        var oldKeys = keys;
+        var oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new int[oldValues.length * 2];
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+        for (var i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) insert(oldKeys[i], oldValues[i]);
+        }
+    }
+
+    private static int slot(int key, int mask) {
+        return (key * 0x9E3779B9 >>> 16 ^ key * 0x9E3779B9) & mask;
+    }
+}
@@ -1,7 +1,12 @@
 package dk.stuart.jtestmemprofiler;
 
+import java.nio.ByteBuffer;
+
 public class NativeCallTreeCollector implements NativeCollector {
+    private static final NativeResultBuffer.Transfer TRANSFER = new NativeResultBuffer.Transfer(NativeCallTreeCollector::write);
+
     long nativeHandle;
+    private final NativeResultBuffer results = new NativeResultBuffer(TRANSFER);
 
     public NativeCallTreeCollector() {
         nativeHandle = init();
@@ -13,6 +18,11 @@ public class NativeCallTreeCollector implements NativeCollector {
 
     private static native Object get(long nativeHandle);
 
+    /**
+     * Writes the call tree as a call tree profile, see {@link NativeResultBuffer.Writer}.
+     */
+    private static native int write(long nativeHandle, ByteBuffer buffer);
+
     @Override
     public void close() {
         var handle = nativeHandle;
@@ -21,7 +31,32 @@ public class NativeCallTreeCollector implements NativeCollector {
     }
 
     public TrieNode getAllocations() {
-        return (TrieNode) get(nativeHandle);
+        return getCallTree().getRoot();
+    }
+
+    /**
+     * Decodes the call tree written by the agent into a compact {@link CallTree}, or converts the trie built by the
+     * agent if it does not support binary transfer, so only the compact form is retained. The trie is drained while it
+     * is converted, so converted parts of it can be collected before the conversion completes.
+     */
+    public CallTree getCallTree() {
+        var profile = readProfile();
+        return profile != null ? profile.readCallTree() : CallTree.drain((TrieNode) get(nativeHandle));
+    }
+
+    /**
+     * Gets the total allocation, which only decodes the root of the call tree if the agent supports binary transfer.
+     */
+    long getTotal() {
+        var profile = readProfile();
+        return profile != null ? profile.getTotal() : getCallTree().getChildAccumulatedAllocationSize(CallTree.ROOT);
+    }
+
+    /**
+     * Reads the call tree written by the agent, or returns null if it does not support binary transfer.
+     */
+    synchronized ProfileReader readProfile() {
+        return results.read(nativeHandle);
     }
 
     @Override
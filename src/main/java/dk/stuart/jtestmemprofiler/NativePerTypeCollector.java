@@ -1,9 +1,13 @@
 package dk.stuart.jtestmemprofiler;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 
 class NativePerTypeCollector implements NativeCollector {
+	private static final NativeResultBuffer.Transfer TRANSFER = new NativeResultBuffer.Transfer(NativePerTypeCollector::write);
+
 	long nativeHandle;
+	private final NativeResultBuffer results = new NativeResultBuffer(TRANSFER);
 
 	public NativePerTypeCollector() {
 		nativeHandle = init();
@@ -15,6 +19,11 @@ class NativePerTypeCollector implements NativeCollector {
 
 	private static native Object get(long nativeHandle);
 
+	/**
+	 * Writes the allocations as a per-type profile, see {@link NativeResultBuffer.Writer}.
+	 */
+	private static native int write(long nativeHandle, ByteBuffer buffer);
+
 	@Override
 	public void close() {
 		var handle = nativeHandle;
@@ -22,9 +31,35 @@ class NativePerTypeCollector implements NativeCollector {
 		cleanup(handle);
 	}
 
+	/**
+	 * Decodes the allocations written by the agent, or builds the map over JNI if the agent does not support binary
+	 * transfer.
+	 */
 	@SuppressWarnings("unchecked")
 	public HashMap<String, Long> getAllocations() {
-		return (HashMap<String, Long>)get(nativeHandle);
+		var profile = readProfile();
+		return profile != null ? profile.readPerType() : (HashMap<String, Long>)get(nativeHandle);
+	}
+
+	/**
+	 * Gets the total allocation, which does not decode the type names if the agent supports binary transfer.
+	 */
+	long getTotal() {
+		var profile = readProfile();
+		if (profile != null) return profile.getTotal();
+
+		var total = 0L;
+		for (var allocation : getAllocations().values()) {
+			total += allocation;
+		}
+		return total;
+	}
+
+	/**
+	 * Reads the allocations written by the agent, or returns null if it does not support binary transfer.
+	 */
+	synchronized ProfileReader readProfile() {
+		return results.read(nativeHandle);
 	}
 
 	@Override
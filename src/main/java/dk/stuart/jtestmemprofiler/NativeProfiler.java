@@ -13,6 +13,18 @@ class NativeProfiler {
 
 	private static native int setSampleRate(int sampleRate);
 
+	/**
+	 * Gets a value indicating whether the native methods have been bound by the agent.
+	 */
+	static boolean isAvailable() {
+		try {
+			isEnabled();
+			return true;
+		} catch (UnsatisfiedLinkError e) {
+			return false;
+		}
+	}
+
 	public void doEnable() {
 		var error = enable();
 		if (error != 0) throw new ProfilerException(error);
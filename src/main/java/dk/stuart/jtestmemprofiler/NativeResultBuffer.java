@@ -0,0 +1,106 @@
+package dk.stuart.jtestmemprofiler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A reusable direct buffer into which the native agent writes the results of a collector as a binary profile in the
+ * format of {@link ProfileWriter}, so that reading the results costs a copy out of the buffer rather than a JNI call per
+ * type or call-tree node. The copy is read by {@link ProfileReader}, which only decodes what is queried.
+ */
+final class NativeResultBuffer {
+	private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+	private static final ByteBuffer EMPTY = ByteBuffer.allocateDirect(0);
+
+	private final Transfer transfer;
+	private ByteBuffer buffer = EMPTY;
+
+	NativeResultBuffer(Transfer transfer) {
+		this.transfer = transfer;
+	}
+
+	/**
+	 * Writes the results of a collector into a buffer.
+	 */
+	interface Writer {
+		/**
+		 * @return the number of bytes written from the start of the buffer, or the negated number of bytes needed if
+		 *         the buffer is too small
+		 */
+		int write(long nativeHandle, ByteBuffer buffer);
+	}
+
+	/**
+	 * The native writer of a collector class. The JVM does not remember that it failed to look up a native method, so
+	 * the first failure is remembered here and later reads return without calling the writer. Calls are serialized
+	 * until the first one has returned, so the lookup fails at most once.
+	 */
+	static final class Transfer {
+		static final long UNLINKED = Long.MIN_VALUE;
+
+		private final Writer writer;
+		private volatile Boolean linked;
+
+		Transfer(Writer writer) {
+			this.writer = writer;
+		}
+
+		/**
+		 * @return the result of the writer, or {@link #UNLINKED} if the agent does not implement it
+		 */
+		long write(long nativeHandle, ByteBuffer buffer) {
+			var known = linked;
+			if (known == null) {
+				synchronized (this) {
+					if (linked == null) {
+						try {
+							var written = writer.write(nativeHandle, buffer);
+							linked = true;
+							return written;
+						} catch (UnsatisfiedLinkError e) {
+							linked = false;
+						}
+					}
+					known = linked;
+				}
+			}
+			return known ? writer.write(nativeHandle, buffer) : UNLINKED;
+		}
+	}
+
+	/**
+	 * Lets the agent write the results of the collector, growing the buffer until they fit, and copies them out of the
+	 * buffer. The first read passes an empty buffer, so the agent sizes the buffer and an agent without binary transfer
+	 * costs no buffer.
+	 * @return a reader of a copy of the results, or null if the agent does not implement binary transfer
+	 * @throws IllegalStateException if the written results do not fit in a buffer or are not a valid profile
+	 */
+	ProfileReader read(long nativeHandle) {
+		long written;
+		while ((written = transfer.write(nativeHandle, buffer)) < 0) {
+			if (written == Transfer.UNLINKED) return null;
+
+			buffer = ByteBuffer.allocateDirect(grow(buffer.capacity(), -written));
+		}
+		if (written > buffer.capacity())
+			throw new IllegalStateException(String.format("The native agent wrote %d bytes into a buffer of %d", written, buffer.capacity()));
+
+		var copy = ByteBuffer.allocate((int) written).put(buffer.duplicate().position(0).limit((int) written)).flip();
+		try {
+			return ProfileReader.of(copy);
+		} catch (IOException e) {
+			throw new IllegalStateException("The native agent wrote malformed results", e);
+		}
+	}
+
+	/**
+	 * Computes the capacity of a buffer replacing one that is too small, doubling it to amortize growth.
+	 * @throws IllegalStateException if the required size does not exceed the capacity or cannot be allocated
+	 */
+	static int grow(int capacity, long required) {
+		if (required <= capacity || required > MAX_CAPACITY)
+			throw new IllegalStateException(String.format("The native agent needs %d bytes for results in a buffer of %d", required, capacity));
+
+		return (int) Math.min(Math.max(2L * capacity, required), MAX_CAPACITY);
+	}
+}
@@ -0,0 +1,249 @@
+package dk.stuart.jtestmemprofiler;
+
+import java.util.*;
+
+/**
+ * The allocation of a {@link Profiler} broken down by thread, measured through the allocation counter the JVM keeps for
+ * each thread.
+ * <p>
+ * Only the total of each thread is measured: the counters include every allocation by the thread, regardless of the
+ * type filter and sample rate of the profiler. Each thread only increments its own counter, so allocating threads never
+ * contend; the counters of all tracked threads are read in a single call when profiling is enabled or disabled and when
+ * the results are read. The threads are those of the thread filter of the profiler, or otherwise every live platform
+ * thread, which are only enumerated again when the JVM reports a thread not yet tracked. A thread that terminates while
+ * profiling is counted up to the last time the counters were read, unless it leaves a thread registry before
+ * terminating, as the threads of a wrapped thread factory or executor do.
+ */
+final class PerThreadAllocations {
+    private final Set<Thread> threads;
+    private final ThreadRegistry registry;
+    private final ThreadRegistry.MembershipListener listener;
+    private final LinkedHashMap<Thread, Entry> entries = new LinkedHashMap<>();
+    /** The sorted ids of the live platform threads when every thread was last enumerated. */
+    private long[] seenThreadIds = new long[0];
+    private boolean running = false;
+
+    /**
+     * Constructs the breakdown of the specified threads.
+     * @param threads Fixed set of threads, or null for every live platform thread unless a registry is given
+     * @param registry Live set of threads, or null
+     */
+    PerThreadAllocations(Set<Thread> threads, ThreadRegistry registry) {
+        if (!ThreadAllocationCounter.isSupported()) throw new UnsupportedOperationException("The JVM does not measure the allocation of threads");
+
+        this.threads = threads;
+        this.registry = registry;
+        if (threads != null) {
+            for (var thread : threads) {
+                entries.put(thread, new Entry());
+            }
+        }
+
+        if (registry == null) {
+            listener = null;
+            return;
+        }
+        listener = new ThreadRegistry.MembershipListener() {
+            @Override
+            public void registered(Thread thread) {
+                join(thread);
+            }
+
+            @Override
+            public void unregistered(Thread thread) {
+                leave(thread);
+            }
+        };
+        registry.addMembershipListener(listener);
+    }
+
+    /**
+     * Starts counting the allocation of the threads.
+     */
+    synchronized void resume() {
+        if (running) return;
+        running = true;
+        if (isAllThreads()) addLiveThreads(false);
+
+        var counters = readCounters();
+        var i = 0;
+        for (var entry : entries.entrySet()) {
+            if (entry.getValue().member) entry.getValue().begin(entry.getKey(), counters[i]);
+            i++;
+        }
+    }
+
+    /**
+     * Stops counting the allocation of the threads, keeping the allocation counted so far.
+     */
+    synchronized void pause() {
+        if (!running) return;
+        if (isAllThreads()) addLiveThreads(true);
+
+        var counters = readCounters();
+        var i = 0;
+        for (var entry : entries.entrySet()) {
+            entry.getValue().stop(entry.getKey(), counters[i++]);
+        }
+        running = false;
+    }
+
+    /**
+     * Clears the allocation counted so far, continuing to count if running.
+     */
+    synchronized void clear() {
+        entries.values().removeIf(entry -> !entry.member);
+        var counters = running ? readCounters() : null;
+        var i = 0;
+        for (var entry : entries.entrySet()) {
+            entry.getValue().accumulated = 0;
+            if (running) entry.getValue().begin(entry.getKey(), counters[i++]);
+        }
+    }
+
+    /**
+     * Reads the allocation of every thread, merging the counters of the threads, ordered by decreasing allocation.
+     */
+    @SuppressWarnings("deprecation")
+    synchronized List<ThreadAllocation> read() {
+        if (running && isAllThreads()) addLiveThreads(true);
+
+        var counters = running ? readCounters() : null;
+        var result = new ArrayList<ThreadAllocation>(entries.size());
+        var i = 0;
+        for (var entry : entries.entrySet()) {
+            var thread = entry.getKey();
+            var counted = entry.getValue();
+            var total = counted.accumulated + (running ? counted.since(thread, counters[i++]) : 0);
+            result.add(new ThreadAllocation(thread.getId(), thread.getName(), ThreadAllocationCounter.isVirtual(thread), counted.uncounted ? -1 : total));
+        }
+        result.sort(Comparator.comparingLong(ThreadAllocation::getTotal).reversed());
+        return result;
+    }
+
+    /**
+     * Reads the total allocation of the threads, without the threads not counted by the JVM.
+     */
+    synchronized long total() {
+        if (running && isAllThreads()) addLiveThreads(true);
+
+        var counters = running ? readCounters() : null;
+        var total = 0L;
+        var i = 0;
+        for (var entry : entries.entrySet()) {
+            total += entry.getValue().accumulated + (running ? entry.getValue().since(entry.getKey(), counters[i++]) : 0);
+        }
+        return total;
+    }
+
+    /**
+     * Stops tracking the threads of the registry.
+     */
+    void close() {
+        if (registry != null) registry.removeMembershipListener(listener);
+    }
+
+    private synchronized void join(Thread thread) {
+        var entry = entries.computeIfAbsent(thread, key -> new Entry());
+        entry.member = true;
+        if (running) entry.begin(thread, ThreadAllocationCounter.of(thread));
+    }
+
+    private synchronized void leave(Thread thread) {
+        var entry = entries.get(thread);
+        if (entry == null) return;
+        entry.stop(thread, ThreadAllocationCounter.of(thread));
+        entry.member = false;
+    }
+
+    private boolean isAllThreads() {
+        return threads == null && registry == null;
+    }
+
+    /**
+     * Reads the counters of the tracked threads in a single call, in the order of the entries.
+     */
+    @SuppressWarnings("deprecation")
+    private long[] readCounters() {
+        var ids = new long[entries.size()];
+        var i = 0;
+        for (var thread : entries.keySet()) {
+            ids[i++] = thread.getId();
+        }
+        return ThreadAllocationCounter.of(ids);
+    }
+
+    /**
+     * Adds the live platform threads not yet tracked, which started after counting was resumed if running. The thread
+     * groups are only enumerated when the JVM reports a live thread that has not been seen.
+     */
+    private void addLiveThreads(boolean startedWhileRunning) {
+        var liveIds = ThreadAllocationCounter.liveThreadIds();
+        if (hasSeenAll(liveIds)) return;
+
+        var group = Thread.currentThread().getThreadGroup();
+        while (group.getParent() != null) {
+            group = group.getParent();
+        }
+
+        var live = new Thread[group.activeCount() + 16];
+        int count;
+        while ((count = group.enumerate(live, true)) == live.length) {
+            live = new Thread[live.length * 2];
+        }
+
+        for (var i = 0; i < count; i++) {
+            var entry = entries.get(live[i]);
+            if (entry != null) continue;
+
+            entry = new Entry();
+            if (startedWhileRunning) entry.start = 0;
+            entries.put(live[i], entry);
+        }
+        Arrays.sort(liveIds);
+        seenThreadIds = liveIds;
+    }
+
+    private boolean hasSeenAll(long[] threadIds) {
+        for (var id : threadIds) {
+            if (Arrays.binarySearch(seenThreadIds, id) < 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * The allocation counted for a thread.
+     */
+    private static final class Entry {
+        boolean member = true;
+        boolean uncounted = false;
+        long start = -1;
+        long accumulated = 0;
+
+        /**
+         * Starts counting from the counter of the thread, or -1 if the JVM does not count the thread.
+         */
+        void begin(Thread thread, long counter) {
+            if (thread.getState() == Thread.State.NEW) {
+                start = 0;
+                return;
+            }
+            start = counter;
+            if (start < 0 && thread.isAlive()) uncounted = true;
+        }
+
+        long since(Thread thread, long counter) {
+            if (start < 0) return 0;
+            if (counter < 0) {
+                if (thread.isAlive()) uncounted = true;
+                return 0;
+            }
+            return counter - start;
+        }
+
+        void stop(Thread thread, long counter) {
+            accumulated += since(thread, counter);
+            start = -1;
+        }
+    }
+}
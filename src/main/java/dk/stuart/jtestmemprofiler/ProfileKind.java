@@ -0,0 +1,23 @@
+package dk.stuart.jtestmemprofiler;
+
+/**
+ * The kind of result stored in a binary profile, see {@link ProfileWriter}.
+ * <p>
+ * The ordinal is stored in the profile header, so new kinds must only be appended.
+ */
+public enum ProfileKind {
+    /**
+     * Total allocation, as collected by {@link ProfilerBuilder#withTotalsCollector}.
+     */
+    TOTALS,
+
+    /**
+     * Allocation per type, as collected by {@link ProfilerBuilder#withPerTypeCollector}.
+     */
+    PER_TYPE,
+
+    /**
+     * Allocation call tree, as collected by {@link ProfilerBuilder#withCallTreeCollector}.
+     */
+    CALL_TREE
+}
@@ -0,0 +1,434 @@
+package dk.stuart.jtestmemprofiler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Reads and queries a binary profile written by {@link ProfileWriter}.
+ * <p>
+ * The profile is memory-mapped and queries decode directly from the mapping, so opening a profile only reads its
+ * header and string table offsets, and queries such as {@link #getSubtreeTotal(String...)} skip subtrees they do not
+ * need. Strings are only decoded when they are part of a result.
+ * <p>
+ * A {@link ProfileReader} is safe for use by multiple threads.
+ */
+@SuppressWarnings("unused")
+public final class ProfileReader {
+    private final ByteBuffer buffer;
+    private final ProfileKind kind;
+    private final int[] stringOffsets;
+    private final String[] strings;
+    private final int payloadOffset;
+
+    private ProfileReader(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+
+        var input = new Input(buffer, 0);
+        for (var b : ProfileWriter.MAGIC) {
+            if (input.remaining() == 0 || input.readByte() != b) throw new IOException("Not a profile file");
+        }
+        if (input.remaining() < 2) throw new IOException("Truncated profile file");
+
+        var version = input.readByte();
+        if (version != ProfileWriter.VERSION) throw new IOException(String.format("Unsupported profile version '%d'", version));
+
+        var kinds = ProfileKind.values();
+        var kindOrdinal = input.readByte();
+        if (kindOrdinal < 0 || kindOrdinal >= kinds.length) throw new IOException(String.format("Unknown profile kind '%d'", kindOrdinal));
+        kind = kinds[kindOrdinal];
+
+        stringOffsets = new int[(int) input.readVarLong()];
+        for (var i = 0; i < stringOffsets.length; i++) {
+            stringOffsets[i] = input.position;
+            var length = (int) input.readVarLong();
+            input.position += length;
+        }
+        strings = new String[stringOffsets.length];
+        payloadOffset = input.position;
+    }
+
+    /**
+     * Opens the specified profile file by memory-mapping it.
+     *
+     * @throws IOException if the file cannot be read or is not a supported profile
+     */
+    public static ProfileReader open(Path path) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new ProfileReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Reads a profile from the specified buffer, which must not be modified while the reader is in use.
+     *
+     * @throws IOException if the buffer does not contain a supported profile
+     */
+    public static ProfileReader of(ByteBuffer buffer) throws IOException {
+        return new ProfileReader(buffer.slice());
+    }
+
+    /**
+     * Returns the kind of result stored in the profile.
+     */
+    public ProfileKind getKind() {
+        return kind;
+    }
+
+    /**
+     * Returns the total allocation of the profile, regardless of its kind.
+     */
+    public long getTotal() {
+        var input = new Input(buffer, payloadOffset);
+        return switch (kind) {
+            case TOTALS -> input.readSignedVarLong();
+            case PER_TYPE -> {
+                var total = 0L;
+                for (var count = input.readVarLong(); count > 0; count--) {
+                    input.readVarLong();
+                    total += input.readSignedVarLong();
+                }
+                yield total;
+            }
+            case CALL_TREE -> {
+                input.readVarLong();
+                input.readVarLong();
+                input.readSignedVarLong();
+                yield input.readSignedVarLong();
+            }
+        };
+    }
+
+    /**
+     * Returns the allocation of the specified type in a per-type profile, or 0 if the type did not allocate.
+     *
+     * @throws IllegalStateException if the profile is not a per-type profile
+     */
+    public long getAllocation(String type) {
+        checkKind(ProfileKind.PER_TYPE);
+
+        var stringIndex = findString(type);
+        if (stringIndex < 0) return 0;
+
+        var input = new Input(buffer, payloadOffset);
+        for (var count = input.readVarLong(); count > 0; count--) {
+            var index = input.readVarLong();
+            var size = input.readSignedVarLong();
+            if (index == stringIndex) return size;
+        }
+        return 0;
+    }
+
+    /**
+     * Decodes all allocations of a per-type profile in the form delivered by
+     * {@link ProfilerBuilder#withPerTypeCollector}.
+     *
+     * @throws IllegalStateException if the profile is not a per-type profile
+     */
+    public HashMap<String, Long> readPerType() {
+        checkKind(ProfileKind.PER_TYPE);
+
+        var input = new Input(buffer, payloadOffset);
+        var count = (int) input.readVarLong();
+        var result = new HashMap<String, Long>(count * 4 / 3 + 1);
+        for (var i = 0; i < count; i++) {
+            var index = (int) input.readVarLong();
+            result.put(getString(index), input.readSignedVarLong());
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of nodes in a call tree profile, including the root.
+     *
+     * @throws IllegalStateException if the profile is not a call tree profile
+     */
+    public int getNodeCount() {
+        checkKind(ProfileKind.CALL_TREE);
+        return (int) new Input(buffer, payloadOffset).readVarLong();
+    }
+
+    /**
+     * Returns the accumulated allocation of the node reached by following the specified frames from the root of a
+     * call tree profile, or -1 if there is no such node. Sibling subtrees are skipped without being decoded.
+     *
+     * @throws IllegalStateException if the profile is not a call tree profile
+     */
+    public long getSubtreeTotal(String... frames) {
+        checkKind(ProfileKind.CALL_TREE);
+
+        var input = new Input(buffer, payloadOffset);
+        input.readVarLong();
+        input.readVarLong();
+        input.readSignedVarLong();
+        var accumulated = input.readSignedVarLong();
+        var childCount = input.readVarLong();
+        input.readVarLong();
+
+        for (var frame : frames) {
+            var stringIndex = findString(frame);
+            if (stringIndex < 0) return -1;
+
+            var found = false;
+            for (; childCount > 0; childCount--) {
+                var nodeFrame = input.readVarLong() - 1;
+                input.readSignedVarLong();
+                var nodeAccumulated = input.readSignedVarLong();
+                var nodeChildCount = input.readVarLong();
+                var childrenBytes = input.readVarLong();
+
+                if (nodeFrame == stringIndex) {
+                    accumulated = nodeAccumulated;
+                    childCount = nodeChildCount;
+                    found = true;
+                    break;
+                }
+                input.position += (int) childrenBytes;
+            }
+
+            if (!found) return -1;
+        }
+
+        return accumulated;
+    }
+
+    /**
+     * Returns up to n allocators with the highest allocation, highest first. For per-type profiles these are types,
+     * and for call tree profiles these are frames with their direct allocation summed over all call paths.
+     *
+     * @throws IllegalStateException if the profile is a totals profile
+     */
+    public List<Allocator> getTopAllocators(int n) {
+        if (kind == ProfileKind.TOTALS) throw new IllegalStateException("Totals profiles have no allocators");
+
+        var sizes = new long[stringOffsets.length];
+        var input = new Input(buffer, payloadOffset);
+        if (kind == ProfileKind.PER_TYPE) {
+            for (var count = input.readVarLong(); count > 0; count--) {
+                var index = (int) input.readVarLong();
+                sizes[index] += input.readSignedVarLong();
+            }
+        } else {
+            for (var count = input.readVarLong(); count > 0; count--) {
+                var frame = (int) input.readVarLong() - 1;
+                var size = input.readSignedVarLong();
+                input.readSignedVarLong();
+                input.readVarLong();
+                input.readVarLong();
+                if (frame >= 0) sizes[frame] += size;
+            }
+        }
+
+        var top = new PriorityQueue<Integer>(Comparator.comparingLong(index -> sizes[index]));
+        for (var i = 0; i < sizes.length; i++) {
+            if (sizes[i] <= 0) continue;
+            if (top.size() < n) top.add(i);
+            else if (n > 0 && sizes[top.peek()] < sizes[i]) {
+                top.poll();
+                top.add(i);
+            }
+        }
+
+        var result = new ArrayList<Allocator>(top.size());
+        while (!top.isEmpty()) {
+            var index = top.poll();
+            result.add(new Allocator(getString(index), sizes[index]));
+        }
+        result.sort(Comparator.comparingLong(Allocator::allocationSize).reversed());
+        return result;
+    }
+
+    /**
+     * Returns up to n call paths of a call tree profile with the highest direct allocation, highest first.
+     *
+     * @throws IllegalStateException if the profile is not a call tree profile
+     */
+    public List<AllocationStack> getTopAllocationStacks(int n) {
+        checkKind(ProfileKind.CALL_TREE);
+
+        var top = new PriorityQueue<StackCandidate>(Comparator.comparingLong(StackCandidate::size));
+        var input = new Input(buffer, payloadOffset);
+        input.readVarLong();
+        input.readVarLong();
+        input.readSignedVarLong();
+        input.readSignedVarLong();
+
+        var remaining = new long[16];
+        var path = new int[16];
+        var level = 0;
+        remaining[0] = input.readVarLong();
+        input.readVarLong();
+
+        while (level >= 0) {
+            if (remaining[level] == 0) {
+                level--;
+                continue;
+            }
+            remaining[level]--;
+
+            path[level] = (int) input.readVarLong() - 1;
+            var size = input.readSignedVarLong();
+            input.readSignedVarLong();
+            var childCount = input.readVarLong();
+            input.readVarLong();
+
+            if (size > 0 && n > 0 && (top.size() < n || top.peek().size() < size)) {
+                if (top.size() == n) top.poll();
+                top.add(new StackCandidate(Arrays.copyOf(path, level + 1), size));
+            }
+
+            if (childCount > 0) {
+                level++;
+                if (level == remaining.length) {
+                    remaining = Arrays.copyOf(remaining, level * 2);
+                    path = Arrays.copyOf(path, level * 2);
+                }
+                remaining[level] = childCount;
+            }
+        }
+
+        var result = new ArrayList<AllocationStack>(top.size());
+        while (!top.isEmpty()) {
+            var candidate = top.poll();
+            var frames = new ArrayList<String>(candidate.frames().length);
+            for (var frame : candidate.frames()) {
+                frames.add(getString(frame));
+            }
+            result.add(new AllocationStack(frames, candidate.size()));
+        }
+        result.sort(Comparator.comparingLong(AllocationStack::allocationSize).reversed());
+        return result;
+    }
+
+    /**
+     * Decodes a call tree profile into a {@link CallTree}.
+     *
+     * @throws IllegalStateException if the profile is not a call tree profile
+     */
+    public CallTree readCallTree() {
+        checkKind(ProfileKind.CALL_TREE);
+
+        var builder = new CallTree.Builder(false);
+        var input = new Input(buffer, payloadOffset);
+        var nodeCount = input.readVarLong();
+
+        var remaining = new long[16];
+        var parents = new int[16];
+        var level = -1;
+        for (var i = 0; i < nodeCount; i++) {
+            while (level >= 0 && remaining[level] == 0) level--;
+
+            var frame = (int) input.readVarLong() - 1;
+            var size = input.readSignedVarLong();
+            var accumulated = input.readSignedVarLong();
+            var childCount = input.readVarLong();
+            input.readVarLong();
+
+            var parent = level < 0 ? CallTree.NO_NODE : parents[level];
+            if (level >= 0) remaining[level]--;
+            var node = builder.add(parent, frame < 0 ? null : getString(frame), size, accumulated);
+
+            if (childCount > 0) {
+                level++;
+                if (level == remaining.length) {
+                    remaining = Arrays.copyOf(remaining, level * 2);
+                    parents = Arrays.copyOf(parents, level * 2);
+                }
+                remaining[level] = childCount;
+                parents[level] = node;
+            }
+        }
+
+        return builder.build();
+    }
+
+    private void checkKind(ProfileKind expected) {
+        if (kind != expected) throw new IllegalStateException(String.format("Expected a %s profile, but was %s", expected, kind));
+    }
+
+    private String getString(int index) {
+        var value = strings[index];
+        if (value == null) {
+            var input = new Input(buffer, stringOffsets[index]);
+            var length = (int) input.readVarLong();
+            var bytes = new byte[length];
+            buffer.get(input.position, bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+            strings[index] = value;
+        }
+        return value;
+    }
+
+    private int findString(String value) {
+        var bytes = value.getBytes(StandardCharsets.UTF_8);
+        for (var i = 0; i < stringOffsets.length; i++) {
+            var input = new Input(buffer, stringOffsets[i]);
+            if (input.readVarLong() != bytes.length) continue;
+            if (buffer.slice(input.position, bytes.length).equals(ByteBuffer.wrap(bytes))) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * An allocating type or frame and its allocation.
+     * @param name The type name or frame name (declaring class and method)
+     * @param allocationSize The allocation
+     */
+    public record Allocator(String name, long allocationSize) {
+    }
+
+    /**
+     * A call path and its direct allocation.
+     * @param frames The frame names on the path, outermost first
+     * @param allocationSize The direct allocation at the innermost frame
+     */
+    public record AllocationStack(List<String> frames, long allocationSize) {
+    }
+
+    private record StackCandidate(int[] frames, long size) {
+    }
+
+    /**
+     * A cursor decoding varints from absolute positions of the shared buffer.
+     */
+    private static final class Input {
+        private final ByteBuffer buffer;
+        private int position;
+
+        Input(ByteBuffer buffer, int position) {
+            this.buffer = buffer;
+            this.position = position;
+        }
+
+        int remaining() {
+            return buffer.limit() - position;
+        }
+
+        byte readByte() {
+            return buffer.get(position++);
+        }
+
+        long readVarLong() {
+            var result = 0L;
+            for (var shift = 0; ; shift += 7) {
+                var b = buffer.get(position++);
+                result |= (long) (b & 0x7F) << shift;
+                if (b >= 0) return result;
+            }
+        }
+
+        long readSignedVarLong() {
+            var value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package dk.stuart.jtestmemprofiler;
+
+/**
+ * A reading of the results of a {@link Profiler} taken while it is profiling, see {@link Profiler#snapshot()} and
+ * {@link Profiler#snapshotDelta()}.
+ * <p>
+ * The total is always present. The per-type allocations are present when the profiler collects them per type, and the
+ * call tree when it collects a call tree; the other is null.
+ */
+@SuppressWarnings("unused")
+public final class ProfileSnapshot {
+    private final long total;
+    private final TypeAllocationMap perType;
+    private final CallTree callTree;
+
+    ProfileSnapshot(long total, TypeAllocationMap perType, CallTree callTree) {
+        this.total = total;
+        this.perType = perType;
+        this.callTree = callTree;
+    }
+
+    /**
+     * Gets the total allocation, or the change in total allocation for a delta.
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * Gets the allocation per type, or the change per type for a delta, or null if not collected per type.
+     */
+    public TypeAllocationMap getPerType() {
+        return perType;
+    }
+
+    /**
+     * Gets the call tree of all allocations, or the signed delta tree for a delta, or null if no call tree is
+     * collected.
+     */
+    public CallTree getCallTree() {
+        return callTree;
+    }
+
+    /**
+     * Returns a snapshot with the same results that does not share the mutable per-type map.
+     */
+    ProfileSnapshot copy() {
+        if (perType == null) return new ProfileSnapshot(total, null, callTree);
+
+        var perTypeCopy = new TypeAllocationMap(perType.size());
+        perType.forEach(perTypeCopy::put);
+        return new ProfileSnapshot(total, perTypeCopy, callTree);
+    }
+
+    /**
+     * Computes the change from the baseline snapshot to this snapshot. Types without change are omitted.
+     */
+    ProfileSnapshot minus(ProfileSnapshot baseline) {
+        TypeAllocationMap perTypeDelta = null;
+        if (perType != null) {
+            var delta = new TypeAllocationMap(perType.size());
+            perType.forEach((type, allocation) -> {
+                var change = allocation - baseline.perType.get(type);
+                if (change != 0) delta.put(type, change);
+            });
+            baseline.perType.forEach((type, allocation) -> {
+                if (allocation != 0 && !perType.containsKey(type)) delta.put(type, -allocation);
+            });
+            perTypeDelta = delta;
+        }
+
+        var callTreeDelta = callTree == null ? null : CallTreeMerger.diff(baseline.callTree, callTree);
+
+        return new ProfileSnapshot(total - baseline.total, perTypeDelta, callTreeDelta);
+    }
+}
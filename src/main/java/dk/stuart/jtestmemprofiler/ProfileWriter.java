@@ -0,0 +1,178 @@
+package dk.stuart.jtestmemprofiler;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Writes profiling results in a compact, versioned binary format that can be queried with {@link ProfileReader}.
+ * <p>
+ * A profile consists of a header (the magic bytes {@code JTMP}, a format version byte and a {@link ProfileKind}
+ * byte), a string table of UTF-8 strings and the payload for the kind. All integers are LEB128 varints and all
+ * allocation sizes are zigzag encoded varints.
+ * <ul>
+ *     <li>Totals: the total allocation.</li>
+ *     <li>Per type: the number of types followed by a string index and allocation per type.</li>
+ *     <li>Call tree: the number of nodes followed by all nodes in pre-order. Each node has a frame (0 for the root,
+ *     otherwise the string index + 1), its direct and accumulated allocation, its number of children and the number
+ *     of bytes its children occupy, so readers can skip entire subtrees.</li>
+ * </ul>
+ */
+@SuppressWarnings("unused")
+public final class ProfileWriter {
+    static final byte[] MAGIC = {'J', 'T', 'M', 'P'};
+    static final int VERSION = 1;
+
+    private ProfileWriter() {
+    }
+
+    /**
+     * Writes a totals profile to the specified file.
+     */
+    public static void writeTotals(long total, Path path) throws IOException {
+        try (var channel = open(path)) {
+            writeTotals(total, channel);
+        }
+    }
+
+    /**
+     * Writes a totals profile to the specified channel. The channel is not closed.
+     */
+    public static void writeTotals(long total, WritableByteChannel channel) throws IOException {
+        write(channel, ProfileKind.TOTALS, output -> {
+            output.putVarLong(0);
+            output.putSignedVarLong(total);
+        });
+    }
+
+    /**
+     * Writes a per-type profile to the specified file.
+     */
+    public static void writePerType(Map<String, Long> allocations, Path path) throws IOException {
+        try (var channel = open(path)) {
+            writePerType(allocations, channel);
+        }
+    }
+
+    /**
+     * Writes a per-type profile to the specified channel. The channel is not closed.
+     */
+    public static void writePerType(Map<String, Long> allocations, WritableByteChannel channel) throws IOException {
+        var types = new ArrayList<>(allocations.entrySet());
+
+        write(channel, ProfileKind.PER_TYPE, output -> {
+            output.putVarLong(types.size());
+            for (var type : types) {
+                writeString(output, type.getKey());
+            }
+
+            output.putVarLong(types.size());
+            for (var i = 0; i < types.size(); i++) {
+                output.putVarLong(i);
+                output.putSignedVarLong(types.get(i).getValue());
+            }
+        });
+    }
+
+    /**
+     * Writes a call tree profile to the specified file.
+     */
+    public static void writeCallTree(CallTree tree, Path path) throws IOException {
+        try (var channel = open(path)) {
+            writeCallTree(tree, channel);
+        }
+    }
+
+    /**
+     * Writes a call tree profile to the specified channel. The channel is not closed.
+     */
+    public static void writeCallTree(CallTree tree, WritableByteChannel channel) throws IOException {
+        write(channel, ProfileKind.CALL_TREE, output -> writeCallTree(tree, output));
+    }
+
+    private static void writeCallTree(CallTree tree, ChannelOutput output) {
+        var frameTable = tree.getFrameTable();
+        var localIds = new int[frameTable.size()];
+        Arrays.fill(localIds, -1);
+        var frameIds = new int[64];
+        var frameCount = 0;
+        for (var node = 1; node < tree.getNodeCount(); node++) {
+            var frameId = tree.getFrameId(node);
+            if (localIds[frameId] != -1) continue;
+
+            if (frameCount == frameIds.length) frameIds = Arrays.copyOf(frameIds, frameCount * 2);
+            frameIds[frameCount] = frameId;
+            localIds[frameId] = frameCount++;
+        }
+
+        output.putVarLong(frameCount);
+        for (var i = 0; i < frameCount; i++) {
+            writeString(output, frameTable.getFrame(frameIds[i]));
+        }
+
+        // Children have higher indexes than their parent in pre-order, so a reverse pass sees all children first.
+        var nodeCount = tree.getNodeCount();
+        var childCounts = new int[nodeCount];
+        var childrenBytes = new long[nodeCount];
+        for (var node = nodeCount - 1; node > 0; node--) {
+            var parent = tree.getParent(node);
+            childCounts[parent]++;
+            childrenBytes[parent] += nodeHeaderSize(tree, node, localIds, childCounts[node], childrenBytes[node]) + childrenBytes[node];
+        }
+
+        output.putVarLong(nodeCount);
+        for (var node = 0; node < nodeCount; node++) {
+            output.putVarLong(frame(tree, node, localIds));
+            output.putSignedVarLong(tree.getAllocationSize(node));
+            output.putSignedVarLong(tree.getChildAccumulatedAllocationSize(node));
+            output.putVarLong(childCounts[node]);
+            output.putVarLong(childrenBytes[node]);
+        }
+    }
+
+    private static long frame(CallTree tree, int node, int[] localIds) {
+        var frameId = tree.getFrameId(node);
+        return frameId == CallTree.NO_NODE ? 0 : localIds[frameId] + 1;
+    }
+
+    private static int nodeHeaderSize(CallTree tree, int node, int[] localIds, int childCount, long childrenBytes) {
+        return ChannelOutput.varLongSize(frame(tree, node, localIds))
+                + ChannelOutput.signedVarLongSize(tree.getAllocationSize(node))
+                + ChannelOutput.signedVarLongSize(tree.getChildAccumulatedAllocationSize(node))
+                + ChannelOutput.varLongSize(childCount)
+                + ChannelOutput.varLongSize(childrenBytes);
+    }
+
+    private static void write(WritableByteChannel channel, ProfileKind kind, Consumer<ChannelOutput> payload) throws IOException {
+        var output = new ChannelOutput(channel);
+
+        try {
+            output.put(MAGIC);
+            output.put((byte) VERSION);
+            output.put((byte) kind.ordinal());
+            payload.accept(output);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        output.flush();
+    }
+
+    private static void writeString(ChannelOutput output, String value) {
+        var bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.putVarLong(bytes.length);
+        output.put(bytes);
+    }
+
+    private static FileChannel open(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+}
@@ -11,28 +11,59 @@ import java.util.function.*;
  * <p>
  * The profiler is intended to be used as part of a test framework to calculate memory allocation profiles
  * for code under test.
+ * <p>
+ * Snapshots of the results can be read while profiling through {@link #snapshot()} and {@link #snapshotDelta()},
+ * also from another thread than the one controlling the profiler.
+ * <p>
+ * A profiler can be reused for many measurements without rebuilding its native state through {@link #rebaseline()}, or
+ * by acquiring it from a {@link ProfilerPool}.
+ * <p>
+ * Allocation can be attributed to named regions of code through {@link #region(String)}, without collecting a call
+ * tree.
+ * <p>
+ * Without the native agent, a profiler of totals filtered by threads is backed by the allocation counters of the JVM,
+ * see {@link ProfilerBackendKind}.
  */
 @SuppressWarnings("unused")
 public class Profiler implements Closeable {
-	private final NativeCollector collector;
-	private final NativeFilter filter;
+	private final ProfilerBackend backend;
+	private final ThreadRegistry threadRegistry;
+	private final Consumer<Set<Thread>> threadsListener = this::threadsChanged;
+	private final Predicate<String> typeFilter;
 	private final Consumer<HashMap<String, Long>> perTypeCollectorCallback;
-	private final Consumer<Long> totalsCollectorCallback;
+	private final TypeAllocationMap perTypeCollectorMap;
+	private final LongConsumer totalsCollectorCallback;
     private final Consumer<TrieNode> callTreeCollectorCallback;
-    private final NativeProfiler profiler;
+	private final PerThreadAllocations perThread;
+	private final Consumer<List<ThreadAllocation>> perThreadCollectorCallback;
+	private final AllocationEventRecorder histograms;
+	private final Consumer<AllocationHistograms> histogramCollectorCallback;
 	private final int sampleRate;
+	private final boolean enableImmediately;
+	private final AllocationRegions regions;
 	private boolean closed = false;
+	private boolean disposed = false;
+	private boolean enabled = false;
+	private ProfileSnapshot previousSnapshot = null;
+	private ProfileSnapshot baseline = null;
+	private ProfilerPool pool = null;
 
-	Profiler(NativeCollector collector, NativeFilter filter, int sampleRate, Consumer<HashMap<String, Long>> perTypeCollectorCallback, Consumer<Long> totalsCollectorCallback, Consumer<TrieNode> callTreeCollectorCallback, boolean enableImmediately) {
-		this.collector = collector;
-		this.filter = filter;
+	Profiler(ProfilerBackend backend, ThreadRegistry threadRegistry, Predicate<String> typeFilter, int sampleRate, Consumer<HashMap<String, Long>> perTypeCollectorCallback, TypeAllocationMap perTypeCollectorMap, LongConsumer totalsCollectorCallback, Consumer<TrieNode> callTreeCollectorCallback, PerThreadAllocations perThread, Consumer<List<ThreadAllocation>> perThreadCollectorCallback, AllocationEventRecorder histograms, Consumer<AllocationHistograms> histogramCollectorCallback, boolean perTypeRegions, boolean enableImmediately) {
+		this.backend = backend;
+		this.threadRegistry = threadRegistry;
+		if (threadRegistry != null) backend.threadsChanged(threadRegistry.addListener(threadsListener));
+		this.typeFilter = typeFilter;
 		this.sampleRate = sampleRate;
+		this.enableImmediately = enableImmediately;
 		this.perTypeCollectorCallback = perTypeCollectorCallback;
+		this.perTypeCollectorMap = perTypeCollectorMap;
 		this.totalsCollectorCallback = totalsCollectorCallback;
         this.callTreeCollectorCallback = callTreeCollectorCallback;
-        profiler = new NativeProfiler();
-		profiler.doSetCollector(collector);
-		profiler.doSetFilter(filter);
+		this.perThread = perThread;
+		this.perThreadCollectorCallback = perThreadCollectorCallback;
+		this.histograms = histograms;
+		this.histogramCollectorCallback = histogramCollectorCallback;
+		this.regions = new AllocationRegions(perTypeRegions ? this : null);
 
 		if (enableImmediately) {
 			enable();
@@ -40,33 +71,236 @@ public class Profiler implements Closeable {
 	}
 
 	/**
-	 * Closes the profiler and releases any native resources in use.
+	 * Closes the profiler and releases any native resources in use. A profiler acquired from a {@link ProfilerPool}
+	 * is returned to the pool instead, keeping its native resources for the next acquirer.
 	 *
 	 * @throws IllegalStateException if a closed profiler is attempted to be closed again
 	 */
 	@Override
-	public void close() {
+	public synchronized void close() {
 		checkClosed();
 		closed = true;
 
-		profiler.doDisable();
+		backend.disable();
+		enabled = false;
+		if (perThread != null) perThread.pause();
+		if (histograms != null) histograms.stop();
+
+		deliverResults();
+
+		if (pool == null || !pool.release(this)) dispose();
+	}
+
+	/**
+	 * Releases the native resources of a closed profiler.
+	 */
+	synchronized void dispose() {
+		disposed = true;
+		if (threadRegistry != null) threadRegistry.removeListener(threadsListener);
+		if (perThread != null) perThread.close();
+		if (histograms != null) histograms.close();
+
+		backend.close();
+	}
+
+	/**
+	 * Passes the results of the backend since the last rebaseline to every configured callback. When the totals
+	 * collector is combined with another collector, the total is derived from that collector's result. Type matching
+	 * not evaluated by the native filter is applied to the per-type result first. A pooled profiler keeps the results
+	 * as the baseline of its next use, and starts the per-thread breakdown over.
+	 */
+	private void deliverResults() {
+		long total;
+		ProfileSnapshot reading;
+		if (backend.collectsPerType()) {
+			var allocations = readPerType();
+			reading = null;
+			if (pool != null) {
+				var perType = new TypeAllocationMap(allocations.size());
+				perType.putAll(allocations);
+				reading = new ProfileSnapshot(perType.total(), perType, null);
+			}
+			if (baseline != null) {
+				baseline.getPerType().forEach((type, allocation) -> allocations.computeIfPresent(type, (key, value) -> value - allocation));
+				allocations.values().removeIf(allocation -> allocation == 0);
+			}
+
+			total = 0L;
+			for (var allocation : allocations.values()) {
+				total += allocation;
+			}
+
+			if (perTypeCollectorMap != null) {
+				perTypeCollectorMap.clear();
+				perTypeCollectorMap.putAll(allocations);
+			}
+			if (perTypeCollectorCallback != null)
+				perTypeCollectorCallback.accept(allocations);
+		} else if (backend.collectsCallTree()) {
+			var callTree = backend.readCallTree();
+			reading = new ProfileSnapshot(callTree.getChildAccumulatedAllocationSize(CallTree.ROOT), null, callTree);
+			if (baseline != null) callTree = CallTreeMerger.diff(baseline.getCallTree(), callTree);
 
-		if (perTypeCollectorCallback != null)
-			perTypeCollectorCallback.accept(((NativePerTypeCollector)collector).getAllocations());
+			var root = callTree.getRoot();
+			total = root.getChildAccumulatedAllocationSize();
+
+			if (callTreeCollectorCallback != null)
+				callTreeCollectorCallback.accept(root);
+		} else {
+			total = backend.readTotal();
+			reading = new ProfileSnapshot(total, null, null);
+			if (baseline != null) total -= baseline.getTotal();
+		}
 
 		if (totalsCollectorCallback != null)
-			totalsCollectorCallback.accept(((NativeTotalsCollector)collector).getAllocationTotal());
+			totalsCollectorCallback.accept(total);
+
+		if (perThreadCollectorCallback != null)
+			perThreadCollectorCallback.accept(perThread.read());
+
+		if (histogramCollectorCallback != null)
+			histogramCollectorCallback.accept(histograms.read());
+
+		if (pool != null) baseline = reading;
+	}
+
+	/**
+	 * Takes the current results of the profiler as the baseline subtracted from later results, keeping its native
+	 * collector and filter, so that results, snapshots and regions only include allocation from this point on.
+	 * Profiling is not enabled or disabled by a rebaseline.
+	 * <p>
+	 * This does not clear anything: the native agent cannot clear its collector, so the current results are read once
+	 * and subtracted from later readings. A rebaseline costs as much as a {@link #snapshot()}, but avoids rebuilding
+	 * the native state. The native collector keeps growing with everything recorded since the profiler was built, so
+	 * every later read costs as much as reading all of it, and a call tree is diffed against the whole baseline tree.
+	 * Build a new profiler once the per-type or call-tree results of a long-lived profiler become large.
+	 *
+	 * @throws IllegalStateException if the profiler has been closed
+	 */
+	public synchronized void rebaseline() {
+		checkClosed();
+		baseline = readSnapshot();
+		previousSnapshot = baseline;
+		regions.clear();
+		if (perThread != null) perThread.clear();
+		if (histograms != null) histograms.clear();
+	}
+
+	/**
+	 * Restricts the backend to the threads now registered with the thread registry of the profiler, e.g. installing
+	 * a new native filter in the agent.
+	 */
+	private synchronized void threadsChanged(Set<Thread> threads) {
+		if (disposed) return;
+
+		backend.threadsChanged(threads);
+	}
+
+	/**
+	 * Makes the profiler return to the pool when closed.
+	 */
+	synchronized void attach(ProfilerPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Reopens a closed profiler taken from a pool, its results starting from the results delivered when it was closed.
+	 */
+	synchronized void reopen() {
+		closed = false;
+		previousSnapshot = baseline;
+		regions.clear();
+		if (perThread != null) perThread.clear();
+		if (histograms != null) histograms.clear();
+		if (enableImmediately) enable();
+	}
+
+	/**
+	 * Reads the current results of the profiler without stopping profiling. The snapshot becomes the baseline of the
+	 * next {@link #snapshotDelta()}.
+	 * <p>
+	 * The backend is read while allocations keep being recorded, so the read only holds up allocating
+	 * threads for as long as the agent takes to copy its aggregation.
+	 * <p>
+	 * Recording is not paused for the read, so with the per-type or call-tree collector, the maps or trie the agent
+	 * builds to return its results are themselves recorded when the calling thread is profiled, and show up in later
+	 * snapshots and the final results, e.g. as {@code Ljava/util/HashMap$Node;} and {@code Ljava/lang/Long;}. Read from
+	 * a thread that is not profiled to keep them out; reading the totals collector allocates nothing.
+	 *
+	 * @return the total allocation, and the per-type allocations or call tree depending on the collector
+	 * @throws IllegalStateException if the profiler has been closed
+	 */
+	public synchronized ProfileSnapshot snapshot() {
+		checkClosed();
+		var current = readSnapshot();
+		previousSnapshot = current.copy();
+		return baseline == null ? current : current.minus(baseline);
+	}
+
+	/**
+	 * Reads the change in the results of the profiler since the previous snapshot, or since the profiler was built or
+	 * last rebaseline if no snapshot has been taken since, without stopping profiling. The current results become the baseline of the next
+	 * delta. Like {@link #snapshot()}, the read itself is recorded when the calling thread is profiled.
+	 *
+	 * @return the change in total allocation, and the change per type or the signed delta call tree depending on the
+	 *         collector
+	 * @throws IllegalStateException if the profiler has been closed
+	 */
+	public synchronized ProfileSnapshot snapshotDelta() {
+		checkClosed();
+		var current = readSnapshot();
+		var delta = previousSnapshot == null ? current.copy() : current.minus(previousSnapshot);
+		previousSnapshot = current;
+		return delta;
+	}
+
+	/**
+	 * Reads the current total allocation since the last rebaseline, filling the map with the current allocation per type
+	 * when the profiler collects per type, without allocating beyond what the native collector returns.
+	 *
+	 * @throws IllegalStateException if the profiler has been closed
+	 */
+	synchronized long read(TypeAllocationMap perType) {
+		checkClosed();
+		if (backend.collectsPerType()) {
+			perType.clear();
+			perType.putAll(readPerType());
+			if (baseline != null) baseline.getPerType().forEach((type, allocation) -> perType.add(type, -allocation));
+			return perType.total();
+		}
 
-		if (callTreeCollectorCallback != null)
-			callTreeCollectorCallback.accept(((NativeCallTreeCollector)collector).getAllocations());
+		var offset = baseline == null ? 0L : baseline.getTotal();
+		return backend.readTotal() - offset;
+	}
 
-		collector.close();
-		profiler.doSetCollector(null);
+	boolean collectsPerType() {
+		return backend.collectsPerType();
+	}
+
+	boolean collectsCallTree() {
+		return backend.collectsCallTree();
+	}
+
+	private ProfileSnapshot readSnapshot() {
+		if (backend.collectsPerType()) {
+			var perType = new TypeAllocationMap();
+			perType.putAll(readPerType());
+			return new ProfileSnapshot(perType.total(), perType, null);
+		}
 
-		if (filter != null) {
-			filter.close();
-			profiler.doSetFilter(null);
+		if (backend.collectsCallTree()) {
+			var callTree = backend.readCallTree();
+			return new ProfileSnapshot(callTree.getChildAccumulatedAllocationSize(CallTree.ROOT), null, callTree);
 		}
+
+		return new ProfileSnapshot(backend.readTotal(), null, null);
+	}
+
+	private HashMap<String, Long> readPerType() {
+		var allocations = backend.readPerType();
+		if (typeFilter != null)
+			allocations.keySet().removeIf(typeFilter.negate());
+		return allocations;
 	}
 
 	private void checkClosed() {
@@ -75,13 +309,18 @@ public class Profiler implements Closeable {
 
 	/**
 	 * Starts collecting allocation profiling information. If already enabled, no further effect.
+	 * <p>
+	 * The native agent records into a single collector, so enabling also reinstalls the collector and filter of this
+	 * profiler in case another profiler has been built or closed since.
 	 *
 	 * @throws IllegalStateException if a closed profiler is attempted to be closed again
 	 */
-	public void enable() {
+	public synchronized void enable() {
 		checkClosed();
-		profiler.doEnable();
-		profiler.doSetSampleRate(sampleRate);
+		if (histograms != null) histograms.start();
+		backend.enable();
+		enabled = true;
+		if (perThread != null) perThread.resume();
 	}
 
 	/**
@@ -89,9 +328,67 @@ public class Profiler implements Closeable {
 	 *
 	 * @throws IllegalStateException if a closed profiler is attempted to be closed again
 	 */
-	public void disable() {
+	public synchronized void disable() {
 		checkClosed();
-		profiler.doDisable();
+		backend.disable();
+		enabled = false;
+		if (perThread != null) perThread.pause();
+		if (histograms != null) histograms.stop();
+	}
+
+	/**
+	 * Enters a named region on the calling thread, nested in the regions already entered on the thread, until the
+	 * returned region is closed:
+	 * <pre>{@code
+	 * try (var ignored = profiler.region("parse")) {
+	 *     parser.parse(request);
+	 * }
+	 * }</pre>
+	 * The allocation by the thread inside the region is attributed to its region path, e.g. {@code request/parse}, see
+	 * {@link #getRegions()}. It is measured through the allocation counter the JVM keeps per thread, so entering and
+	 * leaving a region costs about as much as reading a thread-local field, and it is independent of whether the
+	 * profiler is enabled, its filter and sample rate. With {@link ProfilerBuilder#withPerTypeRegions()} the
+	 * per-type results of the profiler are also read at both ends of the region, which costs as much as a snapshot
+	 * and attributes allocation by other profiled threads meanwhile to the region as well.
+	 * <p>
+	 * The returned region is reused for the next region entered at the same depth on the thread, so entering a region
+	 * does not allocate once its region path has been seen. Closing it again before then throws rather than leaving
+	 * the enclosing region. Regions may be entered, reported and rebaselined on any threads concurrently.
+	 *
+	 * @param name Name of the region
+	 * @return the region to close when leaving it
+	 * @throws IllegalStateException if the profiler has been closed
+	 * @throws UnsupportedOperationException if the JVM does not measure the allocation of threads
+	 */
+	public Region region(String name) {
+		checkClosed();
+		return regions.enter(name);
+	}
+
+	/**
+	 * Gets the allocation attributed to each region path over every thread since the profiler was built or last rebaselined,
+	 * ordered by path. Regions still entered are not included until left, so read the regions after the regions of
+	 * interest have been left.
+	 *
+	 * @return the statistics of each region path by path
+	 */
+	public Map<String, RegionStatistics> getRegions() {
+		return regions.report();
+	}
+
+	/**
+	 * Gets the sample rate of the profiler, where 0 records every allocation.
+	 */
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * Creates an estimator of the true allocation behind the results of this profiler, see
+	 * {@link AllocationEstimator}.
+	 */
+	public AllocationEstimator createEstimator() {
+		return new AllocationEstimator(sampleRate);
 	}
 
 	/**
@@ -102,6 +399,6 @@ public class Profiler implements Closeable {
 	 */
 	public boolean isEnabled() {
 		checkClosed();
-		return profiler.doIsEnabled();
+		return backend.isEnabled();
 	}
 }
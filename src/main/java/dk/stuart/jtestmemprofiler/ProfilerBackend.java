@@ -0,0 +1,49 @@
+package dk.stuart.jtestmemprofiler;
+
+import java.util.*;
+
+/**
+ * The source of the results of a {@link Profiler}, see {@link ProfilerBackendKind}.
+ */
+interface ProfilerBackend {
+	/**
+	 * Starts recording allocation, reinstalling the state of the backend if shared with other profilers.
+	 */
+	void enable();
+
+	/**
+	 * Stops recording allocation, keeping the results recorded so far.
+	 */
+	void disable();
+
+	boolean isEnabled();
+
+	/**
+	 * Restricts the backend to the threads now registered with the thread registry of the profiler.
+	 */
+	void threadsChanged(Set<Thread> threads);
+
+	/**
+	 * Reads the total allocation recorded since the backend was constructed.
+	 */
+	long readTotal();
+
+	/**
+	 * Reads the allocation per type recorded since the backend was constructed, or null if not recorded per type.
+	 */
+	HashMap<String, Long> readPerType();
+
+	/**
+	 * Reads the call tree recorded since the backend was constructed, or null if no call tree is recorded.
+	 */
+	CallTree readCallTree();
+
+	boolean collectsPerType();
+
+	boolean collectsCallTree();
+
+	/**
+	 * Releases the resources of the backend.
+	 */
+	void close();
+}
@@ -0,0 +1,25 @@
+package dk.stuart.jtestmemprofiler;
+
+/**
+ * The backend recording the allocation of a {@link Profiler}, see {@link ProfilerBuilder#withBackend}.
+ */
+public enum ProfilerBackendKind {
+    /**
+     * The native agent if loaded, otherwise the thread counters if they support the collectors and filter of the
+     * profiler.
+     */
+    AUTOMATIC,
+
+    /**
+     * The native JVMTI agent, loaded through {@code -agentpath}, which supports every collector, filter and sample
+     * rate.
+     */
+    AGENT,
+
+    /**
+     * The allocation counters the JVM keeps for each platform thread, read through
+     * {@code com.sun.management.ThreadMXBean} without the native agent. Only supports the totals collector filtered by
+     * threads, and costs nothing on the allocation path, as the JVM maintains the counters regardless.
+     */
+    THREAD_COUNTERS
+}
@@ -11,47 +11,171 @@ import java.util.function.*;
  * used if not invoked. A {@link ProfilerBuilder} is not safe for use by multiple threads without
  * external synchronization.
  * <p>
- * Only a single collector method can be invoked on a builder, as well as a single filter, as that
- * is the only thing supported by the underlying JVMTI agent.
+ * The totals collector can be combined with either the per-type or the call-tree collector, in which case a single
+ * profiling session feeds every configured callback: the total is derived from the per-type allocations or from the
+ * root of the call tree. The per-type and call-tree collectors cannot be combined, as the underlying JVMTI agent
+ * records into a single native collector. Only a single filter can be set, but it can be composed from several
+ * constraints through {@link AllocationFilter}.
  */
 @SuppressWarnings("unused")
 public class ProfilerBuilder {
-	private NativeCollector nativeCollector = null;
-	private NativeFilter nativeFilter = null;
+	private AllocationFilter filter = null;
 	private Consumer<HashMap<String, Long>> perTypeCollectorCallback = null;
-	private Consumer<Long> totalsCollectorCallback = null;
+	private TypeAllocationMap perTypeCollectorMap = null;
+	private Consumer<Map<String, AllocationEstimate>> estimatedCollectorCallback = null;
+	private AllocationEstimator estimator = null;
+	private LongConsumer totalsCollectorCallback = null;
 	private Consumer<TrieNode> callTreeCollectorCallback = null;
+	private Consumer<List<ThreadAllocation>> perThreadCollectorCallback = null;
+	private Consumer<AllocationHistograms> histogramCollectorCallback = null;
+	private boolean perSiteHistograms = false;
 	private int sampleRate = 0;
+	private boolean perTypeRegions = false;
 	private boolean enableImmediately = true;
+	private ProfilerBackendKind backend = ProfilerBackendKind.AUTOMATIC;
 
 	/**
 	 * Set the profiler to collect allocation totals by allocation type.
-	 * @param callback Callback that gets passed the allocation totals once the profiling is complete
+	 * @param callback Callback that gets passed the allocation totals once the profiling is complete, or null to
+	 *                 collect the allocation totals without delivering them
 	 * @return this builder
 	 */
 	public ProfilerBuilder withPerTypeCollector(Consumer<HashMap<String, Long>> callback) {
-		if (nativeCollector != null) throw new IllegalStateException("Can only assign a single collector");
-		nativeCollector = new NativePerTypeCollector();
-		perTypeCollectorCallback = callback;
+		checkPerTypeCollector();
+		perTypeCollectorCallback = callback == null ? allocations -> { } : callback;
+		return this;
+	}
+
+	/**
+	 * Set the profiler to collect allocation totals by allocation type into a reusable primitive map.
+	 * @param allocations Map that is cleared and filled with the allocation totals once the profiling is complete
+	 * @return this builder
+	 */
+	public ProfilerBuilder withPerTypeCollector(TypeAllocationMap allocations) {
+		Objects.requireNonNull(allocations);
+		checkPerTypeCollector();
+		perTypeCollectorMap = allocations;
+		return this;
+	}
+
+	/**
+	 * Set the profiler to collect the estimated true allocation by allocation type, scaled for the sample rate of the
+	 * profiler with confidence intervals, see {@link AllocationEstimator}. Array types are not scaled, as their object
+	 * sizes are unknown; give them to an estimator through {@link #withEstimatedPerTypeCollector(AllocationEstimator,
+	 * Consumer)}.
+	 * @param callback Callback that gets passed the estimates by class descriptor once the profiling is complete
+	 * @return this builder
+	 */
+	public ProfilerBuilder withEstimatedPerTypeCollector(Consumer<Map<String, AllocationEstimate>> callback) {
+		return withEstimatedPerTypeCollector(null, callback);
+	}
+
+	/**
+	 * Set the profiler to collect the estimated true allocation by allocation type through the specified estimator,
+	 * e.g. one given the object sizes of array types through {@link AllocationEstimator#withObjectSize(Class, long)}.
+	 * @param estimator Estimator for the sample rate of the profiler, or null for a default estimator
+	 * @param callback Callback that gets passed the estimates by class descriptor once the profiling is complete
+	 * @return this builder
+	 * @throws IllegalStateException when built, if the estimator is for another sample rate than the profiler
+	 */
+	public ProfilerBuilder withEstimatedPerTypeCollector(AllocationEstimator estimator, Consumer<Map<String, AllocationEstimate>> callback) {
+		Objects.requireNonNull(callback);
+		checkPerTypeCollector();
+		estimatedCollectorCallback = callback;
+		this.estimator = estimator;
 		return this;
 	}
 
 	/**
 	 * Set the profiler to collect the total allocation during profiling.
-	 * @param callback Callback that gets passed the allocation total once the profiling is complete
+	 * @param callback Callback that gets passed the allocation total once the profiling is complete, or null to collect
+	 *                 the total without delivering it
 	 * @return this builder
 	 */
 	public ProfilerBuilder withTotalsCollector(Consumer<Long> callback) {
-		if (nativeCollector != null) throw new IllegalStateException("Can only assign a single collector");
-		nativeCollector = new NativeTotalsCollector();
-		totalsCollectorCallback = callback;
+		return withLongTotalsCollector(callback == null ? null : callback::accept);
+	}
+
+	/**
+	 * Set the profiler to collect the total allocation during profiling, delivering it without boxing.
+	 * @param callback Callback that gets passed the allocation total once the profiling is complete, or null to collect
+	 *                 the total without delivering it
+	 * @return this builder
+	 */
+	public ProfilerBuilder withLongTotalsCollector(LongConsumer callback) {
+		if (totalsCollectorCallback != null) throw new IllegalStateException("Can only assign a single totals collector");
+		totalsCollectorCallback = callback == null ? total -> { } : callback;
 		return this;
 	}
 
+	/**
+	 * Set the profiler to collect the call tree of all allocations during profiling.
+	 * @param callback Callback that gets passed the root of the call tree once the profiling is complete, backed by a
+	 *                 compact {@link CallTree} (see {@link TrieNode#toCallTree()}), or null to collect the call tree
+	 *                 without delivering it
+	 * @return this builder
+	 */
 	public ProfilerBuilder withCallTreeCollector(Consumer<TrieNode> callback) {
-		if (nativeCollector != null) throw new IllegalStateException("Can only assign a single collector");
-		nativeCollector = new NativeCallTreeCollector();
-		callTreeCollectorCallback = callback;
+		if (callTreeCollectorCallback != null) throw new IllegalStateException("Can only assign a single call-tree collector");
+		if (hasPerTypeCollector()) throw new IllegalStateException("Cannot combine the per-type and call-tree collectors");
+		callTreeCollectorCallback = callback == null ? root -> { } : callback;
+		return this;
+	}
+
+	/**
+	 * Set the profiler to collect the total allocation of each thread during profiling, so that a single run shows
+	 * which threads of a pipeline allocate. Can be combined with any other collector.
+	 * <p>
+	 * <b>Only totals are delivered, and the type filter and sample rate are ignored:</b> the allocation of a thread is
+	 * measured through the allocation counter the JVM keeps for each thread, which counts every allocation by the
+	 * thread while profiling is enabled, of any type and unsampled. The thread updates its counter without contention,
+	 * and the counters are only read when profiling is enabled, disabled or complete. The threads are those of the
+	 * thread filter, or every live platform thread without a thread filter. The JVM does not count the allocation of
+	 * virtual threads, which are reported with a total of -1.
+	 * @param callback Callback that gets passed the allocation of each thread, ordered by decreasing allocation, once
+	 *                 the profiling is complete
+	 * @return this builder
+	 */
+	public ProfilerBuilder withPerThreadCollector(Consumer<List<ThreadAllocation>> callback) {
+		Objects.requireNonNull(callback);
+		if (perThreadCollectorCallback != null) throw new IllegalStateException("Can only assign a single per-thread collector");
+		perThreadCollectorCallback = callback;
+		return this;
+	}
+
+	/**
+	 * Set the profiler to collect the distribution of allocation sizes and object counts per type during profiling,
+	 * sampled from JDK Flight Recorder, see {@link #withSampledHistogramCollector(Consumer, boolean)}.
+	 * @param callback Callback that gets passed the histograms once the profiling is complete
+	 * @return this builder
+	 */
+	public ProfilerBuilder withSampledHistogramCollector(Consumer<AllocationHistograms> callback) {
+		return withSampledHistogramCollector(callback, false);
+	}
+
+	/**
+	 * Set the profiler to collect the distribution of allocation sizes and object counts per type, and optionally per
+	 * allocating method, in log-linear {@link AllocationHistogram} buckets. Can be combined with any other collector.
+	 * <p>
+	 * <b>The histograms are sampled from JDK Flight Recorder and their counts are estimates.</b> The native agent does
+	 * not report the size of each object, so the histograms are recorded from the allocation events of JFR: every
+	 * object allocated outside a thread-local allocation buffer is recorded exactly, while the object sampled when a
+	 * buffer is refilled stands for the buffer, counted as the buffer size divided by its own size. A site is the top
+	 * frame of the sampled stack trace, i.e. the method that allocated the object. The sample rate does not apply.
+	 * <p>
+	 * A JFR recording runs from {@link #build()} until the profiler is closed, costing some throughput for the whole
+	 * JVM also while profiling is disabled, and enabling or disabling profiling only marks the recording. The events of
+	 * the filtered threads and types while enabled are read when the results are delivered or rebaselined, which costs
+	 * more the longer the recording has run.
+	 * @param callback Callback that gets passed the histograms once the profiling is complete
+	 * @param perSite Whether to also collect a histogram per allocating method, which records a stack trace per event
+	 * @return this builder
+	 */
+	public ProfilerBuilder withSampledHistogramCollector(Consumer<AllocationHistograms> callback, boolean perSite) {
+		Objects.requireNonNull(callback);
+		if (histogramCollectorCallback != null) throw new IllegalStateException("Can only assign a single histogram collector");
+		histogramCollectorCallback = callback;
+		perSiteHistograms = perSite;
 		return this;
 	}
 
@@ -61,9 +185,7 @@ public class ProfilerBuilder {
 	 * @return this builder
 	 */
 	public ProfilerBuilder withAllocationTypeFilter(Set<Class<?>> classes) {
-		if (nativeFilter != null) throw new IllegalStateException("Can only assign a single filter");
-		nativeFilter = new NativeAllocationTypeFilter(classes);
-		return this;
+		return withFilter(AllocationFilter.types(classes));
 	}
 
 	/**
@@ -72,13 +194,36 @@ public class ProfilerBuilder {
 	 * @return this builder
 	 */
 	public ProfilerBuilder withThreadIdFilter(Set<Thread> threads) {
-		if (nativeFilter != null) throw new IllegalStateException("Can only assign a single filter");
-		nativeFilter = new NativeThreadIdFilter(threads);
+		return withFilter(AllocationFilter.threads(threads));
+	}
+
+	/**
+	 * Set the profiler to only collect allocation information for the threads registered with the registry, which can
+	 * change while profiling.
+	 * @param registry Live set of threads to track allocation information for
+	 * @return this builder
+	 */
+	public ProfilerBuilder withThreadRegistryFilter(ThreadRegistry registry) {
+		return withFilter(AllocationFilter.threads(registry));
+	}
+
+	/**
+	 * Set the profiler to only collect allocation information matched by the specified filter. A filter the native agent
+	 * cannot evaluate on its own is only accepted together with the per-type collector, see {@link AllocationFilter}.
+	 * @param filter Composed filter of the allocations to track allocation information for
+	 * @return this builder
+	 */
+	public ProfilerBuilder withFilter(AllocationFilter filter) {
+		Objects.requireNonNull(filter);
+		if (this.filter != null) throw new IllegalStateException("Can only assign a single filter");
+		this.filter = filter;
 		return this;
 	}
 
 	/**
-	 * Set the sample rate for tracking allocations (every sampleRate allocations will be recorded).
+	 * Set the sample rate for tracking allocations (every sampleRate allocations will be recorded). The results of the
+	 * collectors are the recorded allocation; see {@link AllocationEstimator} for estimating the true allocation and
+	 * choosing a sample rate.
 	 * @param sampleRate record every sampleRate bytes allocation (defaults to 0 that tracks everything)
 	 * @return this builder
 	 */
@@ -87,6 +232,28 @@ public class ProfilerBuilder {
 		return this;
 	}
 
+	/**
+	 * Set the profiler to attribute the allocation per type to regions, see {@link Profiler#region(String)}, by
+	 * reading the per-type results at both ends of a region. Requires the per-type collector.
+	 * @return this builder
+	 */
+	public ProfilerBuilder withPerTypeRegions() {
+		this.perTypeRegions = true;
+		return this;
+	}
+
+	/**
+	 * Set the backend recording the allocation, see {@link ProfilerBackendKind}. The thread counters backend only
+	 * supports the totals collector, optionally combined with the per-thread and histogram collectors, filtered by
+	 * threads and without a sample rate.
+	 * @param backend Backend to use (defaults to {@link ProfilerBackendKind#AUTOMATIC})
+	 * @return this builder
+	 */
+	public ProfilerBuilder withBackend(ProfilerBackendKind backend) {
+		this.backend = Objects.requireNonNull(backend);
+		return this;
+	}
+
 	/**
 	 * Set the profiler to be enabled immediately when the profiler is constructed
 	 * @param enableImmediately true if enabled immediately, false otherwise (defaults to true)
@@ -100,8 +267,177 @@ public class ProfilerBuilder {
 	/**
 	 * Constructs a profiler instance based on the values set on this builder.
 	 * @return Profiler instance
+	 * @throws IllegalStateException if no collector has been set, if the filter matches on types that cannot be
+	 *                               evaluated natively while collecting a call tree, if per-type regions are set
+	 *                               without the per-type collector, or if the thread counters backend is set with
+	 *                               a collector, type filter or sample rate it does not support
+	 * @throws IllegalArgumentException if the filter cannot be evaluated by the native agent
+	 * @throws UnsupportedOperationException if the per-thread collector is set and the JVM does not measure the
+	 *                                       allocation of threads
 	 */
 	public Profiler build() {
-		return new Profiler(nativeCollector, nativeFilter, sampleRate, perTypeCollectorCallback, totalsCollectorCallback, callTreeCollectorCallback, enableImmediately);
+		var compiledFilter = compileFilter();
+		var typeFilter = compiledFilter == null ? null : compiledFilter.residualTypes();
+		var threadRegistry = compiledFilter == null ? null : compiledFilter.registry();
+
+		ProfilerBackend profilerBackend;
+		if (useThreadCounters(compiledFilter)) {
+			profilerBackend = new ThreadCounterBackend(compiledFilter == null ? null : compiledFilter.threads(), threadRegistry);
+		} else {
+			NativeCollector nativeCollector;
+			if (hasPerTypeCollector()) nativeCollector = new NativePerTypeCollector();
+			else if (callTreeCollectorCallback != null) nativeCollector = new NativeCallTreeCollector();
+			else nativeCollector = new NativeTotalsCollector();
+
+			var nativeFilter = compiledFilter == null ? null : compiledFilter.createNativeFilter();
+			profilerBackend = new AgentBackend(nativeCollector, nativeFilter, sampleRate);
+		}
+
+		var perThread = perThreadCollectorCallback == null ? null
+				: new PerThreadAllocations(compiledFilter == null ? null : compiledFilter.threads(), threadRegistry);
+
+		var histograms = histogramCollectorCallback == null ? null
+				: new AllocationEventRecorder(compiledFilter == null ? null : compiledFilter.threads(), threadRegistry, histogramTypes(compiledFilter), perSiteHistograms);
+
+		var perTypeCallback = perTypeCollectorCallback;
+		if (estimatedCollectorCallback != null) {
+			var estimator = this.estimator == null ? new AllocationEstimator(sampleRate) : this.estimator;
+			var callback = estimatedCollectorCallback;
+			perTypeCallback = allocations -> {
+				var perType = new TypeAllocationMap(allocations.size());
+				perType.putAll(allocations);
+				callback.accept(estimator.estimate(perType));
+			};
+		}
+
+		return new Profiler(profilerBackend, threadRegistry, typeFilter, sampleRate, perTypeCallback, perTypeCollectorMap, totalsCollectorCallback, callTreeCollectorCallback, perThread, perThreadCollectorCallback, histograms, histogramCollectorCallback, perTypeRegions, enableImmediately);
+	}
+
+	/**
+	 * Constructs a pool of profilers based on the values set on this builder, keeping up to 8 idle profilers. Later
+	 * changes to this builder do not affect the pool.
+	 * @return Profiler pool
+	 * @throws IllegalStateException if no collector has been set, or if the filter matches on types that cannot be
+	 *                               evaluated natively while collecting a call tree
+	 * @throws IllegalArgumentException if the filter cannot be evaluated by the native agent
+	 */
+	public ProfilerPool buildPool() {
+		return buildPool(8);
+	}
+
+	/**
+	 * Constructs a pool of profilers based on the values set on this builder. Later changes to this builder do not
+	 * affect the pool.
+	 * @param maxIdle Maximum number of closed profilers kept for reuse, further profilers are released when closed
+	 * @return Profiler pool
+	 * @throws IllegalStateException if no collector has been set, or if the filter matches on types that cannot be
+	 *                               evaluated natively while collecting a call tree
+	 * @throws IllegalArgumentException if the filter cannot be evaluated by the native agent, or maxIdle is negative
+	 */
+	public ProfilerPool buildPool(int maxIdle) {
+		if (maxIdle < 0) throw new IllegalArgumentException("Maximum number of idle profilers must not be negative");
+		compileFilter();
+		return new ProfilerPool(copy()::build, maxIdle);
+	}
+
+	/**
+	 * Constructs a profiler based on the values set on this builder, further restricted to the registered threads.
+	 */
+	Profiler build(ThreadRegistry threads) {
+		var builder = copy();
+		var threadFilter = AllocationFilter.threads(threads);
+		builder.filter = filter == null ? threadFilter : filter.and(threadFilter);
+		return builder.build();
+	}
+
+	/**
+	 * Gets a value indicating whether the builder only sets the totals collector, without a filter or sample rate.
+	 */
+	boolean collectsTotalsOnly() {
+		return totalsCollectorCallback != null && !hasPerTypeCollector() && callTreeCollectorCallback == null
+				&& perThreadCollectorCallback == null && histogramCollectorCallback == null && filter == null && sampleRate == 0 && !perTypeRegions;
+	}
+
+	LongConsumer getTotalsCollector() {
+		return totalsCollectorCallback;
+	}
+
+	private ProfilerBuilder copy() {
+		var builder = new ProfilerBuilder();
+		builder.filter = filter;
+		builder.perTypeCollectorCallback = perTypeCollectorCallback;
+		builder.perTypeCollectorMap = perTypeCollectorMap;
+		builder.estimatedCollectorCallback = estimatedCollectorCallback;
+		builder.estimator = estimator;
+		builder.totalsCollectorCallback = totalsCollectorCallback;
+		builder.callTreeCollectorCallback = callTreeCollectorCallback;
+		builder.perThreadCollectorCallback = perThreadCollectorCallback;
+		builder.histogramCollectorCallback = histogramCollectorCallback;
+		builder.perSiteHistograms = perSiteHistograms;
+		builder.sampleRate = sampleRate;
+		builder.perTypeRegions = perTypeRegions;
+		builder.enableImmediately = enableImmediately;
+		builder.backend = backend;
+		return builder;
+	}
+
+	private AllocationFilter.Compiled compileFilter() {
+		var compiledFilter = filter == null ? null : filter.compile();
+		var typeFilter = compiledFilter == null ? null : compiledFilter.residualTypes();
+
+		if (!hasPerTypeCollector() && callTreeCollectorCallback == null && totalsCollectorCallback == null && perThreadCollectorCallback == null
+				&& histogramCollectorCallback == null)
+			throw new IllegalStateException("At least one collector must be assigned");
+		if (typeFilter != null && !hasPerTypeCollector())
+			throw new IllegalStateException("Type matching the native agent cannot evaluate is applied to the per-type results, so it requires the per-type collector: " + filter);
+		if (perTypeRegions && !hasPerTypeCollector())
+			throw new IllegalStateException("Per-type regions require the per-type collector");
+		if (estimator != null && estimator.getSampleRate() != sampleRate)
+			throw new IllegalStateException("The estimator is for sample rate " + estimator.getSampleRate() + ", but the profiler samples at " + sampleRate);
+
+		return compiledFilter;
+	}
+
+	/**
+	 * Chooses the thread counters backend if set, or if automatic without the native agent and supported.
+	 * @throws IllegalStateException if the thread counters backend is set but not supported
+	 */
+	private boolean useThreadCounters(AllocationFilter.Compiled compiledFilter) {
+		if (backend == ProfilerBackendKind.AGENT) return false;
+		if (backend == ProfilerBackendKind.AUTOMATIC && AgentBackend.isAvailable()) return false;
+
+		var supported = !hasPerTypeCollector() && callTreeCollectorCallback == null && sampleRate == 0 && !perTypeRegions
+				&& (compiledFilter == null || (compiledFilter.types() == null && compiledFilter.residualTypes() == null))
+				&& ThreadAllocationCounter.isSupported();
+		if (!supported && backend == ProfilerBackendKind.THREAD_COUNTERS)
+			throw new IllegalStateException("The thread counters backend only supports the totals, per-thread and histogram collectors filtered by threads, without a sample rate");
+		return supported;
+	}
+
+	/**
+	 * Gets the matcher of the class descriptors recorded in the histograms, combining the exact types evaluated by the
+	 * native filter and the residual type matching.
+	 */
+	private static Predicate<String> histogramTypes(AllocationFilter.Compiled compiledFilter) {
+		if (compiledFilter == null) return null;
+
+		Predicate<String> types = compiledFilter.residualTypes();
+		if (compiledFilter.types() != null) {
+			var descriptors = new HashSet<String>();
+			for (var type : compiledFilter.types()) {
+				descriptors.add(type.descriptorString());
+			}
+			types = types == null ? descriptors::contains : types.and(descriptors::contains);
+		}
+		return types;
+	}
+
+	private boolean hasPerTypeCollector() {
+		return perTypeCollectorCallback != null || perTypeCollectorMap != null || estimatedCollectorCallback != null;
+	}
+
+	private void checkPerTypeCollector() {
+		if (hasPerTypeCollector()) throw new IllegalStateException("Can only assign a single per-type collector");
+		if (callTreeCollectorCallback != null) throw new IllegalStateException("Cannot combine the per-type and call-tree collectors");
 	}
 }
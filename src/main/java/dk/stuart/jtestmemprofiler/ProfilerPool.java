@@ -0,0 +1,90 @@
+package dk.stuart.jtestmemprofiler;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.function.Supplier;
+
+/**
+ * A pool of profilers with the same configuration, built through {@link ProfilerBuilder#buildPool()}, for measuring
+ * many small operations without building and tearing down native state for each.
+ * <p>
+ * Closing an acquired profiler delivers its results to the configured callbacks as usual, but returns the profiler to
+ * the pool with its native collector and filter intact. The next {@link #acquire()} hands it out again, rebaselined
+ * and enabled as configured, so a measurement only costs enabling, disabling and reading the profiler. A profiler must
+ * not be used after it has been closed, as it may already be in use by another acquirer.
+ * <p>
+ * The native collector of a pooled profiler is never cleared, see {@link Profiler#rebaseline()}, so the per-type and
+ * call-tree results read at each close grow with every use. Pools suit the totals collector best.
+ * <p>
+ * As the native agent records into a single collector, only one profiler acquired from any pool should be enabled at
+ * a time.
+ */
+@SuppressWarnings("unused")
+public final class ProfilerPool implements Closeable {
+    private final Supplier<Profiler> factory;
+    private final int maxIdle;
+    private final ArrayDeque<Profiler> idle = new ArrayDeque<>();
+    private boolean closed = false;
+
+    ProfilerPool(Supplier<Profiler> factory, int maxIdle) {
+        this.factory = factory;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Takes an idle profiler from the pool, or builds a new one if none is idle.
+     * @return a rebaselined profiler, enabled if the builder enables immediately
+     * @throws IllegalStateException if the pool has been closed
+     */
+    public Profiler acquire() {
+        Profiler profiler;
+        synchronized (this) {
+            if (closed) throw new IllegalStateException("Profiler pool has already been closed");
+            profiler = idle.pollLast();
+        }
+
+        if (profiler == null) {
+            profiler = factory.get();
+            profiler.attach(this);
+        } else {
+            profiler.reopen();
+        }
+        return profiler;
+    }
+
+    /**
+     * Gets the number of idle profilers in the pool.
+     */
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Returns a closed profiler to the pool.
+     * @return false if the pool is closed or full, in which case the caller releases the profiler
+     */
+    synchronized boolean release(Profiler profiler) {
+        if (closed || idle.size() >= maxIdle) return false;
+        idle.addLast(profiler);
+        return true;
+    }
+
+    /**
+     * Closes the pool and releases the native resources of the idle profilers. Profilers still acquired release
+     * theirs when closed.
+     */
+    @Override
+    public void close() {
+        ArrayDeque<Profiler> released;
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            released = new ArrayDeque<>(idle);
+            idle.clear();
+        }
+
+        for (var profiler : released) {
+            profiler.dispose();
+        }
+    }
+}
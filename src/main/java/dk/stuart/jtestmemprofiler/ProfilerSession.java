@@ -0,0 +1,175 @@
+package dk.stuart.jtestmemprofiler;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.function.LongConsumer;
+
+/**
+ * A profiling session of a set of threads opened through {@link ProfilerSessions}, delivering its results to the
+ * collectors of its builder when closed.
+ * <p>
+ * A counting session reads the counter of a thread when it joins, when it leaves and whenever the total is read. The
+ * JVM stops counting a thread once it terminates, so a thread of a fixed set that terminates while the session is
+ * open counts up to the last time the total was read. Threads registered through a wrapped thread factory or executor
+ * leave the registry before terminating and are counted in full.
+ */
+@SuppressWarnings("unused")
+public final class ProfilerSession implements Closeable {
+    private final ThreadRegistry threads;
+    private final Profiler profiler;
+    private final LongConsumer totalsCollectorCallback;
+    private final ThreadRegistry.MembershipListener listener;
+    private final HashMap<Thread, Counter> counters = new HashMap<>();
+    private long departed = 0;
+    private Thread uncounted = null;
+    private boolean closed = false;
+
+    /**
+     * Constructs a session holding the native agent.
+     */
+    ProfilerSession(ThreadRegistry threads, Profiler profiler) {
+        this.threads = threads;
+        this.profiler = profiler;
+        this.totalsCollectorCallback = null;
+        this.listener = null;
+    }
+
+    /**
+     * Constructs a session counting the total allocation of its threads through the allocation counters of the JVM.
+     */
+    ProfilerSession(ThreadRegistry threads, LongConsumer totalsCollectorCallback) {
+        this.threads = threads;
+        this.profiler = null;
+        this.totalsCollectorCallback = totalsCollectorCallback;
+        this.listener = new ThreadRegistry.MembershipListener() {
+            @Override
+            public void registered(Thread thread) {
+                threadRegistered(thread);
+            }
+
+            @Override
+            public void unregistered(Thread thread) {
+                threadUnregistered(thread);
+            }
+        };
+        threads.addMembershipListener(listener);
+    }
+
+    /**
+     * Gets the threads profiled by the session, which can be changed while the session is open.
+     */
+    public ThreadRegistry getThreads() {
+        return threads;
+    }
+
+    /**
+     * Gets a value indicating whether the session holds the native agent, rather than counting the total allocation of
+     * its threads concurrently with other sessions.
+     */
+    public boolean isExclusive() {
+        return profiler != null;
+    }
+
+    /**
+     * Gets the profiler of a session holding the native agent, e.g. to take snapshots, or null for a counting session.
+     */
+    public Profiler getProfiler() {
+        return profiler;
+    }
+
+    /**
+     * Reads the total allocation of the threads of the session so far.
+     *
+     * @throws IllegalStateException if the session has been closed, or a virtual thread has been registered with a
+     *         counting session
+     */
+    public synchronized long getTotal() {
+        checkClosed();
+        if (profiler != null) return profiler.read(new TypeAllocationMap());
+        return countedTotal();
+    }
+
+    /**
+     * Closes the session and delivers its results to the collectors of its builder.
+     *
+     * @throws IllegalStateException if the session has already been closed
+     */
+    @Override
+    public void close() {
+        if (profiler != null) {
+            synchronized (this) {
+                checkClosed();
+                closed = true;
+            }
+            try {
+                profiler.close();
+            } finally {
+                ProfilerSessions.releaseAgent();
+            }
+            return;
+        }
+
+        long total;
+        synchronized (this) {
+            checkClosed();
+            closed = true;
+            threads.removeMembershipListener(listener);
+            try {
+                total = countedTotal();
+            } finally {
+                counters.clear();
+            }
+        }
+        totalsCollectorCallback.accept(total);
+    }
+
+    private long countedTotal() {
+        if (uncounted != null)
+            throw new IllegalStateException("The JVM does not count the allocation of virtual thread " + uncounted + ", register it before opening the session to profile it through the native agent");
+
+        var total = departed;
+        for (var entry : counters.entrySet()) {
+            total += entry.getValue().read(entry.getKey());
+        }
+        return total;
+    }
+
+    private synchronized void threadRegistered(Thread thread) {
+        if (closed) return;
+        if (uncounted == null && ThreadAllocationCounter.isVirtual(thread)) uncounted = thread;
+        counters.put(thread, new Counter(thread.getState() == Thread.State.NEW ? 0L : ThreadAllocationCounter.of(thread)));
+    }
+
+    private synchronized void threadUnregistered(Thread thread) {
+        if (closed) return;
+        var counter = counters.remove(thread);
+        if (counter != null) departed += counter.read(thread);
+    }
+
+    private void checkClosed() {
+        if (closed) throw new IllegalStateException("Profiler session has already been closed");
+    }
+
+    /**
+     * The counter of a thread when it joined the session and when it was last read.
+     */
+    private static final class Counter {
+        private final long start;
+        private long last;
+
+        Counter(long start) {
+            this.start = start;
+            this.last = start;
+        }
+
+        /**
+         * Gets the allocation of the thread since it joined, up to the last reading if the JVM no longer counts it.
+         */
+        long read(Thread thread) {
+            if (start < 0) return 0;
+            var allocated = ThreadAllocationCounter.of(thread);
+            if (allocated >= 0) last = allocated;
+            return last - start;
+        }
+    }
+}
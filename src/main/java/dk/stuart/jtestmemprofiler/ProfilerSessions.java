@@ -0,0 +1,121 @@
+package dk.stuart.jtestmemprofiler;
+
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Opens profiling sessions for concurrent totals budgets, e.g. tests running in parallel that each measure the total
+ * allocation of their own threads and receive it when their session is closed.
+ * <p>
+ * The native agent records into a single collector through a single filter, so it cannot route allocations to several
+ * collectors at once, and only totals sessions run concurrently. A session whose builder only sets the totals
+ * collector, without a filter or sample rate, counts the allocation of its threads through the allocation counters
+ * the JVM keeps per platform thread, and any number of such sessions run concurrently. Every other session holds the
+ * native agent while open: opening it waits until the previous such session has been closed, while counting sessions
+ * continue. Profilers built directly through {@link ProfilerBuilder#build()} do not take part in this coordination,
+ * unless enabled while holding {@link #lockAgent()}.
+ * <p>
+ * The JVM does not count the allocation of virtual threads, so a totals session whose threads include a virtual
+ * thread when opened holds the native agent as well. A virtual thread registered with a counting session afterwards
+ * cannot be counted, and reading or closing the session then throws rather than reporting the allocation without it.
+ * <p>
+ * A thread holding the native agent, through a session or {@link #lockAgent()}, cannot acquire it again before
+ * releasing it, as the agent cannot record for two profilers at once; doing so throws rather than waiting forever.
+ */
+@SuppressWarnings("unused")
+public final class ProfilerSessions {
+    private static final Semaphore AGENT = new Semaphore(1, true);
+    private static volatile Thread agentHolder = null;
+
+    private ProfilerSessions() {
+    }
+
+    /**
+     * Opens a session profiling the specified threads.
+     * @param builder Builder with the collectors receiving the results of the session
+     * @param threads Threads to profile
+     * @return the open session
+     * @throws IllegalStateException if the builder has no collector, or the session needs the native agent and the
+     *         calling thread already holds it
+     * @throws IllegalArgumentException if the filter of the builder cannot be evaluated by the native agent
+     */
+    public static ProfilerSession open(ProfilerBuilder builder, Set<Thread> threads) {
+        return open(builder, new ThreadRegistry(threads));
+    }
+
+    /**
+     * Opens a session profiling the threads registered with the registry, which can change while the session is open.
+     * @param builder Builder with the collectors receiving the results of the session
+     * @param threads Registry of the threads to profile
+     * @return the open session
+     * @throws IllegalStateException if the builder has no collector, or the session needs the native agent and the
+     *         calling thread already holds it
+     * @throws IllegalArgumentException if the filter of the builder cannot be evaluated by the native agent
+     */
+    public static ProfilerSession open(ProfilerBuilder builder, ThreadRegistry threads) {
+        if (builder.collectsTotalsOnly() && ThreadAllocationCounter.isSupported() && !hasVirtualThread(threads))
+            return new ProfilerSession(threads, builder.getTotalsCollector());
+
+        acquireAgent();
+        try {
+            return new ProfilerSession(threads, builder.build(threads));
+        } catch (RuntimeException | Error e) {
+            releaseAgent();
+            throw e;
+        }
+    }
+
+    /**
+     * Waits until no session holds the native agent and holds it until the returned lock is closed, e.g. to enable a
+     * long-lived profiler for a measurement while sessions are opened by other threads.
+     *
+     * @throws IllegalStateException if the calling thread already holds the native agent
+     */
+    public static AgentLock lockAgent() {
+        acquireAgent();
+        return new AgentLock();
+    }
+
+    private static void acquireAgent() {
+        if (agentHolder == Thread.currentThread())
+            throw new IllegalStateException("The native agent is already held by the calling thread through a session or lock that has not been closed");
+
+        AGENT.acquireUninterruptibly();
+        agentHolder = Thread.currentThread();
+    }
+
+    /**
+     * Releases the native agent, which may be done by another thread than the one holding it.
+     */
+    static void releaseAgent() {
+        agentHolder = null;
+        AGENT.release();
+    }
+
+    private static boolean hasVirtualThread(ThreadRegistry threads) {
+        for (var thread : threads.getThreads()) {
+            if (ThreadAllocationCounter.isVirtual(thread)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * A hold on the native agent, see {@link #lockAgent()}.
+     */
+    public static final class AgentLock implements AutoCloseable {
+        private boolean closed = false;
+
+        private AgentLock() {
+        }
+
+        /**
+         * Releases the native agent, once.
+         */
+        @Override
+        public synchronized void close() {
+            if (closed) return;
+            closed = true;
+            releaseAgent();
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package dk.stuart.jtestmemprofiler;
+
+/**
+ * A named region of code entered through {@link Profiler#region(String)}, left by closing it.
+ */
+public interface Region extends AutoCloseable {
+    /**
+     * Leaves the innermost region entered on the calling thread, attributing the allocation since it was entered to
+     * its region path.
+     *
+     * @throws IllegalStateException if the region was entered on another thread, has already been left, or is not the
+     *         innermost region entered on the thread
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,63 @@
+package dk.stuart.jtestmemprofiler;
+
+/**
+ * The allocation attributed to a region path, e.g. {@code request/parse}, over every thread and every time the region
+ * was entered, see {@link Profiler#getRegions()}.
+ */
+@SuppressWarnings("unused")
+public final class RegionStatistics {
+    private final String path;
+    private final long count;
+    private final long total;
+    private final long self;
+    private final TypeAllocationMap perType;
+
+    RegionStatistics(String path, long count, long total, long self, TypeAllocationMap perType) {
+        this.path = path;
+        this.count = count;
+        this.total = total;
+        this.self = self;
+        this.perType = perType;
+    }
+
+    /**
+     * Gets the names of the nested regions separated by {@code /}.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Gets the number of times the region was left.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Gets the allocation inside the region, including nested regions.
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * Gets the allocation inside the region, excluding nested regions.
+     */
+    public long getSelf() {
+        return self;
+    }
+
+    /**
+     * Gets the allocation per type inside the region, including nested regions, or null if the profiler does not
+     * attribute types to regions, see {@link ProfilerBuilder#withPerTypeRegions()}.
+     */
+    public TypeAllocationMap getPerType() {
+        return perType;
+    }
+
+    @Override
+    public String toString() {
+        return path + ": total=" + total + ", self=" + self + ", count=" + count;
+    }
+}
@@ -0,0 +1,53 @@
+package dk.stuart.jtestmemprofiler;
+
+/**
+ * The allocation by a single thread while profiling, see {@link ProfilerBuilder#withPerThreadCollector}.
+ */
+@SuppressWarnings("unused")
+public final class ThreadAllocation {
+    private final long threadId;
+    private final String threadName;
+    private final boolean virtual;
+    private final long total;
+
+    ThreadAllocation(long threadId, String threadName, boolean virtual, long total) {
+        this.threadId = threadId;
+        this.threadName = threadName;
+        this.virtual = virtual;
+        this.total = total;
+    }
+
+    /**
+     * Gets the id of the thread.
+     */
+    public long getThreadId() {
+        return threadId;
+    }
+
+    /**
+     * Gets the name of the thread when the results were read.
+     */
+    public String getThreadName() {
+        return threadName;
+    }
+
+    /**
+     * Gets a value indicating whether the thread is a virtual thread.
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Gets the bytes allocated by the thread while profiling, or -1 if the JVM does not count the allocation of the
+     * thread, e.g. a virtual thread.
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return threadName + " (#" + threadId + (virtual ? ", virtual" : "") + "): " + total;
+    }
+}
@@ -0,0 +1,82 @@
+package dk.stuart.jtestmemprofiler;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Access to the allocation counter the JVM keeps for each platform thread, which counts every allocation by the thread
+ * independently of the native agent.
+ */
+final class ThreadAllocationCounter {
+    private static final com.sun.management.ThreadMXBean THREADS = threadBean();
+    private static final MethodHandle IS_VIRTUAL = isVirtualHandle();
+
+    private ThreadAllocationCounter() {
+    }
+
+    /**
+     * Gets a value indicating whether the JVM counts the allocation of threads.
+     */
+    static boolean isSupported() {
+        return THREADS != null;
+    }
+
+    /**
+     * Gets the bytes allocated by the calling thread, or -1 if not counted for the thread, e.g. a virtual thread.
+     */
+    static long current() {
+        return THREADS.getCurrentThreadAllocatedBytes();
+    }
+
+    /**
+     * Gets the bytes allocated by the thread, or -1 if the thread is not alive or not counted.
+     */
+    @SuppressWarnings("deprecation")
+    static long of(Thread thread) {
+        return thread == Thread.currentThread() ? current() : THREADS.getThreadAllocatedBytes(thread.getId());
+    }
+
+    /**
+     * Gets the bytes allocated by each of the threads in a single call, or -1 for a thread that is not alive or not
+     * counted.
+     */
+    static long[] of(long[] threadIds) {
+        return THREADS.getThreadAllocatedBytes(threadIds);
+    }
+
+    /**
+     * Gets the ids of the live platform threads.
+     */
+    static long[] liveThreadIds() {
+        return THREADS.getAllThreadIds();
+    }
+
+    /**
+     * Gets a value indicating whether the thread is a virtual thread, whose allocation the JVM does not count.
+     */
+    static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL == null) return false;
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(thread);
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean)) return null;
+        if (!bean.isThreadAllocatedMemorySupported()) return null;
+        if (!bean.isThreadAllocatedMemoryEnabled()) bean.setThreadAllocatedMemoryEnabled(true);
+        return bean;
+    }
+
+    private static MethodHandle isVirtualHandle() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package dk.stuart.jtestmemprofiler;
+
+import java.util.*;
+
+/**
+ * The backend counting the total allocation of the profiled threads through the allocation counters the JVM keeps for
+ * each thread, without the native agent. It records totals only, without types or call trees, and as the counters are
+ * maintained by the JVM regardless, enabling and disabling it only reads the counters of the threads.
+ */
+final class ThreadCounterBackend implements ProfilerBackend {
+	private final PerThreadAllocations threads;
+	private boolean enabled = false;
+
+	/**
+	 * Constructs a backend counting the specified threads.
+	 * @param threads Fixed set of threads, or null for every live platform thread unless a registry is given
+	 * @param registry Live set of threads, or null
+	 */
+	ThreadCounterBackend(Set<Thread> threads, ThreadRegistry registry) {
+		this.threads = new PerThreadAllocations(threads, registry);
+	}
+
+	@Override
+	public void enable() {
+		threads.resume();
+		enabled = true;
+	}
+
+	@Override
+	public void disable() {
+		threads.pause();
+		enabled = false;
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Has no effect, as the counted threads follow the registry themselves.
+	 */
+	@Override
+	public void threadsChanged(Set<Thread> threads) {
+	}
+
+	@Override
+	public long readTotal() {
+		return threads.total();
+	}
+
+	@Override
+	public HashMap<String, Long> readPerType() {
+		return null;
+	}
+
+	@Override
+	public CallTree readCallTree() {
+		return null;
+	}
+
+	@Override
+	public boolean collectsPerType() {
+		return false;
+	}
+
+	@Override
+	public boolean collectsCallTree() {
+		return false;
+	}
+
+	@Override
+	public void close() {
+		threads.close();
+	}
+}
@@ -0,0 +1,220 @@
+package dk.stuart.jtestmemprofiler;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
+
+/**
+ * A live set of threads for filtering a profiler, see {@link AllocationFilter#threads(ThreadRegistry)}, to which
+ * threads can be added and removed while profiling, e.g. as work hops onto an executor.
+ * <p>
+ * Registrations are counted per thread, so a thread registered by nested tasks remains registered until every
+ * registration has been removed. Threads can be registered explicitly, when created by a wrapped
+ * {@link ThreadFactory}, or while running a task wrapped by {@link #wrap(Runnable)} or {@link #executor(Executor)}.
+ * Allocations are attributed to the thread that performs them as seen by {@link Thread#currentThread()}, so a task on
+ * a virtual thread registers the virtual thread and not its carrier, which keeps the allocations of other virtual
+ * threads mounted on the same carrier out of the profile.
+ * <p>
+ * The membership test on the allocation path is the constant-time lookup of the native thread filter. Every change in
+ * the threads of the native filter builds and installs a new filter in the profilers using the registry, which is
+ * proportional to the number of registered threads and happens while holding the registry lock. So that short tasks
+ * do not rebuild the filter when they start and end, a platform thread that has run a task wrapped by
+ * {@link #wrap(Runnable)} or {@link #executor(Executor)} stays in the native filter between tasks until it terminates,
+ * while {@link #contains(Thread)} and the per-thread counters only include it for the duration of each task. The
+ * allocation of a pool thread between wrapped tasks, or in tasks that are not wrapped, is therefore included in the
+ * profiles recorded by the native agent; register the pool threads through {@link #threadFactory(ThreadFactory)}
+ * instead when the pool runs other work. A virtual thread runs a single task, so it is removed when the task ends.
+ */
+@SuppressWarnings("unused")
+public final class ThreadRegistry {
+    private final Map<Thread, Integer> registrations = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<Consumer<Set<Thread>>> listeners = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<MembershipListener> membershipListeners = new CopyOnWriteArrayList<>();
+    private final Set<Thread> taskThreads = new HashSet<>();
+
+    /**
+     * Constructs an empty registry.
+     */
+    public ThreadRegistry() {
+    }
+
+    /**
+     * Constructs a registry with the specified threads registered once each.
+     */
+    public ThreadRegistry(Set<Thread> threads) {
+        for (var thread : threads) {
+            registrations.put(thread, 1);
+        }
+    }
+
+    /**
+     * Adds a registration of the thread.
+     */
+    public void register(Thread thread) {
+        register(thread, false);
+    }
+
+    private synchronized void register(Thread thread, boolean task) {
+        if (registrations.merge(thread, 1, Integer::sum) > 1) return;
+
+        for (var listener : membershipListeners) {
+            listener.registered(thread);
+        }
+        var filtered = taskThreads.contains(thread);
+        if (task && !ThreadAllocationCounter.isVirtual(thread)) taskThreads.add(thread);
+        if (!filtered) changed();
+    }
+
+    /**
+     * Removes a registration of the thread. The thread is no longer profiled once all its registrations are removed.
+     * @throws IllegalStateException if the thread is not registered
+     */
+    public synchronized void unregister(Thread thread) {
+        var count = registrations.get(thread);
+        if (count == null) throw new IllegalStateException("Thread is not registered: " + thread.getName());
+
+        if (count == 1) {
+            registrations.remove(thread);
+            for (var listener : membershipListeners) {
+                listener.unregistered(thread);
+            }
+            if (!taskThreads.contains(thread)) changed();
+        } else {
+            registrations.put(thread, count - 1);
+        }
+    }
+
+    /**
+     * Gets a value indicating whether the thread is registered.
+     */
+    public boolean contains(Thread thread) {
+        return registrations.containsKey(thread);
+    }
+
+    /**
+     * Gets a copy of the registered threads.
+     */
+    public Set<Thread> getThreads() {
+        return Set.copyOf(registrations.keySet());
+    }
+
+    /**
+     * Returns a thread factory that registers every thread created by the delegate until the thread terminates, e.g.
+     * for a thread pool or {@code Thread.ofVirtual().factory()}.
+     */
+    public ThreadFactory threadFactory(ThreadFactory delegate) {
+        return task -> {
+            var created = new Thread[1];
+            var thread = delegate.newThread(() -> {
+                try {
+                    task.run();
+                } finally {
+                    unregister(created[0]);
+                }
+            });
+            if (thread == null) return null;
+
+            created[0] = thread;
+            register(thread);
+            return thread;
+        };
+    }
+
+    /**
+     * Returns an executor that registers the thread running each task, pooled or virtual, for the duration of the task.
+     * A pooled thread stays in the native filter of the profilers using the registry between tasks, see
+     * {@link ThreadRegistry}.
+     */
+    public Executor executor(Executor delegate) {
+        return task -> delegate.execute(wrap(task));
+    }
+
+    /**
+     * Wraps the task to register the thread running it for the duration of the task, e.g. before submitting it to a
+     * {@link java.util.concurrent.ForkJoinPool}.
+     */
+    public Runnable wrap(Runnable task) {
+        return () -> {
+            var thread = Thread.currentThread();
+            register(thread, true);
+            try {
+                task.run();
+            } finally {
+                unregister(thread);
+            }
+        };
+    }
+
+    /**
+     * Wraps the task to register the thread running it for the duration of the task.
+     */
+    public <T> Callable<T> wrap(Callable<T> task) {
+        return () -> {
+            var thread = Thread.currentThread();
+            register(thread, true);
+            try {
+                return task.call();
+            } finally {
+                unregister(thread);
+            }
+        };
+    }
+
+    /**
+     * Adds a listener notified with the threads to filter on every change in them, while holding the registry lock so
+     * notifications are ordered. The threads to filter are the registered threads and the live platform threads that
+     * have run a wrapped task.
+     * @return the threads to filter when the listener was added
+     */
+    synchronized Set<Thread> addListener(Consumer<Set<Thread>> listener) {
+        listeners.add(listener);
+        return filteredThreads();
+    }
+
+    void removeListener(Consumer<Set<Thread>> listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Adds a listener notified of every thread joining or leaving the registry, on the thread changing the
+     * registration while holding the registry lock. The threads already registered are passed to the listener first.
+     */
+    synchronized void addMembershipListener(MembershipListener listener) {
+        for (var thread : registrations.keySet()) {
+            listener.registered(thread);
+        }
+        membershipListeners.add(listener);
+    }
+
+    void removeMembershipListener(MembershipListener listener) {
+        membershipListeners.remove(listener);
+    }
+
+    interface MembershipListener {
+        void registered(Thread thread);
+
+        void unregistered(Thread thread);
+    }
+
+    private void changed() {
+        taskThreads.removeIf(thread -> !thread.isAlive());
+        if (listeners.isEmpty()) return;
+
+        var threads = filteredThreads();
+        for (var listener : listeners) {
+            listener.accept(threads);
+        }
+    }
+
+    private Set<Thread> filteredThreads() {
+        var threads = new HashSet<>(registrations.keySet());
+        threads.addAll(taskThreads);
+        return Set.copyOf(threads);
+    }
+}
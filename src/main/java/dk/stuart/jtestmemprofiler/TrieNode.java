@@ -1,21 +1,29 @@
 package dk.stuart.jtestmemprofiler;
 
 import java.io.PrintStream;
+import java.util.AbstractList;
 import java.util.ArrayDeque;
-import java.util.Deque;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
  * A Trie structure for efficient prefix-based storage of stacktraces based on Java internal naming standards.
  * The stack traces are bottom up (i.e., inverse order of what you would have in a stacktrace in an Exception, or
  * what you would normally be traversing in other profilers) to help reduce memory overhead.
+ * <p>
+ * A node is either backed by its own map of children, or is a thin view over a node in a compact {@link CallTree}.
+ * Call trees delivered by the profiler are of the latter kind.
  */
 @SuppressWarnings("unused")
 public class TrieNode {
     private final HashMap<String, TrieNode> children;
     private final long allocationSize;
     private final long childAccumulatedAllocationSize;
+    private final CallTree tree;
+    private final int index;
 
     /**
      * Used by {@link NativeCallTreeCollector} to construct the trie from the agent.
@@ -24,16 +32,16 @@ public class TrieNode {
         this.children = children;
         this.allocationSize = allocationSize;
         this.childAccumulatedAllocationSize = childAccumulatedAllocationSize;
+        this.tree = null;
+        this.index = CallTree.NO_NODE;
     }
 
-    private static <T> Deque<T> cloneArrayDequeWithoutModifyingOriginal(Deque<T> original) {
-        Deque<T> clone = new ArrayDeque<>(original.size());
-
-        for (T element : original) {
-            clone.push(element);
-        }
-
-        return clone;
+    TrieNode(CallTree tree, int index) {
+        this.children = null;
+        this.allocationSize = 0;
+        this.childAccumulatedAllocationSize = 0;
+        this.tree = tree;
+        this.index = index;
     }
 
     /**
@@ -43,29 +51,53 @@ public class TrieNode {
      * @return A map from stacktrace info to allocation details and further stacktrace elements.
      */
     public Map<String, TrieNode> getChildren() {
-        return children;
+        if (tree == null) return children;
+
+        var result = new LinkedHashMap<String, TrieNode>();
+        for (var child = tree.getFirstChild(index); child != CallTree.NO_NODE; child = tree.getNextSibling(child)) {
+            result.put(tree.getFrameName(child), new TrieNode(tree, child));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the id of this stacktrace element's name in the global {@link FrameTable}, or
+     * {@link FrameTable#NO_FRAME} for the root and for nodes that are not backed by a {@link CallTree}.
+     */
+    public int getFrameId() {
+        return tree == null ? FrameTable.NO_FRAME : tree.getFrameId(index);
     }
 
     /**
      * Returns the direct allocation at this stacktrace element.
      */
     public long getAllocationSize() {
-        return allocationSize;
+        return tree == null ? allocationSize : tree.getAllocationSize(index);
     }
 
     /**
      * Returns the accumulated allocation at this stacktrace element and all its children recursively.
      */
     public long getChildAccumulatedAllocationSize() {
-        return childAccumulatedAllocationSize;
+        return tree == null ? childAccumulatedAllocationSize : tree.getChildAccumulatedAllocationSize(index);
+    }
+
+    /**
+     * Returns a compact {@link CallTree} rooted at this stacktrace element. For the root of a view over a
+     * {@link CallTree} this is the backing tree itself, otherwise the subtrie is converted.
+     */
+    public CallTree toCallTree() {
+        return tree != null && index == CallTree.ROOT ? tree : CallTree.of(this);
     }
 
     /**
      * Writes all stack traces and their allocation info to the specified print stream.
      */
     public void write(PrintStream sw) {
-        visitLeaf(stack -> {
-            stack.forEach(e -> sw.format("%s - %d %d%n", e.key(), e.value().allocationSize, e.value().childAccumulatedAllocationSize));
+        visitLeafPaths(path -> {
+            for (var depth = 0; depth < path.getDepth(); depth++) {
+                sw.format("%s - %d %d%n", path.getFrameName(depth), path.getAllocationSize(depth), path.getChildAccumulatedAllocationSize(depth));
+            }
             sw.println();
         });
     }
@@ -73,55 +105,141 @@ public class TrieNode {
     /**
      * Visits all leafs in the trie and passes the stack information to the specified visitor for further processing.
      */
-    @SuppressWarnings("ReassignedVariable")
     public void visitLeaf(TrieVisitor visitor) {
-        for (var entry : children.entrySet()) {
-            var stack = new ArrayDeque<TrieStackInfo>();
-            stack.push(new TrieStackInfo(entry.getKey(), entry.getValue(), entry.getValue().children.entrySet().stream().toList(), -1));
-
-            while (!stack.isEmpty()) {
-                var top = stack.peek();
-                if (top.children().isEmpty()) {
-                    visitor.visitStack(cloneArrayDequeWithoutModifyingOriginal(stack));
-                    stack.pop();
-                    continue;
-                }
-
-                top = stack.pop();
-                if (top.lastVisitedChildOffset() + 1 < top.children().size()) {
-                    stack.push(new TrieStackInfo(top.key(), top.value(), top.children(), top.lastVisitedChildOffset() + 1));
-                    var child = top.children().get(top.lastVisitedChildOffset() + 1);
-                    stack.push(new TrieStackInfo(child.getKey(), child.getValue(), child.getValue().children.entrySet().stream().toList(), -1));
-                }
-            }
-        }
+        visitStacks(visitor, false);
     }
 
     /**
      * Visit all nodes that allocate something (whether they are leaves or not).
      */
     public void visitSelfAllocators(TrieVisitor visitor) {
-        for (var entry : children.entrySet()) {
-            var stack = new ArrayDeque<TrieStackInfo>();
-            stack.push(new TrieStackInfo(entry.getKey(), entry.getValue(), entry.getValue().children.entrySet().stream().toList(), -1));
-
-            while (!stack.isEmpty()) {
-                var top = stack.peek();
-                if (top.children().isEmpty()) {
-                    visitor.visitStack(cloneArrayDequeWithoutModifyingOriginal(stack));
-                    stack.pop();
-                    continue;
-                } else if (top.lastVisitedChildOffset() + 1 >= top.children().size() && top.value().allocationSize > 0) {
-                    visitor.visitStack(cloneArrayDequeWithoutModifyingOriginal(stack));
-                }
+        visitStacks(visitor, true);
+    }
+
+    /**
+     * Visits all leafs in the trie and passes a reused path buffer to the specified visitor. Unlike
+     * {@link #visitLeaf(TrieVisitor)} this does not allocate per visited node.
+     */
+    public void visitLeafPaths(CallTreePathVisitor visitor) {
+        if (tree != null) tree.visitLeaves(index, visitor);
+        else toCallTree().visitLeaves(visitor);
+    }
+
+    /**
+     * Visit all nodes that allocate something (whether they are leaves or not) and passes a reused path buffer to
+     * the specified visitor. Unlike {@link #visitSelfAllocators(TrieVisitor)} this does not allocate per visited node.
+     */
+    public void visitSelfAllocatorPaths(CallTreePathVisitor visitor) {
+        if (tree != null) tree.visitSelfAllocators(index, visitor);
+        else toCallTree().visitSelfAllocators(visitor);
+    }
 
-                top = stack.pop();
-                if (top.lastVisitedChildOffset() + 1 < top.children().size()) {
-                    stack.push(new TrieStackInfo(top.key(), top.value(), top.children(), top.lastVisitedChildOffset() + 1));
-                    var child = top.children().get(top.lastVisitedChildOffset() + 1);
-                    stack.push(new TrieStackInfo(child.getKey(), child.getValue(), child.getValue().children.entrySet().stream().toList(), -1));
+    private void visitStacks(TrieVisitor visitor, boolean selfAllocators) {
+        var callTree = tree;
+        var start = index;
+        TrieNode[] sources = null;
+
+        if (callTree == null) {
+            var builder = new CallTree.Builder(true);
+            CallTree.convert(this, builder, false);
+            callTree = builder.build();
+            start = CallTree.ROOT;
+            sources = builder.getSources();
+        }
+
+        var adapter = new StackAdapter(visitor, sources);
+        if (selfAllocators) callTree.visitSelfAllocators(start, adapter);
+        else callTree.visitLeaves(start, adapter);
+    }
+
+    /**
+     * Adapts a {@link CallTreePath} to the {@link TrieStackInfo} stack expected by {@link TrieVisitor}. Stack
+     * elements are only recreated when the node or child offset at their depth changes, and child lists are only
+     * materialized when accessed.
+     */
+    private static final class StackAdapter implements CallTreePathVisitor {
+        private final TrieVisitor visitor;
+        private final TrieNode[] sources;
+        private TrieStackInfo[] infos = new TrieStackInfo[32];
+        private int[] infoNodes = new int[32];
+
+        StackAdapter(TrieVisitor visitor, TrieNode[] sources) {
+            this.visitor = visitor;
+            this.sources = sources;
+        }
+
+        @Override
+        public void visitPath(CallTreePath path) {
+            var tree = path.getTree();
+            var depth = path.getDepth();
+            if (depth > infos.length) {
+                infos = Arrays.copyOf(infos, Math.max(depth, infos.length * 2));
+                infoNodes = Arrays.copyOf(infoNodes, infos.length);
+            }
+
+            var stack = new ArrayDeque<TrieStackInfo>(depth);
+            for (var d = 0; d < depth; d++) {
+                var node = path.getNode(d);
+                var offset = d + 1 < depth ? path.getOrdinal(d + 1) : lastChildOffset(tree, node);
+                var info = infos[d];
+
+                if (info == null || infoNodes[d] != node) {
+                    var value = sources != null ? sources[node] : new TrieNode(tree, node);
+                    info = new TrieStackInfo(tree.getFrameName(node), value, new ChildEntries(value), offset);
+                    infos[d] = info;
+                    infoNodes[d] = node;
+                } else if (info.lastVisitedChildOffset() != offset) {
+                    info = new TrieStackInfo(info.key(), info.value(), info.children(), offset);
+                    infos[d] = info;
                 }
+
+                stack.addLast(info);
+            }
+
+            visitor.visitStack(stack);
+        }
+
+        private static int lastChildOffset(CallTree tree, int node) {
+            var offset = -1;
+            for (var child = tree.getFirstChild(node); child != CallTree.NO_NODE; child = tree.getNextSibling(child)) {
+                offset++;
             }
+            return offset;
         }
     }
+
+    private static final class ChildEntries extends AbstractList<Map.Entry<String, TrieNode>> {
+        private final TrieNode node;
+        private List<Map.Entry<String, TrieNode>> entries;
+
+        ChildEntries(TrieNode node) {
+            this.node = node;
+        }
+
+        private List<Map.Entry<String, TrieNode>> entries() {
+            if (entries == null) entries = List.copyOf(node.getChildren().entrySet());
+            return entries;
+        }
+
+        @Override
+        public Map.Entry<String, TrieNode> get(int index) {
+            return entries().get(index);
+        }
+
+        @Override
+        public int size() {
+            return entries().size();
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        return tree != null && o instanceof TrieNode other && other.tree == tree && other.index == index;
+    }
+
+    @Override
+    public int hashCode() {
+        return tree != null ? 31 * System.identityHashCode(tree) + index : System.identityHashCode(this);
+    }
 }
@@ -0,0 +1,224 @@
+package dk.stuart.jtestmemprofiler;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * An open-addressing map from allocated type (class descriptor, e.g. {@code [B}) to allocated bytes, storing the
+ * values as primitive longs.
+ * <p>
+ * Keys are interned when inserted, so maps filled by repeated measurements share their key strings, and lookups with
+ * an interned key are an identity comparison. A map can be cleared and refilled without allocating, which makes it
+ * suitable for repeated measurements in tight loops.
+ * <p>
+ * A {@link TypeAllocationMap} is not safe for use by multiple threads without external synchronization.
+ */
+@SuppressWarnings("unused")
+public final class TypeAllocationMap {
+    private static final ConcurrentHashMap<String, String> INTERNED = new ConcurrentHashMap<>();
+
+    private String[] keys;
+    private long[] values;
+    private int size = 0;
+
+    /**
+     * Constructs an empty map.
+     */
+    public TypeAllocationMap() {
+        this(16);
+    }
+
+    /**
+     * Constructs an empty map that can hold the specified number of types without resizing.
+     * @param expectedSize Number of types expected to be stored
+     */
+    public TypeAllocationMap(int expectedSize) {
+        var capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        keys = new String[capacity];
+        values = new long[capacity];
+    }
+
+    /**
+     * Returns the canonical instance of the type name used as key by all maps.
+     */
+    public static String intern(String type) {
+        var existing = INTERNED.putIfAbsent(type, type);
+        return existing == null ? type : existing;
+    }
+
+    /**
+     * Converts a class descriptor such as {@code [Ljava/lang/String;} to a Java type name such as
+     * {@code java.lang.String[]}.
+     */
+    public static String typeName(String descriptor) {
+        var dimensions = 0;
+        while (dimensions < descriptor.length() && descriptor.charAt(dimensions) == '[') dimensions++;
+
+        var element = descriptor.substring(dimensions);
+        var name = switch (element) {
+            case "Z" -> "boolean";
+            case "B" -> "byte";
+            case "C" -> "char";
+            case "S" -> "short";
+            case "I" -> "int";
+            case "J" -> "long";
+            case "F" -> "float";
+            case "D" -> "double";
+            default -> element.startsWith("L") && element.endsWith(";")
+                    ? element.substring(1, element.length() - 1).replace('/', '.')
+                    : element.replace('/', '.');
+        };
+        return name + "[]".repeat(dimensions);
+    }
+
+    /**
+     * Returns the allocation of the type, or 0 if the type is not present.
+     */
+    public long get(String type) {
+        return getOrDefault(type, 0L);
+    }
+
+    /**
+     * Returns the allocation of the type, or the default value if the type is not present.
+     */
+    public long getOrDefault(String type, long defaultValue) {
+        var slot = find(type);
+        return keys[slot] == null ? defaultValue : values[slot];
+    }
+
+    /**
+     * Returns true if the type is present in the map.
+     */
+    public boolean containsKey(String type) {
+        return keys[find(type)] != null;
+    }
+
+    /**
+     * Sets the allocation of the type.
+     */
+    public void put(String type, long allocation) {
+        var slot = insert(type);
+        values[slot] = allocation;
+    }
+
+    /**
+     * Adds to the allocation of the type, treating absent types as 0.
+     */
+    public void add(String type, long allocation) {
+        var slot = insert(type);
+        values[slot] += allocation;
+    }
+
+    /**
+     * Copies all entries of the specified map into this map.
+     */
+    public void putAll(Map<String, Long> allocations) {
+        for (var entry : allocations.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Returns the number of types in the map.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns true if the map contains no types.
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Removes all types from the map, retaining its capacity.
+     */
+    public void clear() {
+        Arrays.fill(keys, null);
+        size = 0;
+    }
+
+    /**
+     * Returns the sum of the allocation of all types.
+     */
+    public long total() {
+        var total = 0L;
+        for (var i = 0; i < keys.length; i++) {
+            if (keys[i] != null) total += values[i];
+        }
+        return total;
+    }
+
+    /**
+     * Performs the action for every type and its allocation.
+     */
+    public void forEach(ObjLongConsumer<String> action) {
+        for (var i = 0; i < keys.length; i++) {
+            if (keys[i] != null) action.accept(keys[i], values[i]);
+        }
+    }
+
+    /**
+     * Returns a boxed copy of the map in the form delivered by {@link ProfilerBuilder#withPerTypeCollector(Consumer)}.
+     */
+    public HashMap<String, Long> toHashMap() {
+        var result = new HashMap<String, Long>(size * 4 / 3 + 1);
+        forEach(result::put);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        var result = new StringJoiner(", ", "{", "}");
+        forEach((type, allocation) -> result.add(type + "=" + allocation));
+        return result.toString();
+    }
+
+    private int find(String type) {
+        var mask = keys.length - 1;
+        var slot = mix(type.hashCode()) & mask;
+        while (true) {
+            var key = keys[slot];
+            if (key == null || key == type || key.equals(type)) return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private int insert(String type) {
+        var slot = find(type);
+        if (keys[slot] != null) return slot;
+
+        if ((size + 1) * 2 > keys.length) {
+            resize();
+            slot = find(type);
+        }
+
+        keys[slot] = intern(type);
+        values[slot] = 0L;
+        size++;
+        return slot;
+    }
+
+    private void resize() {
+        var oldKeys = keys;
+        var oldValues = values;
+        keys = new String[oldKeys.length * 2];
+        values = new long[oldValues.length * 2];
+
+        for (var i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == null) continue;
+
+            var slot = find(oldKeys[i]);
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+
+    private static int mix(int hash) {
+        var h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,101 @@
+package dk.stuart.jtestmemprofiler;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class AllocationEstimatorTest {
+    @SuppressWarnings("unused")
+    private static final class Fields {
+        long a;
+        int b;
+        Object c;
+        static long ignored;
+    }
+
+    @Test
+    void estimate_unsampled_returnsRecordedAllocation() {
+        var estimate = new AllocationEstimator(0).estimate("[B", 1000);
+
+        assertThat(estimate.getEstimatedBytes()).isEqualTo(1000.0);
+        assertThat(estimate.getLowerBound()).isEqualTo(1000.0);
+        assertThat(estimate.getUpperBound()).isEqualTo(1000.0);
+    }
+
+    @Test
+    void estimate_simulatedSampling_coversTrueAllocation() {
+        var objectSize = 48L;
+        var sampleRate = 4096;
+        var objects = 200_000;
+        var random = new Random(42);
+        var probability = -Math.expm1(-(double) objectSize / sampleRate);
+        var sampledBytes = 0L;
+        for (var i = 0; i < objects; i++) {
+            if (random.nextDouble() < probability) sampledBytes += objectSize;
+        }
+
+        var estimator = new AllocationEstimator(sampleRate).withObjectSize(Fields.class, objectSize);
+        var perType = new TypeAllocationMap();
+        perType.put(Fields.class.descriptorString(), sampledBytes);
+        var estimate = estimator.estimate(perType).get(Fields.class.descriptorString());
+        var trueBytes = (double) objects * objectSize;
+
+        assertThat(estimate.getSampleCount()).isEqualTo((double) sampledBytes / objectSize);
+        assertThat(estimate.getEstimatedBytes()).isBetween(trueBytes * 0.95, trueBytes * 1.05);
+        assertThat(estimate.getLowerBound()).isLessThanOrEqualTo(trueBytes);
+        assertThat(estimate.getUpperBound()).isGreaterThanOrEqualTo(trueBytes);
+        assertThat(estimator.estimateTotal(perType).getEstimatedBytes()).isEqualTo(estimate.getEstimatedBytes());
+    }
+
+    @Test
+    void estimate_largeObjects_areAlwaysRecorded() {
+        var estimate = new AllocationEstimator(1024).withObjectSize(byte[].class, 1024 * 1024).estimate("[B", 10 * 1024 * 1024);
+
+        assertThat(estimate.getEstimatedBytes()).isEqualTo(10.0 * 1024 * 1024);
+        assertThat(estimate.getLowerBound()).isEqualTo(10.0 * 1024 * 1024);
+    }
+
+    @Test
+    void estimate_arrayWithoutObjectSize_isNotScaled() {
+        var estimator = new AllocationEstimator(512 * 1024);
+        var estimate = estimator.estimate("[B", 4096);
+
+        assertThat(estimate.isScaled()).isFalse();
+        assertThat(estimate.getEstimatedBytes()).isEqualTo(4096.0);
+        assertThat(estimate.getLowerBound()).isNaN();
+        assertThat(estimate.getUpperBound()).isNaN();
+        assertThat(estimator.estimate(null, 4096).isScaled()).isFalse();
+
+        var perType = new TypeAllocationMap();
+        perType.put("[B", 4096);
+        perType.put(Fields.class.descriptorString(), 32);
+        var total = estimator.estimateTotal(perType);
+        assertThat(total.isScaled()).isFalse();
+        assertThat(total.getEstimatedBytes()).isGreaterThan(4096.0 + 32);
+        assertThat(total.getLowerBound()).isNaN();
+    }
+
+    @Test
+    void shallowSize_fields_sumsInstanceFieldsAligned() {
+        assertThat(AllocationEstimator.shallowSize(Fields.class)).isEqualTo(32L);
+        assertThat(AllocationEstimator.shallowSize(Object.class)).isEqualTo(16L);
+    }
+
+    @Test
+    void normalQuantile_probabilities_returnsQuantiles() {
+        assertThat(AllocationEstimator.normalQuantile(0.975)).isBetween(1.959963, 1.959965);
+        assertThat(AllocationEstimator.normalQuantile(0.5)).isEqualTo(0.0);
+        assertThat(AllocationEstimator.normalQuantile(0.001)).isBetween(-3.090233, -3.090231);
+    }
+
+    @Test
+    void sampleRate_targets_choosesSampleRate() {
+        assertThat(AllocationEstimator.sampleRateForOverhead(1e9, 1000)).isEqualTo(1_000_000);
+        assertThat(AllocationEstimator.sampleRateForError(1_000_000, 0.05, 0.95)).isEqualTo(650);
+        assertThat(AllocationEstimator.sampleRateForError(100, 0.05, 0.95)).isEqualTo(0);
+        assertThatThrownBy(() -> new AllocationEstimator(-1)).isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,98 @@
+package dk.stuart.jtestmemprofiler;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AllocationEventRecorderTest {
+    private static final int MB = 1024 * 1024;
+
+    @Test
+    void read_largeArrays_recordsEachArrayInHistogramOfType() {
+        var recorder = new AllocationEventRecorder(Set.of(Thread.currentThread()), null, "[B"::equals, true);
+
+        recorder.start();
+        for (var i = 0; i < 3; i++) {
+            blackhole(new byte[8 * MB]);
+        }
+        blackhole(new long[MB]);
+        recorder.stop();
+        var histograms = recorder.read();
+        recorder.close();
+
+        var bytes = histograms.getPerType(byte[].class);
+        assertThat(bytes.getCount(AllocationHistogram.bucketIndex(8L * MB + 16))).isEqualTo(3L);
+        assertThat(histograms.getPerType().keySet()).isEqualTo(Set.of("[B"));
+        assertThat(histograms.getPerSite().keySet()).contains("Ldk/stuart/jtestmemprofiler/AllocationEventRecorderTest;read_largeArrays_recordsEachArrayInHistogramOfType");
+    }
+
+    @Test
+    void read_otherThread_excludesAllocationOfOtherThread() throws InterruptedException {
+        var recorder = new AllocationEventRecorder(Set.of(Thread.currentThread()), null, null, false);
+
+        recorder.start();
+        var other = new Thread(() -> blackhole(new byte[8 * MB]));
+        other.start();
+        other.join();
+        recorder.stop();
+        var histograms = recorder.read();
+        recorder.close();
+
+        assertThat(histograms.getPerType(byte[].class).getMax() < 8L * MB).isTrue();
+        assertThat(histograms.getPerSite()).isNull();
+    }
+
+    @Test
+    void read_allocationWhileDisabled_recordsOnlyEnabledWindows() {
+        var recorder = new AllocationEventRecorder(Set.of(Thread.currentThread()), null, "[B"::equals, false);
+
+        blackhole(new byte[32 * MB]);
+        recorder.start();
+        blackhole(new byte[8 * MB]);
+        recorder.stop();
+        blackhole(new byte[16 * MB]);
+        var first = recorder.read();
+        recorder.start();
+        blackhole(new byte[8 * MB]);
+        recorder.stop();
+        var second = recorder.read();
+        recorder.close();
+
+        var bytes = first.getPerType(byte[].class);
+        assertThat(bytes.getCount(AllocationHistogram.bucketIndex(8L * MB + 16))).isEqualTo(1L);
+        assertThat(bytes.getMax() < 16L * MB).isTrue();
+        assertThat(second.getPerType(byte[].class).getCount(AllocationHistogram.bucketIndex(8L * MB + 16))).isEqualTo(2L);
+    }
+
+    @Test
+    void clear_enabled_discardsEventsBeforeClear() {
+        var recorder = new AllocationEventRecorder(Set.of(Thread.currentThread()), null, "[B"::equals, false);
+
+        recorder.start();
+        blackhole(new byte[16 * MB]);
+        recorder.clear();
+        blackhole(new byte[8 * MB]);
+        recorder.stop();
+        var histograms = recorder.read();
+        recorder.close();
+
+        var bytes = histograms.getPerType(byte[].class);
+        assertThat(bytes.getCount(AllocationHistogram.bucketIndex(8L * MB + 16))).isEqualTo(1L);
+        assertThat(bytes.getMax() < 16L * MB).isTrue();
+    }
+
+    @Test
+    void descriptor_recordedClassNames_convertsToClassDescriptors() {
+        assertThat(AllocationEventRecorder.descriptor("java.lang.String")).isEqualTo("Ljava/lang/String;");
+        assertThat(AllocationEventRecorder.descriptor("[B")).isEqualTo("[B");
+        assertThat(AllocationEventRecorder.descriptor("[Ljava.lang.String;")).isEqualTo("[Ljava/lang/String;");
+    }
+
+    private static volatile Object sink;
+
+    private static void blackhole(Object value) {
+        sink = value;
+    }
+}
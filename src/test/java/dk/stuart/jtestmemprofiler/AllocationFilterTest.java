@@ -0,0 +1,79 @@
+package dk.stuart.jtestmemprofiler;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class AllocationFilterTest {
+    @Test
+    void compile_typesOrTypes_evaluatesNatively() {
+        var compiled = AllocationFilter.types(byte[].class).or(AllocationFilter.types(char[].class)).compile();
+
+        assertThat(compiled.types()).isEqualTo(Set.of(byte[].class, char[].class));
+        assertThat(compiled.threads()).isNull();
+        assertThat(compiled.residualTypes()).isNull();
+    }
+
+    @Test
+    void compile_typesAndThread_evaluatesThreadNativelyAndTypesOnResult() {
+        var thread = Thread.currentThread();
+        var compiled = AllocationFilter.types(byte[].class, char[].class).and(AllocationFilter.threads(thread)).compile();
+
+        assertThat(compiled.threads()).isEqualTo(Set.of(thread));
+        assertThat(compiled.types()).isNull();
+        assertThat(compiled.residualTypes().test("[B")).isTrue();
+        assertThat(compiled.residualTypes().test("[C")).isTrue();
+        assertThat(compiled.residualTypes().test("[I")).isFalse();
+    }
+
+    @Test
+    void compile_threadsAndThreads_intersectsThreadSets() {
+        var thread1 = new Thread(() -> {});
+        var thread2 = new Thread(() -> {});
+        var compiled = AllocationFilter.threads(thread1, thread2).and(AllocationFilter.threads(thread2)).compile();
+
+        assertThat(compiled.threads()).isEqualTo(Set.of(thread2));
+    }
+
+    @Test
+    void compile_typeMatchers_matchDescriptors() {
+        var matcher = AllocationFilter.packagePrefix("java.util")
+                .or(AllocationFilter.arrayOf(AllocationFilter.subclassOf(CharSequence.class)))
+                .and(AllocationFilter.not(AllocationFilter.subclassOf(java.util.List.class)))
+                .compile()
+                .residualTypes();
+
+        assertThat(matcher.test("Ljava/util/HashMap;")).isTrue();
+        assertThat(matcher.test("Ljava/util/ArrayList;")).isFalse();
+        assertThat(matcher.test("Ljava/utilities/Other;")).isFalse();
+        assertThat(matcher.test("[Ljava/lang/String;")).isTrue();
+        assertThat(matcher.test("Ljava/lang/String;")).isFalse();
+        assertThat(matcher.test("[[Ljava/lang/String;")).isFalse();
+        assertThat(matcher.test("Lcom/example/Missing;")).isFalse();
+        assertThat(AllocationFilter.arrayOf(byte.class).compile().types()).isNull();
+        assertThat(AllocationFilter.arrayOf(byte.class).compile().residualTypes().test("[B")).isTrue();
+    }
+
+    @Test
+    void compile_registryAndTypes_evaluatesRegistryNativelyAndTypesOnResult() {
+        var registry = new ThreadRegistry();
+        var compiled = AllocationFilter.threads(registry).and(AllocationFilter.packagePrefix("java.util")).compile();
+
+        assertThat(compiled.registry()).isSameAs(registry);
+        assertThat(compiled.threads()).isNull();
+        assertThat(compiled.residualTypes().test("Ljava/util/HashMap;")).isTrue();
+        assertThatThrownBy(AllocationFilter.threads(registry).and(AllocationFilter.threads(Thread.currentThread()))::compile).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(AllocationFilter.threads(registry).or(AllocationFilter.types(byte[].class))::compile).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void compile_threadsOrTypes_throws() {
+        var filter = AllocationFilter.threads(Thread.currentThread()).or(AllocationFilter.types(byte[].class));
+
+        assertThatThrownBy(filter::compile).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(AllocationFilter.not(AllocationFilter.threads(Thread.currentThread()))::compile).isInstanceOf(IllegalArgumentException.class);
+    }
+}
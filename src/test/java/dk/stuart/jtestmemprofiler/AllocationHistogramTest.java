@@ -0,0 +1,69 @@
+package dk.stuart.jtestmemprofiler;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class AllocationHistogramTest {
+    @Test
+    void bucketIndex_sizes_fallWithinBoundsOfBucket() {
+        var histogram = new AllocationHistogram();
+        long[] sizes = { 0, 1, 7, 8, 9, 15, 16, 17, 23, 24, 1000, 1024, 1 << 20, (1 << 20) + 1, Long.MAX_VALUE / 3 };
+
+        for (var size : sizes) {
+            var bucket = AllocationHistogram.bucketIndex(size);
+            assertThat(bucket).isBetween(0, histogram.getBucketCount() - 1);
+            assertThat(histogram.getLowerBound(bucket)).isLessThanOrEqualTo(size);
+            assertThat(size <= histogram.getUpperBound(bucket) - 1).isTrue();
+        }
+    }
+
+    @Test
+    void bucketIndex_consecutiveBuckets_areContiguousWithinEighth() {
+        var histogram = new AllocationHistogram();
+
+        for (var bucket = 1; bucket < histogram.getBucketCount() - 1; bucket++) {
+            assertThat(histogram.getLowerBound(bucket)).isEqualTo(histogram.getUpperBound(bucket - 1));
+            var width = histogram.getUpperBound(bucket) - histogram.getLowerBound(bucket);
+            assertThat(width * 8 <= Math.max(8, histogram.getLowerBound(bucket))).isTrue();
+        }
+    }
+
+    @Test
+    void record_objectsOfTwoSizes_separatesCountsAndBytes() {
+        var histogram = new AllocationHistogram();
+
+        histogram.record(24, 1_000_000);
+        histogram.record(100 * 1024 * 1024, 2);
+
+        assertThat(histogram.getTotalCount()).isEqualTo(1_000_002L);
+        assertThat(histogram.getTotalBytes()).isEqualTo(24_000_000L + 200L * 1024 * 1024);
+        assertThat(histogram.getMin()).isEqualTo(24L);
+        assertThat(histogram.getMax()).isEqualTo(100L * 1024 * 1024);
+        assertThat(histogram.getPercentile(50)).isEqualTo(25L);
+        assertThat(histogram.getPercentile(100)).isEqualTo(100L * 1024 * 1024);
+        assertThat(histogram.getCount(AllocationHistogram.bucketIndex(24))).isEqualTo(1_000_000L);
+        assertThat(histogram.getBytes(AllocationHistogram.bucketIndex(100 * 1024 * 1024))).isEqualTo(200L * 1024 * 1024);
+    }
+
+    @Test
+    void add_otherHistogram_mergesBuckets() {
+        var histogram = new AllocationHistogram();
+        var other = new AllocationHistogram();
+        histogram.record(16);
+        other.record(16);
+        other.record(4096);
+
+        histogram.add(other);
+
+        assertThat(histogram.getTotalCount()).isEqualTo(3L);
+        assertThat(histogram.getCount(AllocationHistogram.bucketIndex(16))).isEqualTo(2L);
+        assertThat(histogram.getMax()).isEqualTo(4096L);
+    }
+
+    @Test
+    void record_negativeSize_throws() {
+        assertThatThrownBy(() -> new AllocationHistogram().record(-1)).isInstanceOf(IllegalArgumentException.class);
+    }
+}
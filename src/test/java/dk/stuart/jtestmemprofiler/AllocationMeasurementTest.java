@@ -0,0 +1,111 @@
+package dk.stuart.jtestmemprofiler;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+
+public class AllocationMeasurementTest {
+    private static volatile Object sink;
+
+    @Test
+    void measure_allocatingBody_summarizesAllocationPerIteration() {
+        var result = new AllocationMeasurement()
+                .withWarmupIterations(5)
+                .withIterations(200)
+                .withPerType(true)
+                .measure(() -> sink = new byte[1024]);
+
+        assertThat(result.getTotal().getIterations() + result.getTotal().getOutliers()).isEqualTo(200);
+        assertThat(result.getTotal().getMedian()).isGreaterThanOrEqualTo(1024.0);
+        assertThat(result.getPerType(byte[].class).getMin()).isGreaterThanOrEqualTo(1024L);
+        assertThat(result.getPerType(byte[].class).getStandardDeviation()).isEqualTo(0.0);
+        assertThat(result.getPerType()).containsKey("[B");
+    }
+
+    @Test
+    void measure_typeFilter_onlyMeasuresMatchingTypes() {
+        var result = new AllocationMeasurement()
+                .withIterations(50)
+                .withFilter(AllocationFilter.types(int[].class))
+                .measure(() -> sink = new byte[1024]);
+
+        assertThat(result.getTotal().getMax()).isEqualTo(0L);
+    }
+
+    @Test
+    void statistics_values_computesSummary() {
+        var statistics = new AllocationStatistics(new long[] { 50, 10, 40, 20, 30 }, new long[] { 900 });
+
+        assertThat(statistics.getIterations()).isEqualTo(5);
+        assertThat(statistics.getOutliers()).isEqualTo(1);
+        assertThat(statistics.getOutlierValues()).isEqualTo(new long[] { 900 });
+        assertThat(statistics.getMin()).isEqualTo(10L);
+        assertThat(statistics.getMax()).isEqualTo(50L);
+        assertThat(statistics.getMedian()).isEqualTo(30.0);
+        assertThat(statistics.getP95()).isCloseTo(48.0, within(1e-9));
+        assertThat(statistics.getMean()).isEqualTo(30.0);
+        assertThat(statistics.getStandardDeviation()).isCloseTo(Math.sqrt(250), within(1e-9));
+        assertThatThrownBy(() -> statistics.getPercentile(101)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void findOutliers_rareSpike_marksSpike() {
+        var values = repeat(100, 20);
+        values[4] = 104;
+        values[7] = 5000;
+        values[12] = 10;
+
+        var outliers = AllocationMeasurement.findOutliers(values, 1.5);
+        var unfiltered = AllocationMeasurement.findOutliers(values, Double.POSITIVE_INFINITY);
+
+        var expected = new boolean[values.length];
+        expected[7] = true;
+        assertThat(outliers).isEqualTo(expected);
+        assertThat(unfiltered).isEqualTo(new boolean[values.length]);
+    }
+
+    @Test
+    void findOutliers_constantValues_keepsSmallDifferences() {
+        var values = repeat(1000, 20);
+        values[4] = 1001;
+        values[6] = 1040;
+        values[9] = 1200;
+
+        var outliers = AllocationMeasurement.findOutliers(values, 1.5);
+
+        var expected = new boolean[values.length];
+        expected[9] = true;
+        assertThat(outliers).isEqualTo(expected);
+    }
+
+    @Test
+    void findOutliers_zeroSteadyStateFrequentAllocation_keepsAllocatingIterations() {
+        var values = new long[] { 0, 0, 0, 0, 0, 0, 0, 0, 64, 64 };
+
+        var outliers = AllocationMeasurement.findOutliers(values, 1.5);
+
+        assertThat(outliers).isEqualTo(new boolean[values.length]);
+    }
+
+    @Test
+    void findOutliers_zeroSteadyStateRareAllocation_marksAllocatingIteration() {
+        var values = repeat(0, 100);
+        values[50] = 64;
+
+        var outliers = AllocationMeasurement.findOutliers(values, 1.5);
+
+        var expected = new boolean[values.length];
+        expected[50] = true;
+        assertThat(outliers).isEqualTo(expected);
+    }
+
+    private static long[] repeat(long value, int count) {
+        var values = new long[count];
+        Arrays.fill(values, value);
+        return values;
+    }
+}
@@ -0,0 +1,108 @@
+package dk.stuart.jtestmemprofiler;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class AllocationRegionsTest {
+    private static volatile Object sink;
+
+    @Test
+    void report_nestedRegions_attributesAllocationByPath() throws InterruptedException {
+        var regions = new AllocationRegions(null);
+
+        for (var i = 0; i < 2; i++) {
+            try (var ignored = regions.enter("request")) {
+                try (var ignored2 = regions.enter("parse")) {
+                    sink = new byte[64 * 1024];
+                }
+                sink = new byte[16 * 1024];
+            }
+        }
+        var thread = new Thread(() -> {
+            try (var ignored = regions.enter("request")) {
+                sink = new byte[32 * 1024];
+            }
+        });
+        thread.start();
+        thread.join();
+
+        var report = regions.report();
+        assertThat(report.keySet()).containsExactly("request", "request/parse");
+        var request = report.get("request");
+        var parse = report.get("request/parse");
+        assertThat(request.getCount()).isEqualTo(3L);
+        assertThat(parse.getCount()).isEqualTo(2L);
+        assertThat(parse.getTotal()).isGreaterThanOrEqualTo(2 * 64 * 1024L);
+        assertThat(request.getSelf()).isGreaterThanOrEqualTo((2 * 16 + 32) * 1024L);
+        assertThat(request.getTotal()).isEqualTo(request.getSelf() + parse.getTotal());
+        assertThat(request.getPerType()).isNull();
+
+        regions.clear();
+        assertThat(regions.report().get("request").getTotal()).isEqualTo(0L);
+    }
+
+    @Test
+    void close_noRegionEntered_throws() {
+        var regions = new AllocationRegions(null);
+        var region = regions.enter("outer");
+        region.close();
+
+        assertThatThrownBy(region::close).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void close_innerRegionClosedTwice_throwsAndKeepsOuterRegion() {
+        var regions = new AllocationRegions(null);
+        var outer = regions.enter("outer");
+        var inner = regions.enter("inner");
+        inner.close();
+
+        assertThatThrownBy(inner::close).isInstanceOf(IllegalStateException.class);
+        assertThat(regions.report().get("outer").getCount()).isEqualTo(0L);
+        outer.close();
+        assertThat(regions.report().get("outer").getCount()).isEqualTo(1L);
+    }
+
+    @Test
+    void close_outerRegionBeforeInner_throws() {
+        var regions = new AllocationRegions(null);
+        var outer = regions.enter("outer");
+        var inner = regions.enter("inner");
+
+        assertThatThrownBy(outer::close).isInstanceOf(IllegalStateException.class);
+        inner.close();
+        outer.close();
+    }
+
+    @Test
+    void clear_regionEntered_measuresFromClear() {
+        var regions = new AllocationRegions(null);
+        try (var ignored = regions.enter("outer")) {
+            sink = new byte[256 * 1024];
+            regions.clear();
+        }
+
+        assertThat(regions.report().get("outer").getTotal()).isLessThan(256 * 1024L);
+    }
+
+    @Test
+    void report_manyEndedThreads_keepsTheirRegions() throws InterruptedException {
+        var regions = new AllocationRegions(null);
+
+        for (var i = 0; i < 100; i++) {
+            var thread = new Thread(() -> {
+                try (var ignored = regions.enter("task")) {
+                    sink = new byte[1024];
+                }
+            });
+            thread.start();
+            thread.join();
+        }
+
+        var task = regions.report().get("task");
+        assertThat(task.getCount()).isEqualTo(100L);
+        assertThat(task.getTotal()).isGreaterThanOrEqualTo(100 * 1024L);
+    }
+}
@@ -0,0 +1,77 @@
+package dk.stuart.jtestmemprofiler;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class AllocationSamplerTest {
+    private static volatile Object sink;
+
+    private static void allocateFor(Duration duration) throws InterruptedException {
+        var end = System.nanoTime() + duration.toNanos();
+        while (System.nanoTime() < end) {
+            sink = new byte[1024];
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    void drain_perTypeProfiler_recordsAllocationPerInterval() throws InterruptedException {
+        long[] byteArrays = {0};
+        long[] totals = {0};
+        int[] samples = {0};
+
+        try (var profiler = new ProfilerBuilder().withPerTypeCollector(allocations -> {}).withThreadIdFilter(Set.of(Thread.currentThread())).build();
+             var sampler = AllocationSampler.start(profiler, Duration.ofMillis(10), 1000)) {
+            allocateFor(Duration.ofMillis(100));
+            sampler.close();
+
+            sampler.drain(sample -> {
+                samples[0]++;
+                totals[0] += sample.getTotal();
+                for (var column = 0; column < sample.getTypeCount(); column++) {
+                    if (sample.getType(column).equals("[B")) byteArrays[0] += sample.getAllocation(column);
+                }
+                assertThat(sample.getIntervalNanos()).isGreaterThan(0L);
+            });
+            assertThat(sampler.getDroppedSampleCount()).isEqualTo(0L);
+        }
+
+        assertThat(samples[0]).isGreaterThan(1);
+        assertThat(byteArrays[0]).isGreaterThan(10 * 1024L);
+        assertThat(totals[0]).isGreaterThanOrEqualTo(byteArrays[0]);
+    }
+
+    @Test
+    void drainTo_totalsProfiler_appendsCsvRows() throws Exception {
+        var file = Files.createTempFile("allocations", ".csv");
+        Files.delete(file);
+
+        try (var profiler = new ProfilerBuilder().withLongTotalsCollector(total -> {}).build();
+             var sampler = AllocationSampler.start(profiler, Duration.ofMillis(10), 2)) {
+            allocateFor(Duration.ofMillis(100));
+            sampler.close();
+
+            assertThat(sampler.getDroppedSampleCount()).isGreaterThan(0L);
+            assertThat(sampler.drainTo(file)).isEqualTo(2);
+        }
+
+        var lines = Files.readAllLines(file);
+        Files.delete(file);
+        assertThat(lines).hasSize(3);
+        assertThat(lines.get(0)).isEqualTo("timestamp_ns,interval_ns,type,bytes");
+        assertThat(lines.get(1)).contains(",total,");
+    }
+
+    @Test
+    void start_callTreeProfiler_throws() {
+        try (var profiler = new ProfilerBuilder().withCallTreeCollector(root -> {}).build()) {
+            assertThatThrownBy(() -> AllocationSampler.start(profiler, Duration.ofMillis(10), 10)).isInstanceOf(IllegalArgumentException.class);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package dk.stuart.jtestmemprofiler;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class CallTreeExporterTest {
+    private static CallTree sampleTree() {
+        var leaf1 = new TrieNode(new HashMap<>(), 30, 30);
+        var leaf2 = new TrieNode(new HashMap<>(), 40, 40);
+        var common = new TrieNode(new HashMap<>() {{
+            put("leaf1", leaf1);
+            put("leaf;2", leaf2);
+        }}, 10, 80);
+        return CallTree.of(new TrieNode(new HashMap<>() {{
+            put("common", common);
+        }}, 0, 80));
+    }
+
+    @Test
+    void writeFolded_tree_writesSelfAllocatingPaths() throws IOException {
+        var data = new ByteArrayOutputStream();
+        CallTreeExporter.writeFolded(sampleTree(), Channels.newChannel(data));
+
+        assertThat(data.toString(StandardCharsets.UTF_8).split("\n")).containsExactlyInAnyOrder("common;leaf1 30", "common;leaf_2 40", "common 10");
+    }
+
+    @Test
+    void writeFlameGraph_tree_writesFramesAndNodes() throws IOException {
+        var data = new ByteArrayOutputStream();
+        CallTreeExporter.writeFlameGraph(sampleTree(), Channels.newChannel(data));
+
+        var html = data.toString(StandardCharsets.UTF_8);
+        assertThat(html).startsWith("<!DOCTYPE html>");
+        assertThat(html).contains("\"common\"", "\"leaf1\"", "\"leaf;2\"", "const T=80;");
+        assertThat(html).contains("0,0,80,1,");
+    }
+
+    @Test
+    void writeFlameGraph_failingChannel_throwsIOException() {
+        var tree = CallTree.of(new TrieNode(new HashMap<>() {{
+            put("x".repeat(128 * 1024), new TrieNode(new HashMap<>(), 10, 10));
+        }}, 0, 10));
+        var channel = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer source) throws IOException {
+                throw new IOException("Disk full");
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        assertThatThrownBy(() -> CallTreeExporter.writeFlameGraph(tree, channel)).isInstanceOf(IOException.class);
+    }
+}
@@ -0,0 +1,50 @@
+package dk.stuart.jtestmemprofiler;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CallTreeInverterTest {
+    private static TrieNode sampleTrie() {
+        var alloc1 = new TrieNode(new HashMap<>(), 30, 30);
+        var alloc2 = new TrieNode(new HashMap<>(), 50, 50);
+        var other = new TrieNode(new HashMap<>(), 5, 5);
+        var parse = new TrieNode(new HashMap<>() {{
+            put("alloc", alloc1);
+        }}, 0, 30);
+        var render = new TrieNode(new HashMap<>() {{
+            put("alloc", alloc2);
+            put("other", other);
+        }}, 10, 65);
+        return new TrieNode(new HashMap<>() {{
+            put("parse", parse);
+            put("render", render);
+        }}, 0, 95);
+    }
+
+    @Test
+    void invert_trie_groupsAllocationsByCallee() {
+        var inverted = CallTreeInverter.invert(sampleTrie());
+
+        var alloc = inverted.findChild(CallTree.ROOT, "alloc");
+        assertThat(inverted.getChildAccumulatedAllocationSize(CallTree.ROOT)).isEqualTo(95L);
+        assertThat(inverted.getFirstChild(CallTree.ROOT)).isEqualTo(alloc);
+        assertThat(inverted.getChildAccumulatedAllocationSize(alloc)).isEqualTo(80L);
+        assertThat(inverted.getAllocationSize(alloc)).isEqualTo(0L);
+        assertThat(inverted.getChildAccumulatedAllocationSize(inverted.findChild(alloc, "render"))).isEqualTo(50L);
+        assertThat(inverted.getAllocationSize(inverted.findChild(alloc, "parse"))).isEqualTo(30L);
+        assertThat(inverted.getAllocationSize(inverted.findChild(CallTree.ROOT, "render"))).isEqualTo(10L);
+    }
+
+    @Test
+    void top_trie_returnsHeaviestFramesWithDominantCallers() {
+        var sites = HotAllocationSites.top(sampleTrie(), 2, 1);
+
+        assertThat(sites).containsExactly(
+                new HotAllocationSites.Site("alloc", 80, List.of(new HotAllocationSites.Caller("render", 50))),
+                new HotAllocationSites.Site("render", 10, List.of(new HotAllocationSites.Caller(null, 10))));
+    }
+}
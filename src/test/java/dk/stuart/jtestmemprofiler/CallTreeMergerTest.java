@@ -0,0 +1,88 @@
+package dk.stuart.jtestmemprofiler;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CallTreeMergerTest {
+    private static CallTree tree(long leaf1Size, long leaf2Size) {
+        var children = new HashMap<String, TrieNode>();
+        if (leaf1Size != 0) children.put("leaf1", new TrieNode(new HashMap<>(), leaf1Size, leaf1Size));
+        if (leaf2Size != 0) children.put("leaf2", new TrieNode(new HashMap<>(), leaf2Size, leaf2Size));
+        var common = new TrieNode(children, 10, 10 + leaf1Size + leaf2Size);
+        return CallTree.of(new TrieNode(new HashMap<>() {{
+            put("common", common);
+        }}, 0, 10 + leaf1Size + leaf2Size));
+    }
+
+    private static TrieNode wideTrie(int depth, int fanout) {
+        var children = new HashMap<String, TrieNode>();
+        var accumulated = 1L;
+        if (depth > 0) {
+            for (var i = 0; i < fanout; i++) {
+                var child = wideTrie(depth - 1, fanout);
+                children.put("frame" + depth + "_" + i, child);
+                accumulated += child.getChildAccumulatedAllocationSize();
+            }
+        }
+        return new TrieNode(children, 1, accumulated);
+    }
+
+    @Test
+    void merge_overlappingTrees_addsAllocations() {
+        var merged = CallTreeMerger.merge(tree(30, 0), tree(20, 40));
+
+        var common = merged.findChild(CallTree.ROOT, "common");
+        assertThat(merged.getNodeCount()).isEqualTo(4);
+        assertThat(merged.getAllocationSize(common)).isEqualTo(20L);
+        assertThat(merged.getAllocationSize(merged.findChild(common, "leaf1"))).isEqualTo(50L);
+        assertThat(merged.getAllocationSize(merged.findChild(common, "leaf2"))).isEqualTo(40L);
+        assertThat(merged.getChildAccumulatedAllocationSize(common)).isEqualTo(110L);
+        assertThat(merged.getChildAccumulatedAllocationSize(CallTree.ROOT)).isEqualTo(110L);
+    }
+
+    @Test
+    void diff_changedTrees_returnsSignedDeltas() {
+        var diff = CallTreeMerger.diff(tree(30, 40), tree(50, 0));
+
+        var common = diff.findChild(CallTree.ROOT, "common");
+        assertThat(diff.getAllocationSize(common)).isEqualTo(0L);
+        assertThat(diff.getAllocationSize(diff.findChild(common, "leaf1"))).isEqualTo(20L);
+        assertThat(diff.getAllocationSize(diff.findChild(common, "leaf2"))).isEqualTo(-40L);
+        assertThat(diff.getChildAccumulatedAllocationSize(CallTree.ROOT)).isEqualTo(-20L);
+    }
+
+    @Test
+    void merge_treesAboveParallelThreshold_matchesInputStructure() {
+        var tree = CallTree.of(wideTrie(6, 6));
+
+        var merged = CallTreeMerger.merge(tree, tree, tree);
+
+        assertThat(merged.getNodeCount()).isEqualTo(tree.getNodeCount());
+        assertThat(merged.getChildAccumulatedAllocationSize(CallTree.ROOT)).isEqualTo(3 * tree.getChildAccumulatedAllocationSize(CallTree.ROOT));
+        for (var node = 1; node < merged.getNodeCount(); node++) {
+            assertThat(merged.getSubtreeEnd(node)).isGreaterThan(node);
+            assertThat(merged.getChildAccumulatedAllocationSize(node)).isEqualTo(3 * (merged.getSubtreeEnd(node) - node));
+        }
+    }
+
+    @Test
+    void merge_deepTrees_doesNotOverflowStack() {
+        var root = new TrieNode(new HashMap<>(), 0, 0);
+        var children = root.getChildren();
+        for (var i = 0; i < 200_000; i++) {
+            var child = new TrieNode(new HashMap<>(), 1, 0);
+            children.put("frame" + i, child);
+            children = child.getChildren();
+        }
+        var tree = CallTree.of(root);
+
+        var merged = CallTreeMerger.merge(tree, tree);
+
+        assertThat(merged.getNodeCount()).isEqualTo(tree.getNodeCount());
+        assertThat(merged.getChildAccumulatedAllocationSize(CallTree.ROOT)).isEqualTo(400_000);
+        assertThat(merged.getChildAccumulatedAllocationSize(merged.getNodeCount() - 1)).isEqualTo(2);
+    }
+}
@@ -0,0 +1,148 @@
+package dk.stuart.jtestmemprofiler;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CallTreeTest {
+    private static TrieNode sampleTrie() {
+        var leaf1 = new TrieNode(new HashMap<>(), 30, 30);
+        var leaf2 = new TrieNode(new HashMap<>(), 40, 40);
+        var shared = new TrieNode(new HashMap<>(), 5, 5);
+        var common = new TrieNode(new HashMap<>() {{
+            put("leaf1", leaf1);
+            put("leaf2", leaf2);
+        }}, 10, 80);
+        var other = new TrieNode(new HashMap<>() {{
+            put("leaf1", shared);
+        }}, 0, 5);
+        return new TrieNode(new HashMap<>() {{
+            put("common", common);
+            put("other", other);
+        }}, 0, 85);
+    }
+
+    @Test
+    void of_trie_preservesStructureAndSizes() {
+        var tree = CallTree.of(sampleTrie());
+
+        assertThat(tree.getNodeCount()).isEqualTo(6);
+        assertThat(tree.getFrameName(CallTree.ROOT)).isNull();
+        assertThat(tree.getChildAccumulatedAllocationSize(CallTree.ROOT)).isEqualTo(85);
+
+        var common = tree.findChild(CallTree.ROOT, "common");
+        assertThat(tree.getParent(common)).isEqualTo(CallTree.ROOT);
+        assertThat(tree.getAllocationSize(common)).isEqualTo(10);
+        assertThat(tree.getChildAccumulatedAllocationSize(common)).isEqualTo(80);
+
+        var leaf2 = tree.findChild(common, "leaf2");
+        assertThat(tree.getAllocationSize(leaf2)).isEqualTo(40);
+        assertThat(tree.getFirstChild(leaf2)).isEqualTo(CallTree.NO_NODE);
+        assertThat(tree.findChild(common, "missing")).isEqualTo(CallTree.NO_NODE);
+    }
+
+    @Test
+    void drain_trie_convertsLikeOfAndEmptiesTrie() {
+        var trie = sampleTrie();
+        var tree = CallTree.drain(trie);
+
+        assertThat(tree.getNodeCount()).isEqualTo(6);
+        var common = tree.findChild(CallTree.ROOT, "common");
+        assertThat(tree.getChildAccumulatedAllocationSize(common)).isEqualTo(80);
+        assertThat(tree.getAllocationSize(tree.findChild(common, "leaf2"))).isEqualTo(40);
+        assertThat(trie.getChildren()).isEmpty();
+    }
+
+    @Test
+    void of_repeatedFrameNames_sharesFrameIds() {
+        var tree = CallTree.of(sampleTrie());
+
+        var leaf1 = tree.findChild(tree.findChild(CallTree.ROOT, "common"), "leaf1");
+        var shared = tree.findChild(tree.findChild(CallTree.ROOT, "other"), "leaf1");
+
+        assertThat(tree.getFrameId(leaf1)).isEqualTo(tree.getFrameId(shared));
+        assertThat(tree.getFrame(tree.getFrameId(leaf1))).isEqualTo("leaf1");
+        assertThat(tree.getAllocationSize(shared)).isEqualTo(5);
+    }
+
+    @Test
+    void of_separateTries_shareFrameTable() {
+        var first = CallTree.of(sampleTrie());
+        var second = CallTree.of(sampleTrie());
+
+        var common = FrameTable.global().find("common");
+        assertThat(common).isNotEqualTo(FrameTable.NO_FRAME);
+        assertThat(first.getFrameId(first.findChild(CallTree.ROOT, "common"))).isEqualTo(common);
+        assertThat(second.getFrameId(second.findChild(CallTree.ROOT, common))).isEqualTo(common);
+        assertThat(first.getFrameName(first.findChild(CallTree.ROOT, common))).isSameAs(second.getFrameName(second.findChild(CallTree.ROOT, common)));
+    }
+
+    @Test
+    void frameTable_concurrentFindWhileInterning_resolvesEveryFoundId() throws InterruptedException {
+        var table = FrameTable.global();
+        var prefix = "concurrent-" + System.nanoTime() + "-";
+        var count = 20_000;
+        var failure = new Throwable[1];
+        var reader = new Thread(() -> {
+            try {
+                for (var i = 0; i < count; ) {
+                    var id = table.find(prefix + i);
+                    if (id == FrameTable.NO_FRAME) continue;
+                    assertThat(table.getFrame(id)).isEqualTo(prefix + i);
+                    i++;
+                }
+            } catch (Throwable e) {
+                failure[0] = e;
+            }
+        });
+
+        reader.start();
+        for (var i = 0; i < count; i++) {
+            table.intern(prefix + i);
+        }
+        reader.join();
+
+        assertThat(failure[0]).isNull();
+    }
+
+    @Test
+    void of_trie_laysOutSubtreesContiguously() {
+        var tree = CallTree.of(sampleTrie());
+
+        var common = tree.findChild(CallTree.ROOT, "common");
+        var leaf1 = tree.findChild(common, "leaf1");
+        var leaf2 = tree.findChild(common, "leaf2");
+
+        assertThat(leaf1).isBetween(common + 1, common + 2);
+        assertThat(leaf2).isBetween(common + 1, common + 2);
+    }
+
+    @Test
+    void getRoot_view_matchesOriginalTrie() {
+        var trie = sampleTrie();
+        var view = CallTree.of(trie).getRoot();
+
+        assertThat(view.getChildren()).containsKeys("common", "other");
+        assertThat(view.getChildren().get("common").getChildren().get("leaf2").getAllocationSize()).isEqualTo(40);
+        assertThat(write(view)).containsExactlyInAnyOrder((Object[]) write(trie));
+    }
+
+    @Test
+    void toCallTree_view_returnsBackingTree() {
+        var tree = CallTree.of(sampleTrie());
+
+        assertThat(tree.getRoot().toCallTree()).isSameAs(tree);
+        assertThat(tree.getRoot()).isEqualTo(tree.getNode(CallTree.ROOT));
+    }
+
+    private static String[] write(TrieNode trie) {
+        var data = new ByteArrayOutputStream();
+        trie.write(new PrintStream(data, true, StandardCharsets.UTF_8));
+        return data.toString(StandardCharsets.UTF_8).split("\\r?\\n\\r?\\n");
+    }
+}
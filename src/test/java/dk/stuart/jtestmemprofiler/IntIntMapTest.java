@@ -0,0 +1,23 @@
+package dk.stuart.jtestmemprofiler;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class IntIntMapTest {
+    @Test
+    void put_manyKeys_growsAndKeepsValues() {
+        var map = new IntIntMap(4);
+
+        for (var key = 0; key < 10_000; key++) {
+            map.put(key * 31, key);
+        }
+        map.put(31, -5);
+
+        assertThat(map.size()).isEqualTo(10_000);
+        assertThat(map.get(0)).isEqualTo(0);
+        assertThat(map.get(31)).isEqualTo(-5);
+        assertThat(map.get(9_999 * 31)).isEqualTo(9_999);
+        assertThat(map.get(1)).isEqualTo(IntIntMap.NO_VALUE);
+    }
+}
@@ -0,0 +1,108 @@
+package dk.stuart.jtestmemprofiler;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class NativeResultBufferTest {
+    @Test
+    void read_firstRead_sizesBufferAndDecodes() {
+        var allocations = new HashMap<String, Long>();
+        for (var i = 0; i < 10_000; i++) {
+            allocations.put("Lcom/example/Type" + i + ";", (long) i * 16);
+        }
+        var profile = perTypeProfile(allocations);
+        int[] writes = { 0 };
+
+        var result = new NativeResultBuffer(new NativeResultBuffer.Transfer((handle, buffer) -> {
+            writes[0]++;
+            return writeProfile(profile, buffer);
+        })).read(0).readPerType();
+
+        assertThat(writes[0]).isEqualTo(2);
+        assertThat(result).isEqualTo(allocations);
+    }
+
+    @Test
+    void read_repeatedReads_reusesBufferAndKeepsEarlierResults() {
+        var buffers = Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+        byte[][] profile = { perTypeProfile(Map.of("[B", 24L)) };
+        var results = new NativeResultBuffer(new NativeResultBuffer.Transfer((handle, buffer) -> {
+            buffers.add(buffer);
+            return writeProfile(profile[0], buffer);
+        }));
+
+        var first = results.read(0);
+        profile[0] = perTypeProfile(Map.of("[C", 32L));
+        var second = results.read(0);
+        var third = results.read(0);
+
+        assertThat(first.readPerType()).isEqualTo(Map.of("[B", 24L));
+        assertThat(second.readPerType()).isEqualTo(Map.of("[C", 32L));
+        assertThat(third.getTotal()).isEqualTo(32L);
+        assertThat(buffers.size()).isEqualTo(2);
+    }
+
+    @Test
+    void read_unlinkedWriter_looksUpOnceAndReturnsNull() {
+        int[] writes = { 0 };
+        var transfer = new NativeResultBuffer.Transfer((handle, buffer) -> {
+            writes[0]++;
+            throw new UnsatisfiedLinkError("write");
+        });
+
+        var first = new NativeResultBuffer(transfer).read(0);
+        var second = new NativeResultBuffer(transfer).read(0);
+
+        assertThat(first).isNull();
+        assertThat(second).isNull();
+        assertThat(writes[0]).isEqualTo(1);
+    }
+
+    @Test
+    void read_malformedResults_throws() {
+        var results = new NativeResultBuffer(new NativeResultBuffer.Transfer((handle, buffer) -> {
+            if (buffer.capacity() == 0) return -1;
+            buffer.put(0, (byte) 1);
+            return 1;
+        }));
+
+        assertThatThrownBy(() -> results.read(0)).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void grow_largeCapacity_doesNotOverflow() {
+        assertThat(NativeResultBuffer.grow(0, 100)).isEqualTo(100);
+        assertThat(NativeResultBuffer.grow(1000, 1001)).isEqualTo(2000);
+        assertThat(NativeResultBuffer.grow(1 << 30, (1 << 30) + 1)).isEqualTo(Integer.MAX_VALUE - 8);
+        assertThatThrownBy(() -> NativeResultBuffer.grow(1 << 30, -(long) Integer.MIN_VALUE)).isInstanceOf(IllegalStateException.class);
+        assertThatThrownBy(() -> NativeResultBuffer.grow(1000, 1000)).isInstanceOf(IllegalStateException.class);
+    }
+
+    private static byte[] perTypeProfile(Map<String, Long> allocations) {
+        try {
+            var data = new ByteArrayOutputStream();
+            ProfileWriter.writePerType(allocations, Channels.newChannel(data));
+            return data.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static int writeProfile(byte[] profile, ByteBuffer buffer) {
+        if (profile.length > buffer.capacity()) return -profile.length;
+        buffer.put(0, profile);
+        return profile.length;
+    }
+}
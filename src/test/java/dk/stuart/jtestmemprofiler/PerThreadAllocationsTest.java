@@ -0,0 +1,120 @@
+package dk.stuart.jtestmemprofiler;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PerThreadAllocationsTest {
+    private static final int MB = 1024 * 1024;
+
+    @Test
+    void read_threadSet_attributesAllocationToEachThread() throws InterruptedException {
+        var allocated = new CountDownLatch(1);
+        var read = new CountDownLatch(1);
+        var worker = new Thread(() -> {
+            blackhole(new byte[8 * MB]);
+            allocated.countDown();
+            await(read);
+        }, "worker");
+        var perThread = new PerThreadAllocations(Set.of(Thread.currentThread(), worker), null);
+
+        perThread.resume();
+        worker.start();
+        allocated.await();
+        blackhole(new byte[MB]);
+        perThread.pause();
+        var result = perThread.read();
+        read.countDown();
+        worker.join();
+
+        assertThat(result.size()).isEqualTo(2);
+        assertThat(result.get(0).getThreadName()).isEqualTo("worker");
+        assertThat(result.get(0).getTotal()).isBetween(8L * MB, 12L * MB);
+        assertThat(result.get(1).getThreadId()).isEqualTo(Thread.currentThread().getId());
+        assertThat(result.get(1).getTotal()).isBetween((long) MB, 4L * MB);
+    }
+
+    @Test
+    void read_allThreads_countsThreadStartedWhileRunning() throws InterruptedException {
+        var allocated = new CountDownLatch(1);
+        var read = new CountDownLatch(1);
+        var perThread = new PerThreadAllocations(null, null);
+        perThread.resume();
+        perThread.pause();
+        perThread.resume();
+
+        var worker = new Thread(() -> {
+            blackhole(new byte[8 * MB]);
+            allocated.countDown();
+            await(read);
+        }, "late-worker");
+        worker.start();
+        allocated.await();
+        perThread.pause();
+        var result = perThread.read();
+        read.countDown();
+        worker.join();
+
+        var late = result.stream().filter(thread -> thread.getThreadName().equals("late-worker")).findFirst().orElseThrow();
+        assertThat(late.getTotal()).isBetween(8L * MB, 12L * MB);
+    }
+
+    @Test
+    void read_paused_excludesAllocationWhilePaused() {
+        var perThread = new PerThreadAllocations(Set.of(Thread.currentThread()), null);
+
+        perThread.resume();
+        blackhole(new byte[MB]);
+        perThread.pause();
+        blackhole(new byte[16 * MB]);
+
+        assertThat(perThread.read().get(0).getTotal()).isBetween((long) MB, 4L * MB);
+    }
+
+    @Test
+    void read_registry_countsThreadsWhileRegistered() throws InterruptedException {
+        var registry = new ThreadRegistry();
+        var perThread = new PerThreadAllocations(null, registry);
+
+        perThread.resume();
+        var worker = new Thread(registry.wrap(() -> blackhole(new byte[4 * MB])), "worker");
+        worker.start();
+        worker.join();
+        var result = perThread.read();
+        perThread.close();
+
+        assertThat(result.size()).isEqualTo(1);
+        assertThat(result.get(0).getThreadName()).isEqualTo("worker");
+        assertThat(result.get(0).isVirtual()).isFalse();
+        assertThat(result.get(0).getTotal()).isBetween(4L * MB, 8L * MB);
+    }
+
+    @Test
+    void clear_running_startsCountingOver() {
+        var perThread = new PerThreadAllocations(Set.of(Thread.currentThread()), null);
+
+        perThread.resume();
+        blackhole(new byte[16 * MB]);
+        perThread.clear();
+        blackhole(new byte[MB]);
+
+        assertThat(perThread.read().get(0).getTotal()).isBetween((long) MB, 4L * MB);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static volatile Object sink;
+
+    private static void blackhole(Object value) {
+        sink = value;
+    }
+}
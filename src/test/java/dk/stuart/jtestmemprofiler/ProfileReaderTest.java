@@ -0,0 +1,116 @@
+package dk.stuart.jtestmemprofiler;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ProfileReaderTest {
+    private interface ProfileWrite {
+        void write(ByteArrayOutputStream data) throws IOException;
+    }
+
+    private static ProfileReader roundTrip(ProfileWrite write) throws IOException {
+        var data = new ByteArrayOutputStream();
+        write.write(data);
+        return ProfileReader.of(ByteBuffer.wrap(data.toByteArray()));
+    }
+
+    private static CallTree sampleTree() {
+        var leaf1 = new TrieNode(new HashMap<>(), 30, 30);
+        var leaf2 = new TrieNode(new HashMap<>(), 400, 400);
+        var shared = new TrieNode(new HashMap<>(), 50, 50);
+        var common = new TrieNode(new HashMap<>() {{
+            put("leaf1", leaf1);
+            put("leaf2", leaf2);
+        }}, 10, 440);
+        var other = new TrieNode(new HashMap<>() {{
+            put("leaf1", shared);
+        }}, 0, 50);
+        return CallTree.of(new TrieNode(new HashMap<>() {{
+            put("common", common);
+            put("other", other);
+        }}, 0, 490));
+    }
+
+    @Test
+    void getTotal_totalsProfile_returnsTotal() throws IOException {
+        var reader = roundTrip(data -> ProfileWriter.writeTotals(123456789L, Channels.newChannel(data)));
+
+        assertThat(reader.getKind()).isEqualTo(ProfileKind.TOTALS);
+        assertThat(reader.getTotal()).isEqualTo(123456789L);
+    }
+
+    @Test
+    void readPerType_perTypeProfile_returnsAllocations() throws IOException {
+        var allocations = Map.of("[B", 1000L, "[C", 20L, "Ljava/lang/RuntimeException;", 300L);
+        var reader = roundTrip(data -> ProfileWriter.writePerType(allocations, Channels.newChannel(data)));
+
+        assertThat(reader.readPerType()).isEqualTo(new HashMap<>(allocations));
+        assertThat(reader.getAllocation("[C")).isEqualTo(20L);
+        assertThat(reader.getAllocation("[I")).isEqualTo(0L);
+        assertThat(reader.getTotal()).isEqualTo(1320L);
+        assertThat(reader.getTopAllocators(2)).containsExactly(new ProfileReader.Allocator("[B", 1000), new ProfileReader.Allocator("Ljava/lang/RuntimeException;", 300));
+    }
+
+    @Test
+    void getSubtreeTotal_callTreeProfile_returnsAccumulatedAllocation() throws IOException {
+        var reader = roundTrip(data -> ProfileWriter.writeCallTree(sampleTree(), Channels.newChannel(data)));
+
+        assertThat(reader.getKind()).isEqualTo(ProfileKind.CALL_TREE);
+        assertThat(reader.getNodeCount()).isEqualTo(6);
+        assertThat(reader.getTotal()).isEqualTo(490L);
+        assertThat(reader.getSubtreeTotal()).isEqualTo(490L);
+        assertThat(reader.getSubtreeTotal("other")).isEqualTo(50L);
+        assertThat(reader.getSubtreeTotal("common", "leaf2")).isEqualTo(400L);
+        assertThat(reader.getSubtreeTotal("common", "missing")).isEqualTo(-1L);
+    }
+
+    @Test
+    void getTopAllocators_callTreeProfile_sumsFramesOverPaths() throws IOException {
+        var reader = roundTrip(data -> ProfileWriter.writeCallTree(sampleTree(), Channels.newChannel(data)));
+
+        assertThat(reader.getTopAllocators(2)).containsExactly(new ProfileReader.Allocator("leaf2", 400), new ProfileReader.Allocator("leaf1", 80));
+        assertThat(reader.getTopAllocationStacks(2)).containsExactly(
+                new ProfileReader.AllocationStack(List.of("common", "leaf2"), 400),
+                new ProfileReader.AllocationStack(List.of("other", "leaf1"), 50));
+    }
+
+    @Test
+    void readCallTree_callTreeProfile_matchesWrittenTree() throws IOException {
+        var file = Files.createTempFile("profile", ".jtmp");
+        try {
+            var tree = sampleTree();
+            ProfileWriter.writeCallTree(tree, file);
+            var read = ProfileReader.open(file).readCallTree();
+
+            assertThat(read.getNodeCount()).isEqualTo(tree.getNodeCount());
+            var common = read.findChild(CallTree.ROOT, "common");
+            assertThat(read.getChildAccumulatedAllocationSize(common)).isEqualTo(440L);
+            assertThat(read.getAllocationSize(read.findChild(common, "leaf1"))).isEqualTo(30L);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    void of_notAProfile_throws() {
+        assertThatThrownBy(() -> ProfileReader.of(ByteBuffer.wrap(new byte[] { 'P', 'K', 3, 4, 1, 0 }))).isInstanceOf(IOException.class);
+    }
+
+    @Test
+    void readPerType_callTreeProfile_throws() throws IOException {
+        var reader = roundTrip(data -> ProfileWriter.writeCallTree(sampleTree(), Channels.newChannel(data)));
+
+        assertThatThrownBy(reader::readPerType).isInstanceOf(IllegalStateException.class);
+    }
+}
@@ -0,0 +1,61 @@
+package dk.stuart.jtestmemprofiler;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ProfileSnapshotTest {
+    private static TypeAllocationMap perType(String type1, long allocation1, String type2, long allocation2) {
+        var map = new TypeAllocationMap();
+        map.put(type1, allocation1);
+        map.put(type2, allocation2);
+        return map;
+    }
+
+    private static CallTree callTree(long leafSize) {
+        var leaf = new TrieNode(new HashMap<>(), leafSize, leafSize);
+        return CallTree.of(new TrieNode(new HashMap<>() {{
+            put("leaf", leaf);
+        }}, 0, leafSize));
+    }
+
+    @Test
+    void minus_perTypeSnapshots_returnsChangedTypes() {
+        var baseline = new ProfileSnapshot(30, perType("[B", 10, "[C", 20), null);
+        var current = new ProfileSnapshot(65, perType("[B", 10, "[I", 55), null);
+
+        var delta = current.minus(baseline);
+
+        assertThat(delta.getTotal()).isEqualTo(35L);
+        assertThat(delta.getCallTree()).isNull();
+        assertThat(delta.getPerType().size()).isEqualTo(2);
+        assertThat(delta.getPerType().containsKey("[B")).isFalse();
+        assertThat(delta.getPerType().get("[C")).isEqualTo(-20L);
+        assertThat(delta.getPerType().get("[I")).isEqualTo(55L);
+    }
+
+    @Test
+    void minus_callTreeSnapshots_returnsDeltaTree() {
+        var baseline = new ProfileSnapshot(10, null, callTree(10));
+        var current = new ProfileSnapshot(25, null, callTree(25));
+
+        var delta = current.minus(baseline);
+
+        assertThat(delta.getTotal()).isEqualTo(15L);
+        assertThat(delta.getPerType()).isNull();
+        assertThat(delta.getCallTree().getAllocationSize(delta.getCallTree().findChild(CallTree.ROOT, "leaf"))).isEqualTo(15L);
+    }
+
+    @Test
+    void copy_perTypeSnapshot_doesNotShareMap() {
+        var snapshot = new ProfileSnapshot(30, perType("[B", 10, "[C", 20), null);
+
+        var copy = snapshot.copy();
+        snapshot.getPerType().put("[B", 100);
+
+        assertThat(copy.getPerType().get("[B")).isEqualTo(10L);
+        assertThat(copy.getTotal()).isEqualTo(30L);
+    }
+}
@@ -0,0 +1,108 @@
+package dk.stuart.jtestmemprofiler;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ProfilerSessionsTest {
+    private static final int MB = 1024 * 1024;
+
+    @Test
+    void open_concurrentTotalsSessions_deliverAllocationOfOwnThreads() throws InterruptedException {
+        var start = new CountDownLatch(2);
+        long[] totals = new long[2];
+        var small = new Thread(() -> totals[0] = allocateInSession(MB, start));
+        var large = new Thread(() -> totals[1] = allocateInSession(16 * MB, start));
+
+        small.start();
+        large.start();
+        small.join();
+        large.join();
+
+        assertThat(totals[0]).isBetween((long) MB, 4L * MB);
+        assertThat(totals[1]).isBetween(16L * MB, 20L * MB);
+    }
+
+    @Test
+    void open_threadRegisteredWhileOpen_countsAllocationWhileRegistered() throws InterruptedException {
+        var threads = new ThreadRegistry();
+        long[] total = { 0 };
+        var session = ProfilerSessions.open(new ProfilerBuilder().withLongTotalsCollector(allocated -> total[0] = allocated), threads);
+        assertThat(session.isExclusive()).isFalse();
+
+        var worker = new Thread(threads.wrap(() -> blackhole(new byte[4 * MB])));
+        worker.start();
+        worker.join();
+        blackhole(new byte[16 * MB]);
+        session.close();
+
+        assertThat(total[0]).isBetween(4L * MB, 8L * MB);
+        assertThatThrownBy(session::close).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void close_fixedThreadTerminatedBeforeClose_countsUpToLastRead() throws InterruptedException {
+        var allocated = new CountDownLatch(1);
+        var read = new CountDownLatch(1);
+        var worker = new Thread(() -> {
+            blackhole(new byte[4 * MB]);
+            allocated.countDown();
+            try {
+                read.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            blackhole(new byte[4 * MB]);
+        });
+        var unread = new Thread(() -> blackhole(new byte[4 * MB]));
+        long[] totals = { 0, 0 };
+        var session = ProfilerSessions.open(new ProfilerBuilder().withLongTotalsCollector(total -> totals[0] = total), Set.of(worker));
+        var unreadSession = ProfilerSessions.open(new ProfilerBuilder().withLongTotalsCollector(total -> totals[1] = total), Set.of(unread));
+
+        worker.start();
+        unread.start();
+        allocated.await();
+        assertThat(session.getTotal()).isGreaterThanOrEqualTo(4L * MB);
+        read.countDown();
+        worker.join();
+        unread.join();
+        session.close();
+        unreadSession.close();
+
+        assertThat(totals[0]).isBetween(4L * MB, 6L * MB);
+        assertThat(totals[1]).isEqualTo(0L);
+    }
+
+    @Test
+    void lockAgent_alreadyHeldByThread_throws() {
+        try (var ignored = ProfilerSessions.lockAgent()) {
+            assertThatThrownBy(ProfilerSessions::lockAgent).isInstanceOf(IllegalStateException.class);
+        }
+
+        ProfilerSessions.lockAgent().close();
+    }
+
+    private static long allocateInSession(int bytes, CountDownLatch start) {
+        long[] total = { 0 };
+        var session = ProfilerSessions.open(new ProfilerBuilder().withLongTotalsCollector(allocated -> total[0] = allocated), Set.of(Thread.currentThread()));
+        start.countDown();
+        try {
+            start.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        blackhole(new byte[bytes]);
+        session.close();
+        return total[0];
+    }
+
+    private static volatile Object sink;
+
+    private static void blackhole(Object value) {
+        sink = value;
+    }
+}
@@ -4,6 +4,7 @@ import org.junit.jupiter.api.*;
 
 import java.io.StringWriter;
 import java.util.*;
+import java.util.function.Consumer;
 
 import static org.assertj.core.api.Assertions.*;
 
@@ -39,6 +40,152 @@ public class ProfilerTest {
 		assertThat(totals[0]).isGreaterThan(30);
 	}
 
+	@Test
+	void profile_longTotalsCollector_recordsAllocations() {
+		long[] totals = {0};
+
+		try (var ignored = new ProfilerBuilder().withLongTotalsCollector(alloc -> totals[0] = alloc).build()) {
+			var ignored2 = new byte[10];
+			var ignored3 = new char[20];
+		}
+
+		assertThat(totals[0]).isGreaterThan(30);
+	}
+
+	@Test
+	void profile_perTypeCollectorMap_recordsAllocations() {
+		var allocations = new TypeAllocationMap();
+		allocations.put("stale", 1);
+
+		try (var ignored = new ProfilerBuilder().withPerTypeCollector(allocations).build()) {
+			var ignored2 = new byte[10];
+			var ignored3 = new char[20];
+		}
+
+		assertThat(allocations.containsKey("stale")).isFalse();
+		assertThat(allocations.get("[B")).isGreaterThan(10);
+		assertThat(allocations.get("[C")).isGreaterThan(20);
+	}
+
+	@Test
+	void profile_perTypeAndTotalsCollectors_deliversBothFromOneSession() {
+		HashMap<String, Long> allocations = new HashMap<>();
+		long[] totals = {0};
+
+		try (var ignored = new ProfilerBuilder().withPerTypeCollector(allocations::putAll).withLongTotalsCollector(alloc -> totals[0] = alloc).build()) {
+			var ignored2 = new byte[10];
+			var ignored3 = new char[20];
+		}
+
+		assertThat(allocations.get("[B")).isGreaterThan(10);
+		assertThat(totals[0]).isEqualTo(allocations.values().stream().mapToLong(Long::longValue).sum());
+	}
+
+	@Test
+	void profile_callTreeAndTotalsCollectors_deliversBothFromOneSession() {
+		TrieNode[] allocations = { null };
+		long[] totals = {0};
+
+		try (var ignored = new ProfilerBuilder().withCallTreeCollector(trieNode -> allocations[0] = trieNode).withLongTotalsCollector(alloc -> totals[0] = alloc).build()) {
+			var ignored2 = new byte[10];
+		}
+
+		assertThat(totals[0]).isGreaterThan(10);
+		assertThat(totals[0]).isEqualTo(allocations[0].getChildAccumulatedAllocationSize());
+	}
+
+	@Test
+	void builder_perTypeAndCallTreeCollectors_throws() {
+		var builder = new ProfilerBuilder().withPerTypeCollector(allocations -> {});
+
+		assertThatThrownBy(() -> builder.withCallTreeCollector(trieNode -> {})).isInstanceOf(IllegalStateException.class);
+	}
+
+	@Test
+	void builder_noCollector_throws() {
+		assertThatThrownBy(() -> new ProfilerBuilder().build()).isInstanceOf(IllegalStateException.class);
+	}
+
+	@Test
+	void snapshotDelta_perTypeCollector_readsChangesWhileProfiling() {
+		try (var profiler = new ProfilerBuilder().withPerTypeCollector(allocations -> {}).build()) {
+			var ignored2 = new byte[10];
+			var first = profiler.snapshotDelta();
+			var ignored3 = new char[20];
+			var second = profiler.snapshotDelta();
+
+			assertThat(first.getPerType().get("[B")).isGreaterThan(10);
+			assertThat(second.getPerType().get("[C")).isGreaterThan(20);
+			assertThat(profiler.snapshot().getTotal()).isGreaterThanOrEqualTo(first.getTotal() + second.getTotal());
+			assertThat(profiler.isEnabled()).isTrue();
+		}
+	}
+
+	@Test
+	void snapshotDelta_perTypeCollectorProfiledThread_recordsAllocationOfRead() {
+		var thread = Thread.currentThread();
+
+		try (var profiler = new ProfilerBuilder().withThreadIdFilter(Set.of(thread)).withPerTypeCollector(allocations -> {}).build()) {
+			profiler.snapshotDelta();
+			var delta = profiler.snapshotDelta();
+
+			assertThat(delta.getTotal()).isGreaterThan(0);
+			assertThat(delta.getPerType()).containsKey("Ljava/util/HashMap$Node;");
+		}
+	}
+
+	@Test
+	void rebaseline_perTypeCollector_excludesEarlierResults() {
+		HashMap<String, Long> allocations = new HashMap<>();
+
+		try (var profiler = new ProfilerBuilder().withThreadIdFilter(Set.of(Thread.currentThread())).withPerTypeCollector(allocations::putAll).build()) {
+			var ignored2 = new char[20];
+			profiler.rebaseline();
+			assertThat(profiler.snapshot().getPerType().get("[C")).isEqualTo(0L);
+			var ignored3 = new byte[10];
+		}
+
+		assertThat(allocations).containsKeys("[B");
+		assertThat(allocations).doesNotContainKeys("[C");
+	}
+
+	@Test
+	void buildPool_totalsCollector_reusesProfilerPerMeasurement() {
+		long[] totals = { 0 };
+
+		try (var pool = new ProfilerBuilder().withThreadIdFilter(Set.of(Thread.currentThread())).withLongTotalsCollector(total -> totals[0] = total).buildPool()) {
+			var first = pool.acquire();
+			var ignored2 = new byte[1024];
+			first.close();
+			assertThat(totals[0]).isGreaterThanOrEqualTo(1024L);
+			assertThat(pool.getIdleCount()).isEqualTo(1);
+
+			try (var second = pool.acquire()) {
+				assertThat(second).isSameAs(first);
+				assertThat(second.isEnabled()).isTrue();
+				var ignored3 = new byte[10];
+			}
+			assertThat(totals[0]).isBetween(10L, 1023L);
+		}
+	}
+
+	@Test
+	void region_perTypeRegions_attributesTypesToRegions() {
+		try (var profiler = new ProfilerBuilder().withThreadIdFilter(Set.of(Thread.currentThread())).withPerTypeCollector(allocations -> {}).withPerTypeRegions().build()) {
+			try (var ignored = profiler.region("parse")) {
+				var ignored2 = new byte[1024];
+			}
+			try (var ignored = profiler.region("serialize")) {
+				var ignored3 = new char[1024];
+			}
+
+			var regions = profiler.getRegions();
+			assertThat(regions.get("parse").getPerType().get("[B")).isGreaterThanOrEqualTo(1024L);
+			assertThat(regions.get("parse").getPerType().get("[C")).isEqualTo(0L);
+			assertThat(regions.get("serialize").getPerType().get("[C")).isGreaterThanOrEqualTo(2048L);
+		}
+	}
+
 	@Test
 	void profile_perTypeCollectorFilteredTypes_recordsAllocations() {
 		HashMap<String, Long> allocations = new HashMap<>();
@@ -81,6 +228,113 @@ public class ProfilerTest {
 		assertThat(allocations.get("[B")).isGreaterThan(10);
 	}
 
+	@Test
+	void profile_perTypeCollectorThreadRegistry_recordsThreadsRegisteredWhileProfiling() throws InterruptedException {
+		HashMap<String, Long> allocations = new HashMap<>();
+		var registry = new ThreadRegistry();
+
+		try (var ignored = new ProfilerBuilder().withPerTypeCollector(allocations::putAll).withThreadRegistryFilter(registry).build()) {
+			var ignored2 = new char[20];
+			var thread = registry.threadFactory(Thread::new).newThread(() -> {
+				var ignored3 = new byte[10];
+			});
+			thread.start();
+			thread.join();
+		}
+
+		assertThat(allocations).containsKeys("[B");
+		assertThat(allocations).doesNotContainKeys("[C");
+	}
+
+	@Test
+	void profile_perTypeCollectorComposedFilter_recordsMatchingAllocations() {
+		HashMap<String, Long> allocations = new HashMap<>();
+		var filter = AllocationFilter.types(byte[].class, char[].class).and(AllocationFilter.threads(Thread.currentThread()));
+
+		try (var ignored = new ProfilerBuilder().withPerTypeCollector(allocations::putAll).withFilter(filter).build()) {
+			var ignored2 = new byte[10];
+			var ignored3 = new char[20];
+			var ignored4 = new Object[40];
+		}
+
+		assertThat(allocations).containsKeys("[B", "[C");
+		assertThat(allocations).doesNotContainKeys("[Ljava/lang/Object;");
+	}
+
+	@Test
+	void build_totalsCollectorTypeMatcherFilter_throws() {
+		var builder = new ProfilerBuilder()
+				.withLongTotalsCollector(total -> {})
+				.withFilter(AllocationFilter.packagePrefix("java.util"));
+
+		assertThatThrownBy(builder::build).isInstanceOf(IllegalStateException.class);
+	}
+
+	@Test
+	void profile_perThreadCollectorThreadFilter_recordsAllocationOfThread() {
+		List<ThreadAllocation> allocations = new ArrayList<>();
+
+		try (var ignored = new ProfilerBuilder().withThreadIdFilter(Set.of(Thread.currentThread())).withPerThreadCollector(allocations::addAll).build()) {
+			var ignored2 = new byte[1024 * 1024];
+		}
+
+		assertThat(allocations).hasSize(1);
+		assertThat(allocations.get(0).getThreadId()).isEqualTo(Thread.currentThread().getId());
+		assertThat(allocations.get(0).getTotal()).isGreaterThan(1024 * 1024);
+	}
+
+	@Test
+	void profile_threadCountersBackend_recordsTotalOfFilteredThreads() throws InterruptedException {
+		long[] total = { 0 };
+
+		try (var ignored = new ProfilerBuilder()
+				.withBackend(ProfilerBackendKind.THREAD_COUNTERS)
+				.withThreadIdFilter(Set.of(Thread.currentThread()))
+				.withLongTotalsCollector(allocated -> total[0] = allocated).build()) {
+			var ignored2 = new byte[1024 * 1024];
+			var thread = new Thread(() -> {
+				var ignored3 = new byte[16 * 1024 * 1024];
+			});
+			thread.start();
+			thread.join();
+		}
+
+		assertThat(total[0]).isBetween(1024L * 1024, 4L * 1024 * 1024);
+	}
+
+	@Test
+	void profile_nullTotalsCollector_profilesWithoutDelivering() {
+		var builder = new ProfilerBuilder()
+				.withBackend(ProfilerBackendKind.THREAD_COUNTERS)
+				.withTotalsCollector(null);
+
+		try (var ignored = builder.build()) {
+			var ignored2 = new byte[10];
+		}
+
+		assertThatThrownBy(() -> builder.withTotalsCollector(null)).isInstanceOf(IllegalStateException.class);
+	}
+
+	@Test
+	void builder_nullPerTypeAndCallTreeCollectors_countAsAssigned() {
+		var perType = new ProfilerBuilder().withPerTypeCollector((Consumer<HashMap<String, Long>>) null);
+		var callTree = new ProfilerBuilder().withCallTreeCollector(null);
+
+		assertThatThrownBy(() -> perType.withPerTypeCollector(allocations -> {})).isInstanceOf(IllegalStateException.class);
+		assertThatThrownBy(() -> perType.withCallTreeCollector(trieNode -> {})).isInstanceOf(IllegalStateException.class);
+		assertThatThrownBy(() -> callTree.withCallTreeCollector(trieNode -> {})).isInstanceOf(IllegalStateException.class);
+		assertThatThrownBy(() -> callTree.withPerTypeCollector(allocations -> {})).isInstanceOf(IllegalStateException.class);
+	}
+
+	@Test
+	void build_threadCountersBackendPerTypeCollector_throws() {
+		var builder = new ProfilerBuilder()
+				.withBackend(ProfilerBackendKind.THREAD_COUNTERS)
+				.withPerTypeCollector(allocations -> {});
+
+		assertThatThrownBy(builder::build).isInstanceOf(IllegalStateException.class);
+	}
+
 	@Test
 	void profile_callTreeCollector_recordsAllocations() {
 		TrieNode[] allocations = { null };
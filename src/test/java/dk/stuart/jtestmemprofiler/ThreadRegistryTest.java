@@ -0,0 +1,116 @@
+package dk.stuart.jtestmemprofiler;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ThreadRegistryTest {
+    @Test
+    void register_nestedRegistrations_keepsThreadUntilAllRemoved() {
+        var registry = new ThreadRegistry();
+        var changes = new ArrayList<Set<Thread>>();
+        registry.addListener(changes::add);
+        var thread = Thread.currentThread();
+
+        registry.register(thread);
+        registry.register(thread);
+        registry.unregister(thread);
+        assertThat(registry.contains(thread)).isTrue();
+        registry.unregister(thread);
+
+        assertThat(registry.contains(thread)).isFalse();
+        assertThat(changes).isEqualTo(List.of(Set.of(thread), Set.of()));
+        assertThatThrownBy(() -> registry.unregister(thread)).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void addMembershipListener_registeredThreads_replaysThenNotifiesChanges() {
+        var registry = new ThreadRegistry(Set.of(Thread.currentThread()));
+        var events = new ArrayList<String>();
+        var other = new Thread(() -> {}, "other");
+        registry.addMembershipListener(new ThreadRegistry.MembershipListener() {
+            @Override
+            public void registered(Thread thread) {
+                events.add("+" + thread.getName());
+            }
+
+            @Override
+            public void unregistered(Thread thread) {
+                events.add("-" + thread.getName());
+            }
+        });
+
+        registry.register(other);
+        registry.register(other);
+        registry.unregister(other);
+        registry.unregister(other);
+
+        assertThat(events).isEqualTo(List.of("+" + Thread.currentThread().getName(), "+other", "-other"));
+    }
+
+    @Test
+    void threadFactory_createdThread_registeredUntilTerminated() throws InterruptedException {
+        var registry = new ThreadRegistry();
+        boolean[] registeredWhileRunning = { false };
+        var thread = registry.threadFactory(Executors.defaultThreadFactory())
+                .newThread(() -> registeredWhileRunning[0] = registry.contains(Thread.currentThread()));
+
+        assertThat(registry.contains(thread)).isTrue();
+        thread.start();
+        thread.join();
+
+        assertThat(registeredWhileRunning[0]).isTrue();
+        assertThat(registry.contains(thread)).isFalse();
+    }
+
+    @Test
+    void executor_task_registersRunningThreadForDurationOfTask() throws Exception {
+        var registry = new ThreadRegistry();
+        var pool = Executors.newSingleThreadExecutor();
+        try {
+            var executor = registry.executor(pool);
+            boolean[] registeredWhileRunning = { false };
+            Thread[] worker = { null };
+
+            executor.execute(() -> {
+                worker[0] = Thread.currentThread();
+                registeredWhileRunning[0] = registry.contains(Thread.currentThread());
+            });
+            pool.submit(() -> {}).get();
+
+            assertThat(registeredWhileRunning[0]).isTrue();
+            assertThat(registry.contains(worker[0])).isFalse();
+            assertThat(pool.submit(registry.wrap(() -> registry.contains(Thread.currentThread()))).get()).isTrue();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void executor_pooledThread_changesFilteredThreadsOnce() throws Exception {
+        var registry = new ThreadRegistry();
+        var changes = new ArrayList<Set<Thread>>();
+        registry.addListener(changes::add);
+        var pool = Executors.newSingleThreadExecutor();
+        try {
+            var executor = registry.executor(pool);
+            Thread[] worker = { null };
+
+            for (var i = 0; i < 3; i++) {
+                executor.execute(() -> worker[0] = Thread.currentThread());
+            }
+            pool.submit(() -> {}).get();
+
+            assertThat(registry.contains(worker[0])).isFalse();
+            assertThat(changes).isEqualTo(List.of(Set.of(worker[0])));
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
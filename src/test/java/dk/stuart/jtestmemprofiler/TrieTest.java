@@ -96,4 +96,56 @@ public class TrieTest {
 
         assertThat(nodes).containsExactlyInAnyOrder(leaf1, leaf2);
     }
+
+    @Test
+    void visitLeafPaths_splitTree_visitsLeafPaths() {
+        var leaf1 = new TrieNode(new HashMap<>(), 30, 30);
+        var leaf2 = new TrieNode(new HashMap<>(), 40, 40);
+        var common = new TrieNode(new HashMap<>() {{
+            put("leaf1", leaf1);
+            put("leaf2", leaf2);
+        }}, 0, 70);
+        var trie = new TrieNode(new HashMap<>() {{
+            put("common", common);
+        }}, 0, 70);
+
+        var paths = new ArrayList<String>();
+        trie.visitLeafPaths(path -> paths.add(path.getFrameName(0) + ";" + path.getFrameName(1) + " " + path.getAllocationSize(path.getDepth() - 1)));
+
+        assertThat(paths).containsExactlyInAnyOrder("common;leaf1 30", "common;leaf2 40");
+    }
+
+    @Test
+    void visitSelfAllocatorPaths_treeWithAllLevelAllocations_visitsInnerNodeAfterChildren() {
+        var leaf1 = new TrieNode(new HashMap<>(), 30, 30);
+        var common = new TrieNode(new HashMap<>() {{
+            put("leaf1", leaf1);
+        }}, 10, 40);
+        var trie = new TrieNode(new HashMap<>() {{
+            put("common", common);
+        }}, 0, 40);
+
+        var frames = new ArrayList<String>();
+        trie.toCallTree().getRoot().visitSelfAllocatorPaths(path -> frames.add(path.getFrameName(path.getDepth() - 1)));
+
+        assertThat(frames).containsExactly("leaf1", "common");
+    }
+
+    @Test
+    void visitSelfAllocators_callTreeView_visitsSelfAllocators() {
+        var leaf1 = new TrieNode(new HashMap<>(), 30, 30);
+        var leaf2 = new TrieNode(new HashMap<>(), 40, 40);
+        var common = new TrieNode(new HashMap<>() {{
+            put("leaf1", leaf1);
+            put("leaf2", leaf2);
+        }}, 10, 80);
+        var trie = new TrieNode(new HashMap<>() {{
+            put("common", common);
+        }}, 0, 80);
+
+        var keys = new ArrayList<String>();
+        trie.toCallTree().getRoot().visitSelfAllocators(stack -> keys.add(stack.peekLast().key() + " " + stack.peekLast().value().getAllocationSize()));
+
+        assertThat(keys).containsExactlyInAnyOrder("leaf1 30", "leaf2 40", "common 10");
+    }
 }
@@ -0,0 +1,67 @@
+package dk.stuart.jtestmemprofiler;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TypeAllocationMapTest {
+    @Test
+    void put_manyTypes_retainsAllAcrossResize() {
+        var map = new TypeAllocationMap(2);
+
+        for (var i = 0; i < 1000; i++) {
+            map.put("Ltype" + i + ";", i);
+        }
+        map.add("Ltype7;", 100);
+        map.add("[B", 5);
+
+        assertThat(map.size()).isEqualTo(1001);
+        assertThat(map.get("Ltype999;")).isEqualTo(999L);
+        assertThat(map.get("Ltype7;")).isEqualTo(107L);
+        assertThat(map.get("[B")).isEqualTo(5L);
+        assertThat(map.get("[C")).isEqualTo(0L);
+        assertThat(map.getOrDefault("[C", -1)).isEqualTo(-1L);
+        assertThat(map.total()).isEqualTo(999L * 1000 / 2 + 105);
+    }
+
+    @Test
+    void clear_filledMap_canBeRefilled() {
+        var map = new TypeAllocationMap();
+        map.put("[B", 10);
+        map.put("[C", 20);
+
+        map.clear();
+        map.put("[C", 30);
+
+        assertThat(map.size()).isEqualTo(1);
+        assertThat(map.containsKey("[B")).isFalse();
+        assertThat(map.get("[C")).isEqualTo(30L);
+    }
+
+    @Test
+    void putAll_boxedMap_internsKeysAndConvertsBack() {
+        var boxed = new HashMap<String, Long>();
+        boxed.put(new String("[B"), 10L);
+        boxed.put("[Ljava/lang/Object;", 40L);
+        var map = new TypeAllocationMap();
+
+        map.putAll(boxed);
+        var keys = new String[1];
+        map.forEach((type, allocation) -> {
+            if (type.equals("[B")) keys[0] = type;
+        });
+
+        assertThat(keys[0] == TypeAllocationMap.intern("[B")).isTrue();
+        assertThat(map.toHashMap()).isEqualTo(boxed);
+    }
+
+    @Test
+    void typeName_descriptors_returnsJavaTypeNames() {
+        assertThat(TypeAllocationMap.typeName("[B")).isEqualTo("byte[]");
+        assertThat(TypeAllocationMap.typeName("[[J")).isEqualTo("long[][]");
+        assertThat(TypeAllocationMap.typeName("Ljava/lang/String;")).isEqualTo("java.lang.String");
+        assertThat(TypeAllocationMap.typeName("[Ljava/lang/Object;")).isEqualTo("java.lang.Object[]");
+    }
+}